@@ -0,0 +1,25 @@
+"""Minimal program for the end-to-end benchmark, see docs/benchmarks.md.
+
+By default the document is sent back unchanged, so only the cost of exchanging
+the document with Python gets measured. If the program parameter "tokenize" is
+set to true, the same tokens as in tokenize_doc_func.py are added.
+"""
+
+import re
+from gatenlp import interact, GateNlpPr
+
+@GateNlpPr
+def run(doc, **kwargs):
+    if str(kwargs.get("tokenize", "false")).lower() != "true":
+        return
+    set1 = doc.annset("PythonTokenizeFunc")
+    set1.clear()
+    text = doc.text
+    whitespaces = [m for m in re.finditer(r"[\s,.!?]+|^[\s,.!?]*|[\s,.!?]*$",text)]
+    for k in range(len(whitespaces)-1):
+        fromoff=whitespaces[k].end()
+        tooff=whitespaces[k+1].start()
+        set1.add(fromoff, tooff, "Token", {"tokennr": k})
+    doc.features["nr_tokens"] = len(whitespaces)-1
+
+interact()
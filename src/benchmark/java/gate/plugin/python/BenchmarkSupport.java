@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.test.GATEPluginTestCase;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.
+ *
+ * @author Johann Petrak
+ */
+class BenchmarkSupport extends GATEPluginTestCase {
+
+  private static boolean loaded = false;
+
+  /**
+   * Initialize GATE and load the plugin from the build directory, in the 
+   * same way as the tests, if this has not already been done.
+   * 
+   * @throws Exception if GATE or the plugin cannot be loaded
+   */
+  static synchronized void load() throws Exception {
+    if (!loaded) {
+      loadPlugin();
+      loaded = true;
+    }
+  }
+
+  /**
+   * Create a random text of lowercase words separated by spaces.
+   * 
+   * @param random the random generator to use
+   * @param size number of characters
+   * @return text
+   */
+  static String makeText(Random random, int size) {
+    StringBuilder sb = new StringBuilder(size);
+    while (sb.length() < size) {
+      int len = 1 + random.nextInt(10);
+      for (int i = 0; i < len && sb.length() < size; i++) {
+        sb.append((char) ('a' + random.nextInt(26)));
+      }
+      if (sb.length() < size) {
+        sb.append(' ');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get a value from /proc/&lt;pid&gt;/status, "self" for the JVM.
+   * 
+   * @param pid the process id or "self"
+   * @param key the start of the line, e.g. "VmHWM:"
+   * @return value in kB or -1 if not available
+   */
+  static long getStatusValue(String pid, String key) {
+    return ProcessingMetrics.readStatusValue(new File("/proc/" + pid + "/status"), key);
+  }
+
+  /**
+   * Reset the peak resident set size of the JVM, if supported by the 
+   * kernel.
+   */
+  static void resetPeakRss() {
+    try (FileWriter writer = new FileWriter("/proc/self/clear_refs")) {
+      writer.write("5");
+    } catch (IOException ex) {
+      // not supported, the peak is then for the whole lifetime of the JVM
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.AbstractController;
+import gate.creole.Parameter;
+import gate.creole.ResourceData;
+import gate.creole.SerialAnalyserController;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end benchmark which runs a pipeline containing PythonPrs with 
+ * different numbers of duplicates over a generated corpus.
+ *
+ * Each duplicate of the pipeline runs in its own thread and takes the next
+ * document from the corpus, like GCP does. For each number of duplicates 
+ * this reports documents per second, the percentiles of the time needed 
+ * per document, the time needed to start the Python processes and the peak 
+ * resident set size of the JVM and the Python processes. 
+ * See docs/benchmarks.md for how to run it.
+ *
+ * @author Johann Petrak
+ */
+public class PipelineBenchmark {
+
+  private File appFile = new File("examples/tokenize_doc_func.xgapp");
+  private File programFile = null;
+  private final Map<String, String> prParams = new LinkedHashMap<>();
+  private final Map<String, String> programParams = new LinkedHashMap<>();
+  private final List<Integer> duplicates = new ArrayList<>();
+  private int nrDocs = 1000;
+  private int docSize = 5000;
+  private File outputFile = null;
+  private List<String> texts;
+
+  /**
+   * What gets measured for one duplicate.
+   */
+  private static class DuplicateResult {
+    long startupNanos;
+    long startedNanos;
+    long endNanos;
+    long pythonPeakRssKb = 0;
+    final PhaseStats.Histogram latency = new PhaseStats.Histogram();
+  }
+
+  /**
+   * Run the benchmark.
+   * 
+   * @param args command line arguments, see usage()
+   * @throws Exception if anything goes wrong
+   */
+  public static void main(String[] args) throws Exception {
+    PipelineBenchmark benchmark = new PipelineBenchmark();
+    benchmark.parseArgs(args);
+    BenchmarkSupport.load();
+    List<Map<String, Object>> results = benchmark.runAll();
+    if (benchmark.outputFile != null) {
+      JSON.std.with(JSON.Feature.PRETTY_PRINT_OUTPUT).write(results, benchmark.outputFile);
+    }
+    System.exit(0);
+  }
+
+  private static void usage(String error) {
+    System.err.println("ERROR: " + error);
+    System.err.println("Options:");
+    System.err.println("  --app FILE            pipeline to run, default examples/tokenize_doc_func.xgapp");
+    System.err.println("  --program FILE        instead of --app, run a single PythonPr with this program");
+    System.err.println("  --param NAME=VALUE    set a parameter of all PythonPrs, may be repeated");
+    System.err.println("  --programParam K=V    add to the programParams of all PythonPrs, may be repeated");
+    System.err.println("  --duplicates N,N,...  numbers of duplicates to run with, default 1");
+    System.err.println("  --docs N              number of documents, default 1000");
+    System.err.println("  --size N              number of characters per document, default 5000");
+    System.err.println("  --output FILE         also write the results as JSON to that file");
+    System.exit(1);
+  }
+
+  private void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 >= args.length) {
+        usage("Missing value for " + args[i]);
+      }
+      String value = args[++i];
+      switch (args[i - 1]) {
+        case "--app":
+          appFile = new File(value);
+          break;
+        case "--program":
+          programFile = new File(value);
+          break;
+        case "--param":
+          putKeyValue(prParams, value);
+          break;
+        case "--programParam":
+          putKeyValue(programParams, value);
+          break;
+        case "--duplicates":
+          for (String n : value.split(",")) {
+            duplicates.add(Integer.parseInt(n.trim()));
+          }
+          break;
+        case "--docs":
+          nrDocs = Integer.parseInt(value);
+          break;
+        case "--size":
+          docSize = Integer.parseInt(value);
+          break;
+        case "--output":
+          outputFile = new File(value);
+          break;
+        default:
+          usage("Unknown option " + args[i - 1]);
+      }
+    }
+    if (duplicates.isEmpty()) {
+      duplicates.add(1);
+    }
+  }
+
+  private static void putKeyValue(Map<String, String> map, String keyValue) {
+    int idx = keyValue.indexOf('=');
+    if (idx < 1) {
+      usage("Expected NAME=VALUE but got " + keyValue);
+    }
+    map.put(keyValue.substring(0, idx), keyValue.substring(idx + 1));
+  }
+
+  private List<Map<String, Object>> runAll() throws Exception {
+    Random random = new Random(1);
+    texts = new ArrayList<>(nrDocs);
+    for (int i = 0; i < nrDocs; i++) {
+      texts.add(BenchmarkSupport.makeText(random, docSize));
+    }
+    System.out.println("duplicates\tdocs/s\tp50_ms\tp95_ms\tp99_ms\tmax_ms\tstartup_ms\tjvm_rss_mb\tpython_rss_mb");
+    List<Map<String, Object>> results = new ArrayList<>();
+    for (int n : duplicates) {
+      Map<String, Object> result = run(n);
+      results.add(result);
+      System.out.println(String.format("%d\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f\t%.0f\t%.0f\t%.0f", n,
+              result.get("docs_per_sec"), 
+              (Long) result.get("latency_p50_us") / 1000.0, (Long) result.get("latency_p95_us") / 1000.0,
+              (Long) result.get("latency_p99_us") / 1000.0, (Long) result.get("latency_max_us") / 1000.0,
+              (Long) result.get("startup_max_us") / 1000.0,
+              (Long) result.get("jvm_peak_rss_kb") / 1024.0, (Long) result.get("python_peak_rss_kb") / 1024.0));
+    }
+    return results;
+  }
+
+  // run the pipeline with n duplicates over the whole corpus
+  private Map<String, Object> run(int n) throws Exception {
+    List<CorpusController> controllers = new ArrayList<>();
+    controllers.add(createController());
+    for (int i = 1; i < n; i++) {
+      controllers.add((CorpusController) Factory.duplicate(controllers.get(0)));
+    }
+    BenchmarkSupport.resetPeakRss();
+    AtomicInteger next = new AtomicInteger();
+    CyclicBarrier barrier = new CyclicBarrier(n);
+    ExecutorService executor = Executors.newFixedThreadPool(n);
+    List<DuplicateResult> results = new ArrayList<>();
+    try {
+      List<Future<DuplicateResult>> futures = new ArrayList<>();
+      for (CorpusController controller : controllers) {
+        futures.add(executor.submit(() -> runDuplicate(controller, next, barrier)));
+      }
+      for (Future<DuplicateResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (ExecutionException ex) {
+      throw new GateRuntimeException("Running a duplicate failed", ex.getCause());
+    } finally {
+      executor.shutdown();
+      for (int i = controllers.size() - 1; i >= 0; i--) {
+        deleteController(controllers.get(i));
+      }
+    }
+    long started = Long.MAX_VALUE;
+    long ended = 0;
+    long startupMax = 0;
+    long startupSum = 0;
+    long pythonRss = 0;
+    PhaseStats.Histogram latency = new PhaseStats.Histogram();
+    for (DuplicateResult result : results) {
+      started = Math.min(started, result.startedNanos);
+      ended = Math.max(ended, result.endNanos);
+      startupMax = Math.max(startupMax, result.startupNanos);
+      startupSum += result.startupNanos;
+      pythonRss += result.pythonPeakRssKb;
+      latency.addAll(result.latency);
+    }
+    Map<String, Object> ret = new LinkedHashMap<>();
+    ret.put("duplicates", n);
+    ret.put("docs", nrDocs);
+    ret.put("doc_size", docSize);
+    ret.put("docs_per_sec", nrDocs / ((ended - started) / 1e9));
+    ret.put("latency_mean_us", latency.getMean());
+    ret.put("latency_p50_us", latency.getPercentile(50));
+    ret.put("latency_p95_us", latency.getPercentile(95));
+    ret.put("latency_p99_us", latency.getPercentile(99));
+    ret.put("latency_max_us", latency.getMax());
+    ret.put("startup_max_us", startupMax / 1000);
+    ret.put("startup_mean_us", startupSum / n / 1000);
+    ret.put("jvm_peak_rss_kb", BenchmarkSupport.getStatusValue("self", "VmHWM:"));
+    ret.put("python_peak_rss_kb", pythonRss);
+    return ret;
+  }
+
+  // start the duplicate, wait for all the others to be started too, then
+  // process documents until there are none left
+  private DuplicateResult runDuplicate(CorpusController controller, AtomicInteger next,
+          CyclicBarrier barrier) throws Exception {
+    DuplicateResult result = new DuplicateResult();
+    try {
+      Corpus corpus = Factory.newCorpus("PipelineBenchmark corpus");
+      controller.setCorpus(corpus);
+      long start = System.nanoTime();
+      ((AbstractController) controller).invokeControllerExecutionStarted();
+      result.startupNanos = System.nanoTime() - start;
+      barrier.await();
+      result.startedNanos = System.nanoTime();
+      int i;
+      while ((i = next.getAndIncrement()) < nrDocs) {
+        Document doc = Factory.newDocument(texts.get(i));
+        corpus.add(doc);
+        ((LanguageAnalyser) controller).setDocument(doc);
+        long docStart = System.nanoTime();
+        controller.execute();
+        result.latency.record((System.nanoTime() - docStart) / 1000);
+        ((LanguageAnalyser) controller).setDocument(null);
+        corpus.clear();
+        Factory.deleteResource(doc);
+      }
+      result.endNanos = System.nanoTime();
+      for (ProcessingResource pr : controller.getPRs()) {
+        if (pr instanceof PythonPr) {
+          long pid = ProcessingMetrics.getPid(((PythonPr) pr).getPythonProcess());
+          if (pid >= 0) {
+            result.pythonPeakRssKb += Math.max(0, BenchmarkSupport.getStatusValue(Long.toString(pid), "VmHWM:"));
+          }
+        }
+      }
+      ((AbstractController) controller).invokeControllerExecutionFinished();
+      Factory.deleteResource(corpus);
+    } catch (Exception ex) {
+      // make sure the other duplicates do not wait forever
+      barrier.reset();
+      throw ex;
+    }
+    return result;
+  }
+
+  // load the application or create the pipeline for the program and set
+  // the parameters of all PythonPrs
+  private CorpusController createController() throws Exception {
+    CorpusController controller;
+    if (programFile != null) {
+      SerialAnalyserController pipeline = (SerialAnalyserController) 
+              Factory.createResource(SerialAnalyserController.class.getName());
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("pythonProgram", programFile.toURI().toURL());
+      pipeline.add((ProcessingResource) Factory.createResource(PythonPr.class.getName(), params));
+      controller = pipeline;
+    } else {
+      controller = (CorpusController) PersistenceManager.loadObjectFromFile(appFile);
+    }
+    ResourceData resourceData = Gate.getCreoleRegister().get(PythonPr.class.getName());
+    for (ProcessingResource pr : controller.getPRs()) {
+      if (!(pr instanceof PythonPr)) {
+        continue;
+      }
+      for (Map.Entry<String, String> entry : prParams.entrySet()) {
+        Parameter param = findParameter(resourceData, entry.getKey());
+        pr.setParameterValue(entry.getKey(), param.calculateValueFromString(entry.getValue()));
+      }
+      if (!programParams.isEmpty()) {
+        PythonPr pythonPr = (PythonPr) pr;
+        FeatureMap fm = Factory.newFeatureMap();
+        if (pythonPr.getProgramParams() != null) {
+          fm.putAll(pythonPr.getProgramParams());
+        }
+        fm.putAll(programParams);
+        pythonPr.setProgramParams(fm);
+      }
+    }
+    return controller;
+  }
+
+  private static Parameter findParameter(ResourceData resourceData, String name) {
+    List<List<Parameter>> all = new ArrayList<>();
+    all.addAll(resourceData.getParameterList().getRuntimeParameters());
+    all.addAll(resourceData.getParameterList().getInitimeParameters());
+    for (List<Parameter> disjunction : all) {
+      for (Parameter param : disjunction) {
+        if (param.getName().equals(name)) {
+          return param;
+        }
+      }
+    }
+    throw new GateRuntimeException("PythonPr has no parameter " + name);
+  }
+
+  private static void deleteController(CorpusController controller) {
+    List<ProcessingResource> prs = new ArrayList<>(controller.getPRs());
+    Factory.deleteResource(controller);
+    for (ProcessingResource pr : prs) {
+      Factory.deleteResource(pr);
+    }
+  }
+}
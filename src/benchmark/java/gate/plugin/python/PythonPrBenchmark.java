@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for converting documents to requests and applying the
+ * changelogs from responses, for both exchange formats.
+ *
+ * The documents are synthetic, with the given number of characters and 
+ * the given number of annotations per 1000 characters, and the changelog
+ * adds the same number of annotations to a separate set. The number of 
+ * annotations is capped at MAX_ANNOTATIONS, so the largest documents get 
+ * a lower density. This runs in 
+ * the "benchmarks" profile, see docs/benchmarks.md.
+ *
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class PythonPrBenchmark {
+
+  /**
+   * Maximum number of annotations in the document and in the changelog.
+   */
+  public static final long MAX_ANNOTATIONS = 1000000;
+
+  /**
+   * Number of characters in the document.
+   */
+  @Param({"1000", "100000", "10000000", "50000000"})
+  public int docSize;
+
+  /**
+   * Number of annotations per 1000 characters, in the document and in the
+   * changelog, up to MAX_ANNOTATIONS.
+   */
+  @Param({"0", "10", "100"})
+  public int annDensity;
+
+  private PythonPr pr;
+  private Document doc;
+  private String responseJson;
+  private byte[] responseFrame;
+
+  /**
+   * Create the PR, the document and the responses.
+   * 
+   * @throws Exception if GATE or the plugin cannot be loaded
+   */
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.load();
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("pythonProgram", new File("src/test/python/tiny1.py").toURI().toURL());
+    pr = (PythonPr) Factory.createResource("gate.plugin.python.PythonPr", params);
+    doc = makeDocument();
+    List<Map<String, Object>> changes = makeChanges();
+    Map<String, Object> changeLog = new LinkedHashMap<>();
+    changeLog.put("changes", changes);
+    changeLog.put("offset_type", "j");
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("status", "ok");
+    response.put("data", changeLog);
+    responseJson = JSON.std.asString(response);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (MessagePacker packer = MessagePack.newDefaultPacker(baos)) {
+      Map<String, Object> header = new HashMap<>();
+      header.put("status", "ok");
+      MsgPackCodec.packValue(packer, header);
+      MsgPackCodec.packValue(packer, changeLog);
+    }
+    responseFrame = baos.toByteArray();
+  }
+
+  /**
+   * Delete the PR and the document.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Factory.deleteResource(doc);
+    Factory.deleteResource(pr);
+  }
+
+  /**
+   * Create and serialize a JSON execute request.
+   * 
+   * @throws Exception if serialization fails
+   */
+  @Benchmark
+  public void jsonExecuteRequest() throws Exception {
+    pr.makeExecuteRequestWriter(Collections.singletonList(doc), false).write(NullOutputStream.NULL_OUTPUT_STREAM);
+  }
+
+  /**
+   * Create and serialize a MsgPack execute request.
+   * 
+   * @throws Exception if serialization fails
+   */
+  @Benchmark
+  public void msgPackExecuteRequest() throws Exception {
+    pr.msgPackCodec.writeExecuteRequest(doc, pr.setsToUse, null, NullOutputStream.NULL_OUTPUT_STREAM);
+  }
+
+  /**
+   * Parse a JSON execute response and apply the changelog.
+   * 
+   * @param bh blackhole
+   */
+  @Benchmark
+  public void jsonApplyResponse(Blackhole bh) {
+    bh.consume(pr.changeLogApplier.applyResponse(responseJson, Collections.singletonList(doc), false));
+  }
+
+  /**
+   * Decode a MsgPack execute response and apply the changelog.
+   * 
+   * @param bh blackhole
+   */
+  @Benchmark
+  public void msgPackApplyResponse(Blackhole bh) {
+    MsgPackCodec.Response response = pr.msgPackCodec.decodeResponse(responseFrame);
+    pr.changeLogApplier.applyChangeLog(pr.msgPackCodec.loadChangeLog(response), doc);
+    bh.consume(response);
+  }
+
+  private Document makeDocument() throws Exception {
+    Document ret = Factory.newDocument(BenchmarkSupport.makeText(new Random(1), docSize));
+    AnnotationSet set = ret.getAnnotations();
+    for (long[] span : makeSpans()) {
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put("string", "x");
+      fm.put("length", (int) (span[1] - span[0]));
+      set.add(span[0], span[1], "Token", fm);
+    }
+    return ret;
+  }
+
+  // the changelog replaces the set "Copy" each time, so it can be applied
+  // repeatedly to the same document
+  private List<Map<String, Object>> makeChanges() {
+    List<Map<String, Object>> ret = new ArrayList<>();
+    Map<String, Object> change = new LinkedHashMap<>();
+    change.put("command", "annotations:remove");
+    change.put("set", "Copy");
+    ret.add(change);
+    int id = 0;
+    for (long[] span : makeSpans()) {
+      change = new LinkedHashMap<>();
+      change.put("command", "annotation:add");
+      change.put("set", "Copy");
+      change.put("start", span[0]);
+      change.put("end", span[1]);
+      change.put("type", "Token");
+      change.put("id", id++);
+      Map<String, Object> features = new LinkedHashMap<>();
+      features.put("kind", "word");
+      change.put("features", features);
+      ret.add(change);
+    }
+    return ret;
+  }
+
+  private List<long[]> makeSpans() {
+    List<long[]> ret = new ArrayList<>();
+    long nrAnns = Math.min(MAX_ANNOTATIONS, (long) docSize * annDensity / 1000);
+    if (nrAnns == 0) {
+      return ret;
+    }
+    long step = Math.max(1, docSize / nrAnns);
+    for (long start = 0; start + 1 <= docSize && ret.size() < nrAnns; start += step) {
+      ret.add(new long[]{start, Math.min(docSize, start + Math.max(1, step / 2))});
+    }
+    return ret;
+  }
+}
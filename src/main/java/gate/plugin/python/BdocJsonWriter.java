@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.corpora.DocumentImpl;
+import gate.util.GateRuntimeException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the JSON representation of execute requests directly from GATE
+ * documents.
+ *
+ * The JSON is the same as the one for the bdoc map created by the format-bdoc
+ * API, but it is generated while walking the document, so neither a bdoc
+ * map nor a String of the whole request is created. Only feature values
+ * get serialized by jackson-jr, just like when serializing the map.
+ *
+ * @author Johann Petrak
+ */
+public class BdocJsonWriter {
+
+  // the generator gets flushed once at the end, not after each feature value
+  private static final JSON VALUE_WRITER = JSON.std.without(JSON.Feature.FLUSH_AFTER_WRITE_VALUE);
+
+  private final JsonFactory factory = new JsonFactory();
+
+  /**
+   * Write an execute request for a single document.
+   *
+   * @param doc the document
+   * @param setsToUse the names of the annotation sets to send, null or
+   * containing "*" for all sets
+   * @param projection the projection to apply, or null
+   * @param out the stream to write to, does not get closed
+   * @throws IOException if writing fails
+   */
+  public void writeExecuteRequest(Document doc, Set<String> setsToUse,
+          DocumentProjection projection, OutputStream out) throws IOException {
+    try (JsonGenerator gen = createGenerator(out)) {
+      gen.writeStartObject();
+      gen.writeStringField("command", "execute");
+      gen.writeFieldName("data");
+      writeDocument(gen, doc, setsToUse, projection);
+      gen.writeEndObject();
+    }
+  }
+
+  /**
+   * Write an execute_batch request.
+   *
+   * @param docs the documents
+   * @param setsToUse the names of the annotation sets to send, null or
+   * containing "*" for all sets
+   * @param projection the projection to apply, or null
+   * @param out the stream to write to, does not get closed
+   * @throws IOException if writing fails
+   */
+  public void writeExecuteBatchRequest(List<Document> docs, Set<String> setsToUse,
+          DocumentProjection projection, OutputStream out) throws IOException {
+    try (JsonGenerator gen = createGenerator(out)) {
+      gen.writeStartObject();
+      gen.writeStringField("command", "execute_batch");
+      gen.writeArrayFieldStart("data");
+      for (Document doc : docs) {
+        writeDocument(gen, doc, setsToUse, projection);
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    }
+  }
+
+  /**
+   * Write only the bdoc JSON of a document.
+   *
+   * @param doc the document
+   * @param setsToUse the names of the annotation sets to send, null or
+   * containing "*" for all sets
+   * @param projection the projection to apply, or null
+   * @param out the stream to write to, does not get closed
+   * @throws IOException if writing fails
+   */
+  public void writeDocument(Document doc, Set<String> setsToUse,
+          DocumentProjection projection, OutputStream out) throws IOException {
+    try (JsonGenerator gen = createGenerator(out)) {
+      writeDocument(gen, doc, setsToUse, projection);
+    }
+  }
+
+  private JsonGenerator createGenerator(OutputStream out) throws IOException {
+    JsonGenerator gen = factory.createGenerator(out, JsonEncoding.UTF8);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    return gen;
+  }
+
+  private void writeDocument(JsonGenerator gen, Document doc, Set<String> setsToUse,
+          DocumentProjection projection) throws IOException {
+    if (projection == null) {
+      projection = DocumentProjection.ALL;
+    }
+    boolean allSets = setsToUse == null || setsToUse.contains("*");
+    if (!(doc instanceof DocumentImpl)) {
+      throw new GateRuntimeException("Cannot convert a document which is not a gate.corpora.DocumentImpl");
+    }
+    int nextAnnId = ((DocumentImpl) doc).peakAtNextAnnotationId();
+    gen.writeStartObject();
+    gen.writeFieldName("text");
+    if (projection.keepText()) {
+      gen.writeString(doc.getContent().toString());
+    } else {
+      gen.writeNull();
+    }
+    gen.writeStringField("name", doc.getName());
+    gen.writeStringField("offset_type", "j");
+    gen.writeFieldName("features");
+    if (projection.keepDocumentFeatures()) {
+      writeFeatures(gen, doc.getFeatures(), null, projection);
+    } else {
+      gen.writeNull();
+    }
+    gen.writeObjectFieldStart("annotation_sets");
+    writeSet(gen, "", doc.getAnnotations(), allSets || setsToUse.contains(""), nextAnnId, projection);
+    for (String setName : doc.getAnnotationSetNames()) {
+      if (setName == null || setName.isEmpty()) {
+        continue;
+      }
+      writeSet(gen, setName, doc.getAnnotations(setName), allSets || setsToUse.contains(setName), 
+              nextAnnId, projection);
+    }
+    gen.writeEndObject();
+    gen.writeEndObject();
+  }
+
+  // As with the bdoc builder, a set which is not included is still sent as
+  // an empty placeholder with the next id of the document, so that 
+  // annotations Python adds to it get the correct ids. For an included set
+  // the next id follows the largest id in the set.
+  private void writeSet(JsonGenerator gen, String setName, AnnotationSet set, boolean included,
+          int nextAnnId, DocumentProjection projection) throws IOException {
+    gen.writeObjectFieldStart(setName);
+    gen.writeStringField("name", setName);
+    gen.writeArrayFieldStart("annotations");
+    if (included) {
+      nextAnnId = 0;
+      for (Annotation ann : set) {
+        nextAnnId = Math.max(nextAnnId, ann.getId() + 1);
+        if (projection.keepType(ann.getType())) {
+          writeAnnotation(gen, ann, projection);
+        }
+      }
+    }
+    gen.writeEndArray();
+    gen.writeNumberField("next_annid", nextAnnId);
+    gen.writeEndObject();
+  }
+
+  private void writeAnnotation(JsonGenerator gen, Annotation ann,
+          DocumentProjection projection) throws IOException {
+    gen.writeStartObject();
+    gen.writeStringField("type", ann.getType());
+    gen.writeNumberField("start", ann.getStartNode().getOffset().intValue());
+    gen.writeNumberField("end", ann.getEndNode().getOffset().intValue());
+    gen.writeNumberField("id", ann.getId());
+    gen.writeFieldName("features");
+    writeFeatures(gen, ann.getFeatures(), ann.getType(), projection);
+    gen.writeEndObject();
+  }
+
+  // Write the features the same way as BdocUtils.featureMap2Map converts
+  // them: keys become strings and null keys are dropped.
+  private void writeFeatures(JsonGenerator gen, Map<Object, Object> fm, String type,
+          DocumentProjection projection) throws IOException {
+    gen.writeStartObject();
+    if (fm != null) {
+      for (Map.Entry<Object, Object> entry : fm.entrySet()) {
+        if (entry.getKey() == null) {
+          continue;
+        }
+        String name = entry.getKey().toString();
+        if (type != null && !projection.keepFeature(type, name)) {
+          continue;
+        }
+        gen.writeFieldName(name);
+        VALUE_WRITER.write(entry.getValue(), gen);
+      }
+    }
+    gen.writeEndObject();
+  }
+}
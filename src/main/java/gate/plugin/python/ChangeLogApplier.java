@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+import gate.Utils;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Apply the changelogs in a JSON execute response directly to the documents.
+ *
+ * The response gets read as a stream of JSON tokens and each change is applied
+ * to the GATE document as soon as it has been read, so the changelog never
+ * needs to be converted to a map or ChangeLog object as a whole. The
+ * changes are applied with the same semantics as the GateDocumentUpdater of
+ * the format-bdoc plugin uses for a changelog.
+ * <p>
+ * Python offsets are converted with the OffsetMapper of the format-bdoc
+ * plugin, which is looked up once when the applier is created.
+ * <p>
+ * Because changes are applied while parsing, a response which turns out to
+ * be invalid can leave documents partly changed: if an execute_batch
+ * response contains fewer changelogs than documents, or the JSON breaks off
+ * in the middle, the changelogs read before that have already been applied.
+ * If the "status" field comes before the "data" field and is not "ok", the
+ * data is skipped and no document is changed.
+ *
+ * @author Johann Petrak
+ */
+public class ChangeLogApplier {
+
+  protected final JsonFactory jsonFactory = new JsonFactory();
+  protected final MethodHandle newOffsetMapper;
+  protected final MethodHandle convertToJava;
+
+  /**
+   * The status and error information of a response.
+   */
+  public static class Response {
+
+    public String status;
+    public String error;
+    public String info;
+    public Object stacktrace;
+    /**
+     * The number of changelogs which were applied.
+     */
+    public int nrChangeLogs;
+    /**
+     * Any other fields of the response.
+     */
+    public Map<String, Object> other = new LinkedHashMap<>();
+  }
+
+  /**
+   * Create an applier that uses the bdoc classes from the given class loader.
+   *
+   * @param bdocClassLoader the class loader of the format-bdoc plugin
+   */
+  public ChangeLogApplier(ClassLoader bdocClassLoader) {
+    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    try {
+      Class<?> mapperClass = bdocClassLoader.loadClass("gate.lib.basicdocument.OffsetMapper");
+      newOffsetMapper = lookup.findConstructor(mapperClass,
+              MethodType.methodType(void.class, String.class));
+      convertToJava = lookup.findVirtual(mapperClass, "convertToJava",
+              MethodType.methodType(int.class, int.class));
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+      throw new GateRuntimeException("Could not access the OffsetMapper of the format-bdoc plugin", ex);
+    }
+  }
+
+  /**
+   * Parse an execute or execute_batch response and apply the changelogs.
+   *
+   * For an execute response, the "data" field must contain a single changelog
+   * which gets applied to the only document in the list. For an execute_batch
+   * response, it must contain a list of changelogs, one for each document.
+   * The caller must check the status and the number of changelogs applied;
+   * see the class description for what has been changed if they are wrong.
+   *
+   * @param json the JSON response
+   * @param docs the documents the changelogs should get applied to
+   * @param batch true if this is the response to an execute_batch request
+   * @return the status information from the response
+   */
+  public Response applyResponse(String json, List<Document> docs, boolean batch) {
+    Response response = new Response();
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        switch (field) {
+          case "status":
+            response.status = parser.getValueAsString();
+            break;
+          case "error":
+            response.error = parser.getValueAsString();
+            break;
+          case "info":
+            response.info = parser.getValueAsString();
+            break;
+          case "data":
+            if (token == JsonToken.VALUE_NULL) {
+              break;
+            }
+            if (response.status != null && !"ok".equals(response.status)) {
+              // do not change anything for a failed request
+              parser.skipChildren();
+              break;
+            }
+            if (batch) {
+              expect(parser, token, JsonToken.START_ARRAY);
+              while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (response.nrChangeLogs >= docs.size()) {
+                  throw new GateRuntimeException("Sent " + docs.size()
+                          + " documents but got more changelogs back");
+                }
+                applyChangeLog(parser, docs.get(response.nrChangeLogs));
+                response.nrChangeLogs++;
+              }
+            } else {
+              applyChangeLog(parser, docs.get(0));
+              response.nrChangeLogs++;
+            }
+            break;
+          default:
+            Object value = readValue(parser);
+            if ("stacktrace".equals(field)) {
+              response.stacktrace = value;
+            } else {
+              response.other.put(field, value);
+            }
+        }
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not parse execute response JSON", ex);
+    }
+    return response;
+  }
+
+  /**
+   * Read a JSON changelog from a stream and apply it to the document.
+   *
+   * @param in the stream containing the changelog
+   * @param doc the document to change
+   */
+  public void applyChangeLog(InputStream in, Document doc) {
+    try (JsonParser parser = jsonFactory.createParser(in)) {
+      parser.nextToken();
+      applyChangeLog(parser, doc);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not parse changelog JSON", ex);
+    }
+  }
+
+  /**
+   * Apply a changelog which has already been decoded into a map, e.g. from
+   * a MsgPack response.
+   *
+   * @param chlog the changelog map with the fields "offset_type" and
+   * "changes"
+   * @param doc the document to change
+   */
+  @SuppressWarnings("unchecked")
+  public void applyChangeLog(Map<String, Object> chlog, Document doc) {
+    DocumentChanger changer = new DocumentChanger(doc);
+    Object offsetType = chlog.get("offset_type");
+    if (offsetType != null) {
+      changer.setOffsetType(offsetType.toString());
+    }
+    Object changes = chlog.get("changes");
+    if (changes == null) {
+      return;
+    }
+    if (!(changes instanceof List)) {
+      throw new GateRuntimeException("Changes of the changelog are not a list");
+    }
+    for (Object change : (List<Object>) changes) {
+      if (!(change instanceof Map)) {
+        throw new GateRuntimeException("Change of the changelog is not a map: " + change);
+      }
+      changer.apply((Map<String, Object>) change);
+    }
+  }
+
+  /**
+   * Apply the changelog the parser is positioned at to the document.
+   *
+   * The parser must be at the START_OBJECT token of the changelog and is
+   * at the matching END_OBJECT token when this returns.
+   *
+   * @param parser the parser
+   * @param doc the document to change
+   * @throws IOException if the JSON cannot be parsed
+   */
+  public void applyChangeLog(JsonParser parser, Document doc) throws IOException {
+    expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    DocumentChanger changer = new DocumentChanger(doc);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if ("changes".equals(field) && token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+          changer.apply(readChange(parser));
+        }
+      } else if ("offset_type".equals(field)) {
+        changer.setOffsetType(parser.getValueAsString());
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Read the fields of a single change into a map.
+   *
+   * @param parser parser positioned at the START_OBJECT of the change
+   * @return map of the change fields
+   * @throws IOException if the JSON cannot be parsed
+   */
+  protected Map<String, Object> readChange(JsonParser parser) throws IOException {
+    Map<String, Object> change = new LinkedHashMap<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      change.put(field, readValue(parser));
+    }
+    return change;
+  }
+
+  /**
+   * Read the value at the current token, including nested maps and lists.
+   *
+   * Integral numbers get represented as the smallest fitting type, floating
+   * point numbers as Double, just like JSON.std does.
+   *
+   * @param parser parser positioned at the first token of the value
+   * @return the value
+   * @throws IOException if the JSON cannot be parsed
+   */
+  public static Object readValue(JsonParser parser) throws IOException {
+    switch (parser.currentToken()) {
+      case START_OBJECT: {
+        Map<String, Object> map = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String key = parser.getCurrentName();
+          parser.nextToken();
+          map.put(key, readValue(parser));
+        }
+        return map;
+      }
+      case START_ARRAY: {
+        List<Object> list = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          list.add(readValue(parser));
+        }
+        return list;
+      }
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new GateRuntimeException("Unexpected JSON token " + parser.currentToken()
+                + " at " + parser.getCurrentLocation());
+    }
+  }
+
+  private static void expect(JsonParser parser, JsonToken got, JsonToken expected) {
+    if (got != expected) {
+      throw new GateRuntimeException("Expected " + expected + " but got " + got
+              + " at " + parser.getCurrentLocation());
+    }
+  }
+
+  /**
+   * Applies the individual changes of one changelog to one document.
+   */
+  protected class DocumentChanger {
+
+    private final Document doc;
+    private String offsetType = null;
+    // true if we had to convert offsets before knowing the offset type
+    private boolean offsetTypeAssumed = false;
+    // null until needed, the content has no supplementary characters if
+    // the mapping is the identity
+    private Object offsetMapper = null;
+    private boolean identityOffsets = false;
+
+    DocumentChanger(Document doc) {
+      this.doc = doc;
+    }
+
+    void setOffsetType(String type) {
+      if (offsetTypeAssumed && !"p".equals(type) && !identityOffsets) {
+        throw new GateRuntimeException("Changelog with offset type " + type
+                + " got applied with Python offsets before the offset type was known");
+      }
+      offsetType = type;
+    }
+
+    private long convertOffset(int offset) {
+      if (offsetType == null) {
+        // the Python side always creates changelogs with Python offsets
+        offsetTypeAssumed = true;
+      } else if (!"p".equals(offsetType)) {
+        return offset;
+      }
+      if (offsetMapper == null && !identityOffsets) {
+        String content = doc.getContent().toString();
+        if (content.length() == content.codePointCount(0, content.length())) {
+          identityOffsets = true;
+        } else {
+          try {
+            offsetMapper = newOffsetMapper.invoke(content);
+          } catch (Throwable ex) {
+            throw new GateRuntimeException("Could not create offset mapper", ex);
+          }
+        }
+      }
+      if (identityOffsets) {
+        return offset;
+      }
+      try {
+        return (int) convertToJava.invoke(offsetMapper, offset);
+      } catch (Throwable ex) {
+        throw new GateRuntimeException("Could not convert offset " + offset, ex);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    void apply(Map<String, Object> change) {
+      String command = (String) change.get("command");
+      String setName = (String) change.get("set");
+      AnnotationSet set = null;
+      if (setName != null) {
+        set = setName.isEmpty() ? doc.getAnnotations() : doc.getAnnotations(setName);
+      }
+      Integer id = change.get("id") == null ? null : ((Number) change.get("id")).intValue();
+      String feature = (String) change.get("feature");
+      Object value = change.get("value");
+      Annotation ann;
+      switch (command) {
+        case "doc-features:clear":
+          doc.getFeatures().clear();
+          break;
+        case "ann-features:clear":
+          if (set != null && (ann = set.get(id)) != null) {
+            ann.getFeatures().clear();
+          }
+          break;
+        case "doc-feature:set":
+          doc.getFeatures().put(feature, value);
+          break;
+        case "name:set":
+          String name = (String) change.get("name");
+          if (name != null && !name.trim().isEmpty()) {
+            doc.setName(name);
+          }
+          break;
+        case "ann-feature:set":
+          if (set != null && (ann = set.get(id)) != null) {
+            ann.getFeatures().put(feature, value);
+          }
+          break;
+        case "doc-feature:remove":
+          doc.getFeatures().remove(feature);
+          break;
+        case "ann-feature:remove":
+          if (set != null) {
+            ann = set.get(id);
+            if (ann == null) {
+              throw new GateRuntimeException("Annotation does not exist with id " + id);
+            }
+            ann.getFeatures().remove(feature);
+          }
+          break;
+        case "annotation:add":
+          addAnnotation(set, id,
+                  ((Number) change.get("start")).intValue(),
+                  ((Number) change.get("end")).intValue(),
+                  (String) change.get("type"),
+                  (Map<String, Object>) change.get("features"));
+          break;
+        case "annotation:remove":
+          if (set != null) {
+            set.remove(set.get(id));
+          }
+          break;
+        case "annotations:clear":
+          if (set != null) {
+            set.clear();
+          }
+          break;
+        case "annotations:remove":
+          if (setName != null) {
+            if (setName.isEmpty()) {
+              set.clear();
+            } else {
+              doc.removeAnnotationSet(setName);
+            }
+          }
+          break;
+        default:
+          // ignore changes we do not know about, like GateDocumentUpdater
+      }
+    }
+
+    private void addAnnotation(AnnotationSet set, Integer id, int start, int end,
+            String type, Map<String, Object> features) {
+      Long from = convertOffset(start);
+      Long to = convertOffset(end);
+      FeatureMap fm = Utils.toFeatureMap(features == null ? new LinkedHashMap<>() : features);
+      try {
+        if (set.get(id) == null) {
+          set.add(id, from, to, type, fm);
+        } else {
+          set.add(from, to, type, fm);
+        }
+      } catch (InvalidOffsetException ex) {
+        throw new GateRuntimeException("Cannot add annotation", ex);
+      }
+    }
+  }
+
+}
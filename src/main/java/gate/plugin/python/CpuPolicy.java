@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Divide the available CPUs between the Python processes of the duplicates
+ * of a PR.
+ *
+ * Numerical libraries like numpy, torch or spaCy start a pool with one
+ * thread per core in each process, so with one process per duplicate the
+ * CPUs get heavily oversubscribed. This computes the number of threads each
+ * process should use, the environment variables which limit the thread
+ * pools, and optionally a set of CPUs each process gets bound to.
+ *
+ * @author Johann Petrak
+ */
+public class CpuPolicy {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CpuPolicy.class);
+
+  /**
+   * The environment variables which limit the thread pools of the common
+   * numerical libraries.
+   */
+  public static final String[] THREAD_VARIABLES = {
+    "OMP_NUM_THREADS", "MKL_NUM_THREADS", "OPENBLAS_NUM_THREADS"
+  };
+
+  private CpuPolicy() {
+  }
+
+  /**
+   * Get the CPUs this JVM may run on.
+   *
+   * On Linux this is read from the Cpus_allowed_list of /proc/self/status,
+   * otherwise the CPUs are assumed to be numbered from 0 to the number of
+   * available processors minus one.
+   *
+   * @return the CPU numbers
+   */
+  public static List<Integer> getAllowedCpus() {
+    File status = new File("/proc/self/status");
+    if (status.exists()) {
+      try {
+        for (String line : Files.readAllLines(status.toPath())) {
+          if (line.startsWith("Cpus_allowed_list:")) {
+            List<Integer> ret = parseCpuList(line.substring("Cpus_allowed_list:".length()).trim());
+            if (!ret.isEmpty()) {
+              return ret;
+            }
+          }
+        }
+      } catch (IOException | RuntimeException ex) {
+        // use the fallback below
+      }
+    }
+    List<Integer> ret = new ArrayList<>();
+    for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+      ret.add(i);
+    }
+    return ret;
+  }
+
+  /**
+   * Parse a CPU list like "0-3,8,10-11".
+   *
+   * @param list the list
+   * @return the CPU numbers
+   */
+  public static List<Integer> parseCpuList(String list) {
+    List<Integer> ret = new ArrayList<>();
+    for (String range : list.split(",")) {
+      range = range.trim();
+      if (range.isEmpty()) {
+        continue;
+      }
+      int dash = range.indexOf('-');
+      if (dash < 0) {
+        ret.add(Integer.parseInt(range));
+      } else {
+        int from = Integer.parseInt(range.substring(0, dash));
+        int to = Integer.parseInt(range.substring(dash + 1));
+        for (int i = from; i <= to; i++) {
+          ret.add(i);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Get the number of threads each process should use.
+   *
+   * @param nrCpus the number of CPUs available
+   * @param nrDuplicates the number of duplicates
+   * @return the number of threads, at least 1
+   */
+  public static int getThreadsPerProcess(int nrCpus, int nrDuplicates) {
+    return Math.max(1, nrCpus / Math.max(1, nrDuplicates));
+  }
+
+  /**
+   * Get the CPUs a duplicate should be bound to.
+   *
+   * The CPUs are divided into consecutive slices of equal size, if there are
+   * more duplicates than CPUs, several duplicates share a CPU.
+   *
+   * @param cpus the available CPUs
+   * @param duplicate the duplicate id, starting with 0
+   * @param nrDuplicates the number of duplicates
+   * @return the CPUs for the duplicate
+   */
+  public static List<Integer> getCpusForDuplicate(List<Integer> cpus, int duplicate, int nrDuplicates) {
+    int size = getThreadsPerProcess(cpus.size(), nrDuplicates);
+    int start = (duplicate * size) % cpus.size();
+    List<Integer> ret = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      ret.add(cpus.get((start + i) % cpus.size()));
+    }
+    return ret;
+  }
+
+  /**
+   * Bind all threads of a process to a set of CPUs.
+   *
+   * This runs "taskset" and is therefore only available on Linux. Failures
+   * are logged but otherwise ignored.
+   *
+   * @param pid the process id
+   * @param cpus the CPUs
+   * @return true if the affinity was set
+   */
+  public static boolean setAffinity(long pid, List<Integer> cpus) {
+    if (pid < 0 || cpus.isEmpty()) {
+      return false;
+    }
+    StringBuilder list = new StringBuilder();
+    for (Integer cpu : cpus) {
+      if (list.length() > 0) {
+        list.append(',');
+      }
+      list.append(cpu);
+    }
+    ProcessBuilder builder = new ProcessBuilder(
+            "taskset", "-a", "-p", "-c", list.toString(), Long.toString(pid));
+    builder.redirectErrorStream(true);
+    try {
+      Process taskset = builder.start();
+      // taskset only prints a line or two, read it so it cannot block
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (InputStream in = taskset.getInputStream()) {
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          output.write(buffer, 0, n);
+        }
+      }
+      if (!taskset.waitFor(10, TimeUnit.SECONDS)) {
+        taskset.destroyForcibly();
+        LOGGER.warn("Setting the CPU affinity of process " + pid + " did not finish in time");
+        return false;
+      }
+      if (taskset.exitValue() != 0) {
+        LOGGER.warn("Could not set the CPU affinity of process " + pid + ": " 
+                + output.toString("UTF-8").trim());
+        return false;
+      }
+      return true;
+    } catch (IOException ex) {
+      LOGGER.warn("Could not run taskset to set the CPU affinity of process " + pid, ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.event.AnnotationEvent;
+import gate.event.AnnotationListener;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
+import gate.event.DocumentEvent;
+import gate.event.DocumentListener;
+import gate.event.FeatureMapListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of serialized documents which is shared by all PythonPrs in the
+ * JVM.
+ *
+ * When several PythonPrs with their own processes run on the same document
+ * one after the other, each would serialize the whole document again. This
+ * cache keeps the serialized form of the most recently sent documents,
+ * separately for each combination of annotation sets. Listeners on the
+ * document, its feature map, its annotation sets and all annotations drop
+ * the cached forms whenever anything changes, including the changes applied
+ * from a changelog, so a cached form is only re-used if nothing modified
+ * the document since it was serialized.
+ * <p>
+ * The listeners are added when a document is first cached and removed
+ * again when it is evicted or the cache is cleared, so the number of
+ * documents with listeners is limited by the capacity.
+ * <p>
+ * Like the model servers in the ProcessRegistry, the shared cache is 
+ * reference counted: each PR acquires it for a run and releases it when
+ * the run finishes, and only the last release clears it and resets the
+ * capacity, so a PR finishing does not drop the documents of PRs which are
+ * still running.
+ *
+ * @author Johann Petrak
+ */
+public class DocumentCache {
+
+  /**
+   * The cache shared by all PythonPrs.
+   */
+  public static final DocumentCache SHARED = new DocumentCache();
+
+  // the least recently used entry gets evicted when the cache is full
+  private final Map<Document, Entry> entries = new IdentityHashMap<>();
+  private long lastUse = 0;
+  private int capacity = 0;
+  private long nrHits = 0;
+  private long nrMisses = 0;
+  private int nrUsers = 0;
+
+  /**
+   * Make sure the cache can hold at least this many documents.
+   *
+   * @param value the number of documents
+   */
+  public synchronized void ensureCapacity(int value) {
+    capacity = Math.max(capacity, value);
+  }
+
+  /**
+   * Start using the cache and make sure it can hold at least this many
+   * documents.
+   *
+   * Each call must be matched by a call to release.
+   *
+   * @param value the number of documents
+   */
+  public synchronized void acquire(int value) {
+    nrUsers++;
+    ensureCapacity(value);
+  }
+
+  /**
+   * Stop using the cache.
+   *
+   * When the last user releases the cache, all documents are removed and
+   * the capacity is reset, until the next user acquires it.
+   */
+  public synchronized void release() {
+    if (nrUsers > 0) {
+      nrUsers--;
+    }
+    if (nrUsers == 0) {
+      clear();
+      capacity = 0;
+    }
+  }
+
+  /**
+   * Get the number of users which have acquired the cache and not released
+   * it yet.
+   *
+   * @return number of users
+   */
+  public synchronized int getNrUsers() {
+    return nrUsers;
+  }
+
+  /**
+   * Get the serialized form of a document if it is cached and the document
+   * has not changed since.
+   *
+   * @param doc the document
+   * @param key the key for the annotation sets included
+   * @return the serialized document or null
+   */
+  public synchronized byte[] get(Document doc, String key) {
+    Entry entry = entries.get(doc);
+    byte[] ret = null;
+    if (entry != null) {
+      entry.lastUse = ++lastUse;
+      ret = entry.forms.get(key);
+    }
+    if (ret == null) {
+      nrMisses++;
+    } else {
+      nrHits++;
+    }
+    return ret;
+  }
+
+  /**
+   * Store the serialized form of a document.
+   *
+   * This must be called before anything modifies the document after it was
+   * serialized.
+   *
+   * @param doc the document
+   * @param key the key for the annotation sets included
+   * @param bytes the serialized document
+   */
+  public synchronized void put(Document doc, String key, byte[] bytes) {
+    if (capacity <= 0) {
+      return;
+    }
+    Entry entry = entries.get(doc);
+    if (entry == null) {
+      while (entries.size() >= capacity) {
+        evictOldest();
+      }
+      entry = new Entry(doc);
+      entries.put(doc, entry);
+    }
+    entry.lastUse = ++lastUse;
+    entry.forms.put(key, bytes);
+  }
+
+  /**
+   * Remove all documents from the cache.
+   */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      entry.detach();
+    }
+    entries.clear();
+  }
+
+  /**
+   * Get the number of times a serialized document could be re-used.
+   *
+   * @return number of hits
+   */
+  public synchronized long getNrHits() {
+    return nrHits;
+  }
+
+  /**
+   * Get the number of times a document had to be serialized.
+   *
+   * @return number of misses
+   */
+  public synchronized long getNrMisses() {
+    return nrMisses;
+  }
+
+  /**
+   * Make a key for a set of annotation set names.
+   *
+   * @param setsToUse the set names, null or containing "*" for all sets
+   * @return the key
+   */
+  public static String makeKey(Set<String> setsToUse) {
+    if (setsToUse == null || setsToUse.contains("*")) {
+      return "*";
+    }
+    List<String> names = new ArrayList<>();
+    for (String name : setsToUse) {
+      names.add(name == null ? "" : "\u0000" + name);
+    }
+    Collections.sort(names);
+    return names.toString();
+  }
+
+  private void evictOldest() {
+    Iterator<Map.Entry<Document, Entry>> it = entries.entrySet().iterator();
+    Map.Entry<Document, Entry> oldest = null;
+    while (it.hasNext()) {
+      Map.Entry<Document, Entry> next = it.next();
+      if (oldest == null || next.getValue().lastUse < oldest.getValue().lastUse) {
+        oldest = next;
+      }
+    }
+    if (oldest != null) {
+      oldest.getValue().detach();
+      entries.remove(oldest.getKey());
+    }
+  }
+
+  /**
+   * The cached forms of one document and the listeners which invalidate
+   * them.
+   */
+  private class Entry implements DocumentListener, AnnotationSetListener, AnnotationListener, 
+          FeatureMapListener {
+
+    private final Document doc;
+    private final Map<String, byte[]> forms = new HashMap<>();
+    private long lastUse;
+
+    Entry(Document doc) {
+      this.doc = doc;
+      doc.addDocumentListener(this);
+      doc.getFeatures().addFeatureMapListener(this);
+      attach(doc.getAnnotations());
+      for (String name : doc.getAnnotationSetNames()) {
+        attach(doc.getAnnotations(name));
+      }
+    }
+
+    private void attach(AnnotationSet set) {
+      set.addAnnotationSetListener(this);
+      for (Annotation ann : set) {
+        ann.addAnnotationListener(this);
+      }
+    }
+
+    private void detach(AnnotationSet set) {
+      set.removeAnnotationSetListener(this);
+      for (Annotation ann : set) {
+        ann.removeAnnotationListener(this);
+      }
+    }
+
+    void detach() {
+      doc.removeDocumentListener(this);
+      doc.getFeatures().removeFeatureMapListener(this);
+      detach(doc.getAnnotations());
+      for (String name : doc.getAnnotationSetNames()) {
+        detach(doc.getAnnotations(name));
+      }
+    }
+
+    private void changed() {
+      synchronized (DocumentCache.this) {
+        forms.clear();
+      }
+    }
+
+    @Override
+    public void annotationSetAdded(DocumentEvent e) {
+      attach(doc.getAnnotations(e.getAnnotationSetName()));
+      changed();
+    }
+
+    @Override
+    public void annotationSetRemoved(DocumentEvent e) {
+      changed();
+    }
+
+    @Override
+    public void contentEdited(DocumentEvent e) {
+      changed();
+    }
+
+    @Override
+    public void annotationAdded(AnnotationSetEvent e) {
+      e.getAnnotation().addAnnotationListener(this);
+      changed();
+    }
+
+    @Override
+    public void annotationRemoved(AnnotationSetEvent e) {
+      e.getAnnotation().removeAnnotationListener(this);
+      changed();
+    }
+
+    @Override
+    public void annotationUpdated(AnnotationEvent e) {
+      changed();
+    }
+
+    @Override
+    public void featureMapUpdated() {
+      changed();
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.util.GateRuntimeException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Which parts of a document get sent to the Python process.
+ *
+ * The annotation sets are selected with setsToUse, the projection further
+ * restricts what is sent from those sets: only annotations of the given
+ * types, only the given features of annotations, and optionally no
+ * document features or no document text. Feature names can be given for all
+ * types ("name") or for one type only ("Type:name").
+ * <p>
+ * A projection comes from the parameters of the PR and can be completed by
+ * a declaration the Python program returns in its start response, which
+ * only applies to those parts the parameters do not restrict.
+ * Instances are immutable.
+ *
+ * @author Johann Petrak
+ */
+public class DocumentProjection {
+
+  /**
+   * The projection which sends everything.
+   */
+  public static final DocumentProjection ALL = new DocumentProjection(null, null, true, true);
+
+  // null means all types or features
+  private final Set<String> types;
+  private final Set<String> features;
+  private final boolean documentFeatures;
+  private final boolean text;
+
+  /**
+   * Create a projection.
+   *
+   * @param types the annotation types to send, null or empty for all
+   * @param features the feature names to send, either "name" or 
+   * "Type:name", null or empty for all
+   * @param documentFeatures if the document features should be sent
+   * @param text if the document text should be sent
+   */
+  public DocumentProjection(Collection<String> types, Collection<String> features,
+          boolean documentFeatures, boolean text) {
+    this.types = types == null || types.isEmpty() ? null : new HashSet<>(types);
+    this.features = features == null || features.isEmpty() ? null : new HashSet<>(features);
+    this.documentFeatures = documentFeatures;
+    this.text = text;
+  }
+
+  /**
+   * Create a projection from the declaration in a start response.
+   *
+   * The declaration is a map with the optional keys "types" and "features"
+   * (lists of strings) and "document_features" and "text" (booleans).
+   *
+   * @param declaration the declaration, may be null
+   * @return the projection, ALL if the declaration is null
+   */
+  @SuppressWarnings("unchecked")
+  public static DocumentProjection fromDeclaration(Object declaration) {
+    if (declaration == null) {
+      return ALL;
+    }
+    if (!(declaration instanceof Map)) {
+      throw new GateRuntimeException("Projection declared by the Python program is not a map: " + declaration);
+    }
+    Map<String, Object> map = (Map<String, Object>) declaration;
+    return new DocumentProjection(getStrings(map, "types"), getStrings(map, "features"),
+            !Boolean.FALSE.equals(map.get("document_features")), !Boolean.FALSE.equals(map.get("text")));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Collection<String> getStrings(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    if (value == null) {
+      return null;
+    }
+    if (!(value instanceof Collection)) {
+      throw new GateRuntimeException("Projection declared by the Python program: " + key + " is not a list");
+    }
+    return (Collection<String>) value;
+  }
+
+  /**
+   * Check if this projection sends everything.
+   *
+   * @return true if nothing is restricted
+   */
+  public boolean isAll() {
+    return types == null && features == null && documentFeatures && text;
+  }
+
+  /**
+   * Check if annotations of a type are sent.
+   *
+   * @param type the annotation type
+   * @return true if sent
+   */
+  public boolean keepType(String type) {
+    return types == null || types.contains(type);
+  }
+
+  /**
+   * Check if the features of annotations are restricted.
+   *
+   * @return true if only some features are sent
+   */
+  public boolean restrictsFeatures() {
+    return features != null;
+  }
+
+  /**
+   * Check if a feature of an annotation is sent.
+   *
+   * @param type the annotation type
+   * @param name the feature name
+   * @return true if the feature is sent
+   */
+  public boolean keepFeature(String type, String name) {
+    return features == null || features.contains(name) || features.contains(type + ":" + name);
+  }
+
+  /**
+   * Get the features of an annotation which are sent.
+   *
+   * @param type the annotation type
+   * @param fm the features of the annotation, may be null
+   * @return a new map with the features to send, or the original map if
+   * features are not restricted
+   */
+  public Map<String, Object> keepFeatures(String type, Map<String, Object> fm) {
+    if (features == null || fm == null) {
+      return fm;
+    }
+    Map<String, Object> ret = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : fm.entrySet()) {
+      String name = entry.getKey();
+      if (keepFeature(type, name)) {
+        ret.put(name, entry.getValue());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Check if the document features are sent.
+   *
+   * @return true if sent
+   */
+  public boolean keepDocumentFeatures() {
+    return documentFeatures;
+  }
+
+  /**
+   * Check if the document text is sent.
+   *
+   * @return true if sent
+   */
+  public boolean keepText() {
+    return text;
+  }
+
+  /**
+   * Create the projection which sends everything either of two projections
+   * sends, e.g. for the PRs of a fusion group.
+   *
+   * @param other the other projection
+   * @return the combined projection
+   */
+  public DocumentProjection union(DocumentProjection other) {
+    return new DocumentProjection(union(types, other.types), union(features, other.features),
+            documentFeatures || other.documentFeatures, text || other.text);
+  }
+
+  private static Set<String> union(Set<String> a, Set<String> b) {
+    if (a == null || b == null) {
+      return null;
+    }
+    Set<String> ret = new HashSet<>(a);
+    ret.addAll(b);
+    return ret;
+  }
+
+  /**
+   * Complete this projection with a declaration from the Python program.
+   *
+   * The types and features of the declaration are only used if this
+   * projection does not restrict them, the document features and text are
+   * only sent if both want them.
+   *
+   * @param declared the declared projection
+   * @return the completed projection
+   */
+  public DocumentProjection restrictBy(DocumentProjection declared) {
+    return new DocumentProjection(types == null ? declared.types : types,
+            features == null ? declared.features : features,
+            documentFeatures && declared.documentFeatures, text && declared.text);
+  }
+
+  /**
+   * Get a key which is equal for projections which send the same.
+   *
+   * @return key
+   */
+  public String getKey() {
+    if (isAll()) {
+      return "";
+    }
+    return (types == null ? "*" : new TreeSet<>(types)) + "|"
+            + (features == null ? "*" : new TreeSet<>(features)) + "|" + documentFeatures + "|" + text;
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentProjection{types=" + (types == null ? "*" : new TreeSet<>(types))
+            + ", features=" + (features == null ? "*" : new TreeSet<>(features))
+            + ", documentFeatures=" + documentFeatures + ", text=" + text + "}";
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.plugin.python.PythonPr.ExchangeFormat;
+import gate.util.GateRuntimeException;
+
+/**
+ * The combination of parameters which determines how documents get
+ * processed by a PythonPr.
+ *
+ * This is the one place where the combinations of the exchange format,
+ * batching, requests in flight, shared files, the model server and the
+ * recovery and process options are checked, and where the execution
+ * strategy for them is chosen.
+ *
+ * @author Johann Petrak
+ */
+public class ExecutionMode {
+
+  /**
+   * The kinds of execution strategies.
+   */
+  public static enum Kind {
+    /**
+     * Each request is sent as JSON and the changes are applied before the 
+     * next request.
+     */
+    JSON,
+    /**
+     * Each request is sent as MsgPack and the changes are applied before
+     * the next request.
+     */
+    MSGPACK,
+    /**
+     * Several MsgPack requests are in flight at the same time.
+     */
+    IN_FLIGHT,
+    /**
+     * The documents are processed by a model server shared with other
+     * duplicates.
+     */
+    MODEL_SERVER
+  }
+
+  private ExchangeFormat exchangeFormat = ExchangeFormat.JSON;
+  private int batchSize = 1;
+  private int maxInFlight = 1;
+  private int sharedFileThreshold = 0;
+  private boolean modelServer = false;
+  private boolean forkServer = false;
+  private int documentTimeout = 0;
+  private int maxRetries = 0;
+  private boolean standbyProcess = false;
+  private boolean cpuAffinity = false;
+  private boolean recycling = false;
+  private boolean deferredChangesSafe = false;
+  private boolean windows = PythonPr.isOsWindows();
+
+  /**
+   * Get the execution mode from the parameters of a PR.
+   *
+   * @param pr the PR
+   * @return the execution mode
+   */
+  public static ExecutionMode of(PythonPr pr) {
+    ExecutionMode ret = new ExecutionMode();
+    ret.setExchangeFormat(pr.getExchangeFormat());
+    ret.setBatchSize(pr.getBatchSize());
+    ret.setMaxInFlight(pr.getMaxInFlight());
+    ret.setSharedFileThreshold(pr.getSharedFileThreshold());
+    ret.setModelServer(pr.getModelServer());
+    ret.setForkServer(pr.getForkServer());
+    ret.setDocumentTimeout(pr.getDocumentTimeout());
+    ret.setMaxRetries(pr.getMaxRetries());
+    ret.setStandbyProcess(pr.getStandbyProcess());
+    ret.setCpuAffinity(pr.getCpuAffinity());
+    ret.setRecycling(pr.getRecycleAfterDocuments() > 0 || pr.getRecycleAfterSeconds() > 0 
+            || pr.getRecycleMaxRss() > 0);
+    ret.setDeferredChangesSafe(pr.deferredChangesSafe);
+    return ret;
+  }
+
+  /**
+   * Check that the parameters can be used together.
+   *
+   * @throws GateRuntimeException if they cannot
+   */
+  public void check() {
+    if (maxInFlight > 1 && exchangeFormat != ExchangeFormat.MSGPACK) {
+      throw new GateRuntimeException("maxInFlight larger than 1 requires the MSGPACK exchangeFormat");
+    }
+    if (batchSize > 1 && !deferredChangesSafe) {
+      throw new GateRuntimeException("batchSize larger than 1 can only be used if the PythonPr is the last "
+              + "processing resource of the pipeline and the corpus is a transient corpus "
+              + "which contains all documents");
+    }
+    if (forkServer && windows) {
+      throw new GateRuntimeException("forkServer is not supported on Windows");
+    }
+    if (modelServer) {
+      String unsupported = null;
+      if (maxInFlight > 1) {
+        unsupported = "maxInFlight";
+      } else if (forkServer) {
+        unsupported = "forkServer";
+      } else if (sharedFileThreshold > 0) {
+        unsupported = "sharedFileThreshold";
+      } else if (documentTimeout > 0) {
+        unsupported = "documentTimeout";
+      } else if (maxRetries > 0) {
+        unsupported = "maxRetries";
+      } else if (standbyProcess) {
+        unsupported = "standbyProcess";
+      } else if (cpuAffinity) {
+        unsupported = "cpuAffinity";
+      } else if (recycling) {
+        unsupported = "recycling";
+      }
+      if (unsupported != null) {
+        throw new GateRuntimeException("modelServer cannot be used together with " + unsupported);
+      }
+    }
+  }
+
+  /**
+   * Get the kind of execution strategy used for documents which are not
+   * handed over in shared files.
+   *
+   * @return the kind
+   */
+  public Kind getKind() {
+    if (modelServer) {
+      return Kind.MODEL_SERVER;
+    } else if (maxInFlight > 1) {
+      return Kind.IN_FLIGHT;
+    } else if (exchangeFormat == ExchangeFormat.MSGPACK) {
+      return Kind.MSGPACK;
+    }
+    return Kind.JSON;
+  }
+
+  /**
+   * Create the execution strategy for documents which are not handed over
+   * in shared files.
+   *
+   * @param pr the PR which processes the documents
+   * @return the strategy
+   */
+  public ExecutionStrategy createStrategy(PythonPr pr) {
+    switch (getKind()) {
+      case MODEL_SERVER:
+        return new ModelServerExecution(pr, exchangeFormat == ExchangeFormat.MSGPACK 
+                ? new MsgPackExecution(pr) : new JsonExecution(pr));
+      case IN_FLIGHT:
+        return new InFlightExecution(pr);
+      case MSGPACK:
+        return new MsgPackExecution(pr);
+      default:
+        return new JsonExecution(pr);
+    }
+  }
+
+  /**
+   * Check if documents get collected into batches.
+   *
+   * @return true if more than one document is sent per request
+   */
+  public boolean isBatching() {
+    return batchSize > 1;
+  }
+
+  /**
+   * Check if a document gets handed over in a shared file.
+   *
+   * @param documentSize the number of characters of the document
+   * @return true if a shared file is used
+   */
+  public boolean useSharedFile(long documentSize) {
+    return sharedFileThreshold > 0 && documentSize >= sharedFileThreshold;
+  }
+
+  /**
+   * Set the exchange format.
+   *
+   * @param value the exchange format
+   */
+  public void setExchangeFormat(ExchangeFormat value) {
+    exchangeFormat = value;
+  }
+
+  /**
+   * Set the number of documents per request.
+   *
+   * @param value the batch size
+   */
+  public void setBatchSize(int value) {
+    batchSize = value;
+  }
+
+  /**
+   * Set the number of requests which can be in flight.
+   *
+   * @param value the number of requests
+   */
+  public void setMaxInFlight(int value) {
+    maxInFlight = value;
+  }
+
+  /**
+   * Set the document size from which on documents are handed over in
+   * files.
+   *
+   * @param value the number of characters, 0 to never use files
+   */
+  public void setSharedFileThreshold(int value) {
+    sharedFileThreshold = value;
+  }
+
+  /**
+   * Set if a model server is used.
+   *
+   * @param value true to use a model server
+   */
+  public void setModelServer(boolean value) {
+    modelServer = value;
+  }
+
+  /**
+   * Set if processes are forked from a fork server.
+   *
+   * @param value true to use a fork server
+   */
+  public void setForkServer(boolean value) {
+    forkServer = value;
+  }
+
+  /**
+   * Set the document timeout.
+   *
+   * @param value the timeout in seconds, 0 for no timeout
+   */
+  public void setDocumentTimeout(int value) {
+    documentTimeout = value;
+  }
+
+  /**
+   * Set the number of retries after the process died.
+   *
+   * @param value the number of retries
+   */
+  public void setMaxRetries(int value) {
+    maxRetries = value;
+  }
+
+  /**
+   * Set if a standby process is kept.
+   *
+   * @param value true to keep a standby process
+   */
+  public void setStandbyProcess(boolean value) {
+    standbyProcess = value;
+  }
+
+  /**
+   * Set if processes are bound to CPUs.
+   *
+   * @param value true to bind processes to CPUs
+   */
+  public void setCpuAffinity(boolean value) {
+    cpuAffinity = value;
+  }
+
+  /**
+   * Set if processes get recycled after a limit is reached.
+   *
+   * @param value true if any recycling limit is set
+   */
+  public void setRecycling(boolean value) {
+    recycling = value;
+  }
+
+  /**
+   * Set if the changes to documents may be applied after the PR has 
+   * returned from execute(), which is necessary for batches.
+   *
+   * @param value true if the PR is the last in the pipeline and the corpus
+   * keeps all documents in memory
+   */
+  public void setDeferredChangesSafe(boolean value) {
+    deferredChangesSafe = value;
+  }
+
+  /**
+   * Set if we run on Windows.
+   *
+   * @param value true for Windows
+   */
+  public void setWindows(boolean value) {
+    windows = value;
+  }
+
+  @Override
+  public String toString() {
+    return "ExecutionMode{kind=" + getKind() + ", exchangeFormat=" + exchangeFormat 
+            + ", batchSize=" + batchSize + ", maxInFlight=" + maxInFlight 
+            + ", sharedFileThreshold=" + sharedFileThreshold + "}";
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import java.util.List;
+
+/**
+ * How a PythonPr sends documents to the Python program and applies the
+ * changes it gets back.
+ *
+ * Which strategy is used is decided by the ExecutionMode. Timeouts and
+ * crashes of the Python process are handled by the ProcessRecovery of the
+ * PR, which the strategies call when waiting for a response fails.
+ *
+ * @author Johann Petrak
+ */
+public interface ExecutionStrategy {
+
+  /**
+   * Process documents.
+   *
+   * The changes have been applied to all documents when this returns.
+   *
+   * @param docs the documents, a single document unless batch is true
+   * @param batch if true, send an execute_batch request, otherwise an
+   * execute request
+   */
+  void execute(List<Document> docs, boolean batch);
+
+  /**
+   * Wait for all requests still in flight and apply the changes.
+   * 
+   * Requests are only left in flight if execute failed with an exception.
+   */
+  default void completeAll() {
+  }
+
+  /**
+   * Forget all requests still in flight without applying their changes.
+   */
+  default void abandonAll() {
+  }
+}
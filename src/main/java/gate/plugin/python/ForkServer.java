@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Python process which forks the processes for the duplicates of a PR.
+ *
+ * The fork server (zygote) gets started with "--mode forkserver", imports
+ * the program and runs the model-loading hook of the program once. Each
+ * duplicate then asks the fork server for a child process which connects
+ * back to the duplicate's LoopbackEndpoint, so all duplicates share the
+ * pages of the loaded model copy-on-write instead of each loading its own
+ * copy.
+ * <p>
+ * The fork server is shared between all duplicates of a PR. It gets started
+ * by the first duplicate which needs a process and stopped once the last
+ * forked child has been stopped. Messages with the fork server are always
+ * exchanged as JSON lines over standard input and output, standard output
+ * and error of the fork server and of all the forked children get copied
+ * to standard output.
+ *
+ * @author Johann Petrak
+ */
+public class ForkServer {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private Process4JsonLineStream process;
+  private String key;
+  private int nrChildren = 0;
+
+  /**
+   * Check if the fork server process is running.
+   *
+   * @return true if running
+   */
+  public synchronized boolean isAlive() {
+    return process != null && process.isAlive();
+  }
+
+  /**
+   * Make sure the fork server is running for the given command.
+   *
+   * If the fork server is already running with the same command and
+   * environment, nothing is done. If it is running with a different command
+   * it gets restarted, but only if there are no forked children anymore.
+   *
+   * @param command the command, must include "--mode forkserver"
+   * @param env additional environment variables
+   * @param preloadRequest the request which makes the process run the model
+   * loading hook, this is sent whenever the fork server gets started.
+   * @return the parsed response to the preload request if the fork server
+   * was started, null if it was already running
+   */
+  public synchronized Map<String, Object> ensureStarted(
+          List<String> command, Map<String, String> env, Map<String, Object> preloadRequest) {
+    String newKey = command + "\n" + env;
+    if (isAlive()) {
+      if (newKey.equals(key)) {
+        return null;
+      }
+      if (nrChildren > 0) {
+        throw new GateRuntimeException(
+                "Fork server still has " + nrChildren + " children, cannot restart with a different command");
+      }
+      stop();
+    }
+    process = Process4JsonLineStream.create(new File("."), env, command);
+    key = newKey;
+    Map<String, Object> response;
+    try {
+      response = request(preloadRequest);
+    } catch (RuntimeException ex) {
+      stop();
+      throw ex;
+    }
+    if (response == null) {
+      stop();
+    }
+    return response;
+  }
+
+  /**
+   * Fork a child which connects back to the endpoint.
+   *
+   * The child process behaves like a process started with "--mode socket":
+   * it connects to the host and port of the endpoint and sends the token.
+   *
+   * @param endpoint the endpoint the child should connect to
+   * @return the child process
+   */
+  public synchronized ForkedProcess fork(LoopbackEndpoint endpoint) {
+    if (!isAlive()) {
+      throw new GateRuntimeException("Fork server is not running");
+    }
+    Map<String, Object> request = new HashMap<>();
+    request.put("command", "fork");
+    request.put("host", endpoint.getHost());
+    request.put("port", endpoint.getPort());
+    request.put("token", endpoint.getToken());
+    Map<String, Object> response = request(request);
+    if (response == null || !"ok".equals(response.get("status"))) {
+      throw new GateRuntimeException("Fork server could not fork a child: "
+              + (response == null ? "no response" : response.get("error")));
+    }
+    Object pid = response.get("pid");
+    if (!(pid instanceof Number)) {
+      throw new GateRuntimeException("Fork server did not send the pid of the child");
+    }
+    nrChildren++;
+    return new ForkedProcess(((Number) pid).longValue());
+  }
+
+  /**
+   * Stop the fork server.
+   *
+   * Forked children are not affected by this.
+   */
+  public synchronized void stop() {
+    if (process != null) {
+      int exitValue = process.stop();
+      if (exitValue != 0) {
+        logger.info("Warning: python fork server ended with exit value " + exitValue);
+      }
+    }
+    process = null;
+    key = null;
+  }
+
+  /**
+   * Stop the fork server if there are no forked children.
+   */
+  public synchronized void stopIfUnused() {
+    if (nrChildren == 0) {
+      stop();
+    }
+  }
+
+  // a forked child was stopped, stop the fork server after the last one
+  private synchronized void childStopped() {
+    nrChildren--;
+    if (nrChildren <= 0) {
+      nrChildren = 0;
+      stop();
+    }
+  }
+
+  // send a request, return the parsed response or null if the fork server
+  // did not send one
+  private Map<String, Object> request(Map<String, Object> request) {
+    String responseJson = (String) process.process(request);
+    if (responseJson == null) {
+      return null;
+    }
+    try {
+      return JSON.std.mapFrom(responseJson);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not convert fork server response: " + responseJson, ex);
+    }
+  }
+
+  // send a signal to a child, returns false if the child is not known
+  // to the fork server anymore
+  private synchronized boolean signal(long pid, String signal) {
+    if (!isAlive()) {
+      return false;
+    }
+    Map<String, Object> request = new HashMap<>();
+    request.put("command", signal);
+    request.put("pid", pid);
+    Map<String, Object> response = request(request);
+    return response != null && "ok".equals(response.get("status"))
+            && Boolean.TRUE.equals(response.get("alive"));
+  }
+
+  /**
+   * A child process forked by the fork server.
+   *
+   * This makes the child look like a process started from Java, so that the
+   * Process4JsonLineStream or Process4FrameStream can be attached to it. The
+   * child does not have any standard streams we can access, all
+   * communication happens over the socket.
+   */
+  public class ForkedProcess extends Process {
+
+    private final long pid;
+    private final File procDir;
+    private boolean stopped = false;
+
+    private ForkedProcess(long pid) {
+      this.pid = pid;
+      File proc = new File("/proc");
+      procDir = proc.isDirectory() ? new File(proc, Long.toString(pid)) : null;
+    }
+
+    /**
+     * Get the process id of the child.
+     *
+     * @return pid
+     */
+    public long getPid() {
+      return pid;
+    }
+
+    /**
+     * Get the process id of the child, like Process.pid() in Java 9 and
+     * later.
+     *
+     * @return pid
+     */
+    public long pid() {
+      return pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          throw new IOException("Forked process has no standard input");
+        }
+      };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      while (isAlive()) {
+        Thread.sleep(100);
+      }
+      return 0;
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (isAlive()) {
+        if (System.nanoTime() > deadline) {
+          return false;
+        }
+        Thread.sleep(100);
+      }
+      return true;
+    }
+
+    /**
+     * Get the exit value.
+     *
+     * The fork server reaps its children, so we do not know the actual exit
+     * value and always return 0 once the child has terminated.
+     *
+     * @return 0
+     */
+    @Override
+    public int exitValue() {
+      if (isAlive()) {
+        throw new IllegalThreadStateException("Forked process " + pid + " has not exited");
+      }
+      return 0;
+    }
+
+    @Override
+    public void destroy() {
+      signal(pid, "terminate");
+    }
+
+    @Override
+    public Process destroyForcibly() {
+      signal(pid, "kill");
+      return this;
+    }
+
+    @Override
+    public boolean isAlive() {
+      if (stopped) {
+        return false;
+      }
+      boolean alive;
+      if (procDir != null) {
+        alive = procDir.exists();
+      } else {
+        alive = signal(pid, "poll");
+      }
+      if (!alive) {
+        stopped = true;
+        childStopped();
+      }
+      return alive;
+    }
+  }
+
+  /**
+   * Create the command for the fork server from the command for a normal
+   * process.
+   *
+   * @param command the interpreter and program part of the command
+   * @param options additional options, e.g. logging level and format
+   * @return the fork server command
+   */
+  public static List<String> makeCommand(List<String> command, List<String> options) {
+    List<String> ret = new ArrayList<>(command);
+    ret.add("--mode");
+    ret.add("forkserver");
+    ret.addAll(options);
+    return ret;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.util.GateRuntimeException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allow several requests to be in flight on a Process4FrameStream.
+ *
+ * Each request carries an id which the Python process copies into the
+ * response. A dedicated reader thread reads all response frames and completes
+ * the future of the request with the matching id, so that the sending thread
+ * can go on serializing the next document while the Python process works on
+ * earlier ones.
+ *
+ * @author Johann Petrak
+ */
+public class FrameMultiplexer {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  protected final Process4FrameStream process;
+  protected final MsgPackCodec codec;
+  protected final Map<Long, CompletableFuture<MsgPackCodec.Response>> pending
+          = new ConcurrentHashMap<>();
+  protected final AtomicLong lastId = new AtomicLong(0);
+  protected final Object writeLock = new Object();
+  protected final Thread readerThread;
+  protected volatile Throwable failure = null;
+
+  /**
+   * Create the multiplexer and start its reader thread.
+   *
+   * @param process the running process to exchange frames with
+   * @param codec the codec to use for decoding response headers
+   * @param name name to use for the reader thread
+   */
+  public FrameMultiplexer(Process4FrameStream process, MsgPackCodec codec, String name) {
+    this.process = process;
+    this.codec = codec;
+    readerThread = new Thread(this::readResponses, name);
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  /**
+   * Get a new unique request id.
+   *
+   * @return request id
+   */
+  public long nextRequestId() {
+    return lastId.incrementAndGet();
+  }
+
+  /**
+   * Get the number of requests for which no response has been received yet.
+   *
+   * @return number of pending requests
+   */
+  public int getNrPending() {
+    return pending.size();
+  }
+
+  /**
+   * Send a request frame.
+   *
+   * @param id the id contained in the request header
+   * @param frame the encoded request
+   * @return future which gets completed with the decoded response
+   */
+  public CompletableFuture<MsgPackCodec.Response> send(long id, byte[] frame) {
+    return send(id, frame, null);
+  }
+
+  /**
+   * Send a request frame which gets written while it is created.
+   *
+   * @param id the id contained in the request header
+   * @param writer writes the request
+   * @return future which gets completed with the decoded response
+   */
+  public CompletableFuture<MsgPackCodec.Response> send(long id, Process4FrameStream.FrameWriter writer) {
+    return send(id, null, writer);
+  }
+
+  private CompletableFuture<MsgPackCodec.Response> send(long id, byte[] frame, 
+          Process4FrameStream.FrameWriter writer) {
+    CompletableFuture<MsgPackCodec.Response> future = new CompletableFuture<>();
+    pending.put(id, future);
+    if (failure != null) {
+      pending.remove(id);
+      future.completeExceptionally(failure);
+      return future;
+    }
+    try {
+      synchronized (writeLock) {
+        if (writer != null) {
+          process.writeFrame(writer);
+        } else {
+          process.writeFrame(frame);
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      pending.remove(id);
+      future.completeExceptionally(ex);
+    }
+    return future;
+  }
+
+  /**
+   * Wait for a response.
+   *
+   * @param future the future returned from send
+   * @return the response
+   */
+  public static MsgPackCodec.Response waitFor(CompletableFuture<MsgPackCodec.Response> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while waiting for Python response", ex);
+    } catch (java.util.concurrent.ExecutionException ex) {
+      throw new GateRuntimeException("Could not get response from Python process", ex.getCause());
+    }
+  }
+
+  private void readResponses() {
+    try {
+      while (true) {
+        MsgPackCodec.Response response = codec.decodeResponse(process.readFrame());
+        if (response.id == null) {
+          throw new GateRuntimeException("Got response without request id from Python process");
+        }
+        CompletableFuture<MsgPackCodec.Response> future = pending.remove(response.id);
+        if (future == null) {
+          logger.warn("Ignoring response for unknown request id " + response.id);
+        } else {
+          future.complete(response);
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      failAll(ex);
+    }
+  }
+
+  private void failAll(Throwable ex) {
+    failure = ex;
+    List<Long> ids = new ArrayList<>(pending.keySet());
+    if (!ids.isEmpty()) {
+      logger.error("Reading from Python process failed with " + ids.size() + " requests pending", ex);
+    }
+    for (Long id : ids) {
+      CompletableFuture<MsgPackCodec.Response> future = pending.remove(id);
+      if (future != null) {
+        future.completeExceptionally(ex);
+      }
+    }
+  }
+
+}
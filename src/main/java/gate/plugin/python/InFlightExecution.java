@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends MsgPack requests through the frame multiplexer so that several 
+ * requests are in flight at the same time.
+ *
+ * A batch of documents is split into up to maxInFlight requests which are
+ * all sent before waiting for the first response, so the Python process 
+ * already works on one part while the next part is converted and sent. 
+ * All changes are applied before execute returns, so the documents can be
+ * used by the next PR or saved right away. If the process times out or 
+ * dies, none of the requests in flight will complete, so all of them get 
+ * skipped or sent again.
+ *
+ * @author Johann Petrak
+ */
+public class InFlightExecution extends MsgPackExecution {
+
+  /**
+   * A request which has been sent, but whose response has not been applied
+   * yet.
+   */
+  protected static class InFlightRequest {
+    protected List<Document> docs;
+    protected boolean batch;
+    protected CompletableFuture<MsgPackCodec.Response> future;
+    protected RequestTiming timing;
+    protected int attempt;
+
+    protected InFlightRequest(List<Document> docs, boolean batch, 
+            CompletableFuture<MsgPackCodec.Response> future, RequestTiming timing, int attempt) {
+      this.docs = docs;
+      this.batch = batch;
+      this.future = future;
+      this.timing = timing;
+      this.attempt = attempt;
+    }
+  }
+
+  // the requests in flight, oldest first
+  private final Deque<InFlightRequest> inFlight = new ArrayDeque<>();
+
+  /**
+   * Create the strategy for a PR.
+   *
+   * @param pr the PR
+   */
+  public InFlightExecution(PythonPr pr) {
+    super(pr);
+  }
+
+  @Override
+  public void execute(List<Document> docs, boolean batch) {
+    int nrRequests = batch ? Math.min(pr.getMaxInFlight(), docs.size()) : 1;
+    int from = 0;
+    for (int i = 0; i < nrRequests; i++) {
+      // spread the documents as evenly as possible
+      int to = from + (docs.size() - from) / (nrRequests - i);
+      send(new ArrayList<>(docs.subList(from, to)), batch, 0);
+      from = to;
+    }
+    completeAll();
+  }
+
+  @Override
+  public void completeAll() {
+    while (!inFlight.isEmpty()) {
+      completeOldest();
+    }
+  }
+
+  @Override
+  public void abandonAll() {
+    inFlight.clear();
+  }
+
+  /**
+   * Send an execute or execute_batch request through the multiplexer and 
+   * add it to the requests in flight.
+   * 
+   * @param docs documents to process
+   * @param batch true to send an execute_batch request
+   * @param attempt the number of times the request was already sent to a
+   * process which died
+   */
+  protected void send(List<Document> docs, boolean batch, int attempt) {
+    long id = pr.multiplexer.nextRequestId();
+    RequestTiming timing = new RequestTiming();
+    pr.metrics.requestStarted();
+    inFlight.add(new InFlightRequest(docs, batch, 
+            pr.multiplexer.send(id, makeWriter(docs, batch, id, timing)), timing, attempt));
+  }
+
+  /**
+   * Wait for the response to the oldest request in flight and apply the
+   * changes.
+   */
+  protected void completeOldest() {
+    InFlightRequest req = inFlight.poll();
+    MsgPackCodec.Response response;
+    try {
+      response = pr.recovery.waitForResponse(() -> FrameMultiplexer.waitFor(req.future), 
+              () -> req.timing.sentNanos);
+    } catch (ProcessRecovery.RequestTimeoutException ex) {
+      // the process got killed, so none of the other requests will complete
+      List<Document> docs = new ArrayList<>(req.docs);
+      for (InFlightRequest other : inFlight) {
+        docs.addAll(other.docs);
+      }
+      inFlight.clear();
+      pr.recovery.timedOut(docs);
+      return;
+    } catch (ProcessRecovery.ProcessDiedException ex) {
+      List<InFlightRequest> lost = new ArrayList<>();
+      lost.add(req);
+      lost.addAll(inFlight);
+      inFlight.clear();
+      resend(lost);
+      return;
+    }
+    applyResponse(req.docs, req.batch, response, req.timing);
+  }
+
+  /**
+   * Replace the python process which died while requests were in flight and
+   * send them again, or skip their documents if they were already retried
+   * too often.
+   * 
+   * @param lost the requests in flight, oldest first
+   */
+  protected void resend(List<InFlightRequest> lost) {
+    List<Document> docs = new ArrayList<>();
+    for (InFlightRequest req : lost) {
+      docs.addAll(req.docs);
+    }
+    pr.recovery.crashedInFlight(docs, lost.size());
+    for (InFlightRequest req : lost) {
+      if (pr.recovery.retryInFlight(req.docs, req.attempt)) {
+        send(req.docs, req.batch, req.attempt + 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each request as JSON and applies the changes before the next
+ * request is sent.
+ *
+ * @author Johann Petrak
+ */
+public class JsonExecution implements ExecutionStrategy {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  protected final PythonPr pr;
+
+  /**
+   * Create the strategy for a PR.
+   *
+   * @param pr the PR
+   */
+  public JsonExecution(PythonPr pr) {
+    this.pr = pr;
+  }
+
+  @Override
+  public void execute(List<Document> docs, boolean batch) {
+    execute(pr.makeExecuteRequestWriter(docs, batch), docs, batch, 0);
+  }
+
+  /**
+   * Process documents using the JSON exchange format.
+   * 
+   * @param request the writer for the execute or execute_batch request
+   * @param docs the documents contained in the request
+   * @param batch true if this is an execute_batch request
+   * @param attempt the number of times the request was already sent to a
+   * process which died
+   */
+  protected void execute(Process4JsonLineStream.JsonWriter request, List<Document> docs, boolean batch, int attempt) {
+    Process4JsonLineStream jsonProcess = (Process4JsonLineStream) pr.process;
+    long bytesWritten = jsonProcess.getBytesWritten();
+    long bytesRead = jsonProcess.getBytesRead();
+    long startNanos = System.nanoTime();
+    pr.metrics.requestStarted();
+    String responseJson;
+    try {
+      responseJson = pr.recovery.waitForResponse(() -> (String) jsonProcess.process(request), 
+              jsonProcess::getWrittenNanos);
+    } catch (ProcessRecovery.RequestTimeoutException ex) {
+      pr.recovery.timedOut(docs);
+      return;
+    } catch (ProcessRecovery.ProcessDiedException ex) {
+      if (pr.recovery.crashed(docs, attempt)) {
+        execute(request, docs, batch, attempt + 1);
+      }
+      return;
+    }
+    long receivedNanos = System.nanoTime();
+    ChangeLogApplier.Response response = applyResponse(responseJson, docs, batch);
+    long sendNanos = jsonProcess.getLastWriteNanos();
+    pr.recordPhases(docs.size(), startNanos, sendNanos, receivedNanos - startNanos - sendNanos, 
+            System.nanoTime() - receivedNanos,
+            jsonProcess.getBytesWritten() - bytesWritten, jsonProcess.getBytesRead() - bytesRead,
+            response.other.get("timings"));
+  }
+
+  /**
+   * Apply the changelogs from a JSON execute or execute_batch response.
+   * 
+   * The changes are applied while the response gets parsed, so the status
+   * and the number of changelogs can only be checked afterwards. If the 
+   * status is not ok, the documents are only unchanged if the status came 
+   * before the data in the response. If there are fewer changelogs than 
+   * documents, the documents at the start of the batch have already been 
+   * changed when the exception is thrown.
+   * 
+   * @param responseJson the response
+   * @param docs the documents which were sent
+   * @param batch true if this is the response to an execute_batch request
+   * @return the response without the changelogs
+   */
+  protected ChangeLogApplier.Response applyResponse(String responseJson, List<Document> docs, boolean batch) {
+    if (responseJson == null) {
+      throw new GateRuntimeException("Invalid null response from Python process");
+    }
+    ChangeLogApplier.Response response = pr.changeLogApplier.applyResponse(responseJson, docs, batch);
+    if (!"ok".equals(response.status)) {
+      logger.debug("Python exception, stacktrace we got: "+response.stacktrace);
+      throw new GateRuntimeException("Error processing " + (batch ? "batch of documents" : "document") 
+              + ": " + response.error + "\nAdditional info from Python:\n" + response.info);
+    }
+    if (response.nrChangeLogs != docs.size()) {
+      throw new GateRuntimeException("Sent " + docs.size() + " documents but got " 
+              + response.nrChangeLogs + " changelogs back");
+    }
+    return response;
+  }
+}
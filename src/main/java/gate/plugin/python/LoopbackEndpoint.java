@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A socket on the loopback interface which a child process connects back to.
+ *
+ * The endpoint listens on an ephemeral port of 127.0.0.1. The child process
+ * gets the port on the command line and a random token in the environment
+ * variable GATENLP_SOCKET_TOKEN. After connecting, the child must send the
+ * token followed by a newline, so that no other local process can take the
+ * place of the child. Once connected, all messages are exchanged over the
+ * socket and the standard output and error of the process are only used for
+ * logging.
+ *
+ * @author Johann Petrak
+ */
+public class LoopbackEndpoint {
+
+  /**
+   * The name of the environment variable which contains the token.
+   */
+  public static final String TOKEN_ENVVAR = "GATENLP_SOCKET_TOKEN";
+
+  /**
+   * The size we request for the socket send and receive buffers.
+   */
+  public static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * How long we wait for the child process to connect, in milliseconds.
+   */
+  public static final int CONNECT_TIMEOUT = 60000;
+
+  private final ServerSocket serverSocket;
+  private final String token;
+
+  /**
+   * Create the endpoint and start listening.
+   *
+   * @throws IOException if the server socket cannot be created
+   */
+  public LoopbackEndpoint() throws IOException {
+    serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    serverSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+    byte[] bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    token = sb.toString();
+  }
+
+  /**
+   * Get the port the endpoint listens on.
+   *
+   * @return port number
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Get the address the endpoint listens on.
+   *
+   * @return host address
+   */
+  public String getHost() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  /**
+   * Get the token the child process must send after connecting.
+   *
+   * @return token
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Add the arguments and environment variables the child process needs.
+   *
+   * @param command the command to add the arguments to
+   * @param env the environment to add the token to
+   */
+  public void addTo(List<String> command, Map<String, String> env) {
+    command.add("--host");
+    command.add(getHost());
+    command.add("--port");
+    command.add(Integer.toString(getPort()));
+    env.put(TOKEN_ENVVAR, token);
+  }
+
+  /**
+   * Wait for the process to connect and check the token it sends.
+   *
+   * The server socket gets closed once the connection is established or
+   * fails.
+   *
+   * @param process the process which should connect
+   * @return the connected socket
+   * @throws IOException if the process does not connect in time, terminates,
+   * or sends a wrong token
+   */
+  public Socket accept(Process process) throws IOException {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+    try {
+      // wake up regularly to check if the process is still alive
+      serverSocket.setSoTimeout(1000);
+      while (true) {
+        Socket socket = null;
+        try {
+          socket = serverSocket.accept();
+          socket.setSoTimeout(5000);
+          if (checkToken(socket.getInputStream())) {
+            socket.setSoTimeout(0);
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+            return socket;
+          }
+          socket.close();
+        } catch (SocketTimeoutException ex) {
+          // no connection or no token in time, check below
+          if (socket != null) {
+            socket.close();
+          }
+        }
+        if (!process.isAlive()) {
+          throw new IOException("Process terminated before connecting, exit code " + process.exitValue());
+        }
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Process did not connect within " + CONNECT_TIMEOUT + "ms");
+        }
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Stop listening.
+   */
+  public void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+  }
+
+  private boolean checkToken(InputStream in) throws IOException {
+    ByteArrayOutputStream got = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (got.size() > 2 * token.length()) {
+        return false;
+      }
+      got.write(b);
+    }
+    return token.equals(new String(got.toByteArray(), StandardCharsets.US_ASCII).trim());
+  }
+
+}
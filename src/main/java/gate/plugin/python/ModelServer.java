@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.lib.interaction.process.ProcessBase;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single Python process shared by all duplicates of a PR, which processes
+ * the documents of concurrently running duplicates in common batches.
+ *
+ * The first duplicate which submits documents while no batch is open opens
+ * a new batch and becomes its leader. Documents submitted by other
+ * duplicates are added to the open batch until it is full, documents which
+ * do not fit go into the next batch. The leader waits until the batch is
+ * full or the maximum wait time has passed and the process is free, then
+ * closes the batch and sends all its documents in one request. The other
+ * duplicates wait until the changes have been applied to their documents.
+ * <p>
+ * The process gets started by the first duplicate which acquires it and
+ * the last duplicate to release it is responsible for sending the finish
+ * request and stopping it.
+ *
+ * @author Johann Petrak
+ */
+public class ModelServer {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private ProcessBase process;
+  private String key;
+  private int nrUsers = 0;
+  private DocumentProjection declaredProjection = DocumentProjection.ALL;
+
+  // the batch documents are currently added to, null if none is open
+  private Batch open;
+  // held while a batch is sent to the process
+  private final ReentrantLock sending = new ReentrantLock();
+
+  private long nrBatches = 0;
+  private long nrDocuments = 0;
+
+  /**
+   * The documents of several duplicates which get sent together.
+   */
+  private static class Batch {
+
+    private final List<Document> docs = new ArrayList<>();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private boolean closed = false;
+  }
+
+  /**
+   * Get the shared process, starting it if necessary.
+   *
+   * If the process is running with the same key, it is used. If it was
+   * kept alive from an earlier run and this is the first user, the reset
+   * function is called for it first. If it is running with a different key
+   * and there are no other users, it gets stopped and a new one is started.
+   *
+   * @param newKey the key describing the command and start parameters
+   * @param starter starts a new process and sends the start request
+   * @param resetter sends the reset request to a process kept alive
+   * @return the process
+   */
+  public synchronized ProcessBase acquire(String newKey, Supplier<ProcessBase> starter,
+          Consumer<ProcessBase> resetter) {
+    if (process != null && process.isAlive()) {
+      if (newKey.equals(key)) {
+        if (nrUsers == 0) {
+          resetter.accept(process);
+        }
+        nrUsers++;
+        return process;
+      }
+      if (nrUsers > 0) {
+        throw new GateRuntimeException(
+                "Model server still has " + nrUsers + " users, cannot restart with different parameters");
+      }
+      stop();
+    }
+    process = starter.get();
+    key = newKey;
+    nrUsers++;
+    return process;
+  }
+
+  /**
+   * Release the shared process.
+   *
+   * @return true if this was the last user, who must send the finish
+   * request and stop the process if it is not kept alive
+   */
+  public synchronized boolean release() {
+    nrUsers--;
+    if (nrUsers <= 0) {
+      nrUsers = 0;
+      if (nrBatches > 0) {
+        logger.info(String.format(Locale.UK,
+                "Model server processed %d documents in %d batches, %.1f documents per batch",
+                nrDocuments, nrBatches, (double) nrDocuments / nrBatches));
+      }
+      nrBatches = 0;
+      nrDocuments = 0;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Stop the shared process.
+   */
+  public synchronized void stop() {
+    if (process != null) {
+      int exitValue = process.stop();
+      if (exitValue != 0) {
+        logger.info("Warning: python model server ended with exit value " + exitValue);
+      }
+    }
+    process = null;
+    key = null;
+    declaredProjection = DocumentProjection.ALL;
+  }
+
+  /**
+   * Set the projection the program declared when the process was started.
+   *
+   * @param projection the declared projection
+   */
+  public synchronized void setDeclaredProjection(DocumentProjection projection) {
+    declaredProjection = projection;
+  }
+
+  /**
+   * Get the projection the program declared when the process was started.
+   *
+   * @return the declared projection
+   */
+  public synchronized DocumentProjection getDeclaredProjection() {
+    return declaredProjection;
+  }
+
+  /**
+   * Stop the shared process if nobody uses it.
+   */
+  public synchronized void stopIfUnused() {
+    if (nrUsers == 0) {
+      stop();
+    }
+  }
+
+  /**
+   * Process documents together with the documents submitted concurrently by
+   * other duplicates.
+   *
+   * The documents are added to the open batch as long as it is not full,
+   * the remaining ones go into the next batches, so no batch gets larger 
+   * than maxBatchSize. This returns once the changes have been applied to 
+   * the documents.
+   *
+   * @param docs the documents
+   * @param maxBatchSize the maximum number of documents in a batch
+   * @param maxWaitMillis how long the leader of a batch waits for other
+   * documents before sending it
+   * @param sender sends a batch of documents to the process and applies the
+   * changes to them
+   */
+  public void execute(List<Document> docs, int maxBatchSize, long maxWaitMillis,
+          Consumer<List<Document>> sender) {
+    int batchSize = Math.max(1, maxBatchSize);
+    // the batches we opened and have to send, and those opened by others
+    List<Batch> led = new ArrayList<>();
+    List<Batch> joined = new ArrayList<>();
+    synchronized (this) {
+      int from = 0;
+      while (from < docs.size()) {
+        if (open == null) {
+          open = new Batch();
+          led.add(open);
+        } else {
+          joined.add(open);
+        }
+        Batch batch = open;
+        int to = Math.min(docs.size(), from + batchSize - batch.docs.size());
+        batch.docs.addAll(docs.subList(from, to));
+        from = to;
+        if (batch.docs.size() >= batchSize) {
+          close(batch);
+        }
+      }
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    RuntimeException failure = null;
+    for (Batch batch : led) {
+      try {
+        send(batch, deadline, sender);
+      } catch (RuntimeException ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    for (Batch batch : joined) {
+      try {
+        awaitBatch(batch);
+      } catch (RuntimeException ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  // wait until the batch is full or the deadline has passed, then send it
+  private void send(Batch batch, long deadline, Consumer<List<Document>> sender) {
+    synchronized (this) {
+      long remaining;
+      while (!batch.closed && (remaining = deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    // documents can still be added while the previous batch is being sent
+    sending.lock();
+    try {
+      List<Document> toSend;
+      synchronized (this) {
+        close(batch);
+        toSend = new ArrayList<>(batch.docs);
+        nrBatches++;
+        nrDocuments += toSend.size();
+      }
+      sender.accept(toSend);
+      batch.done.complete(null);
+    } catch (RuntimeException ex) {
+      batch.done.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      sending.unlock();
+    }
+  }
+
+  // must be called while holding the monitor
+  private void close(Batch batch) {
+    if (!batch.closed) {
+      batch.closed = true;
+      if (open == batch) {
+        open = null;
+      }
+      notifyAll();
+    }
+  }
+
+  private static void awaitBatch(Batch batch) {
+    try {
+      batch.done.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while waiting for the model server", ex);
+    } catch (ExecutionException ex) {
+      throw new GateRuntimeException("Processing the batch in the model server failed", ex.getCause());
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import java.util.List;
+
+/**
+ * Processes documents with the model server, together with documents from
+ * other duplicates.
+ *
+ * The duplicate which sends a batch to the model server process uses its 
+ * own synchronous strategy for it, the batch may contain documents of other
+ * duplicates. Timeouts, retries and recycling are not supported with a 
+ * model server, see ExecutionMode.
+ *
+ * @author Johann Petrak
+ */
+public class ModelServerExecution implements ExecutionStrategy {
+
+  protected final PythonPr pr;
+  protected final ExecutionStrategy sender;
+
+  /**
+   * Create the strategy for a PR.
+   *
+   * @param pr the PR
+   * @param sender the synchronous strategy used to send the batches of the
+   * model server
+   */
+  public ModelServerExecution(PythonPr pr, ExecutionStrategy sender) {
+    this.pr = pr;
+    this.sender = sender;
+  }
+
+  @Override
+  public void execute(List<Document> docs, boolean batch) {
+    // the batch applied by this duplicate can contain documents of others,
+    // so each duplicate counts its own documents here
+    pr.nrDocumentsProcessed += docs.size();
+    pr.getModelServerInstance().execute(docs, pr.getModelServerBatchSize(), pr.getModelServerMaxWait(), 
+            serverBatch -> sender.execute(serverBatch, true));
+  }
+}
@@ -0,0 +1,675 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.gui.ResourceHelper;
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.msgpack.core.MessageFormat;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+/**
+ * Encode requests to and decode responses from the Python process as
+ * MessagePack.
+ *
+ * Every message is a MessagePack map (the header) optionally followed by a
+ * payload. For the execute request, the payload is the document in the bdoc
+ * MsgPack representation as written by the format-bdoc plugin, for the
+ * execute response the payload is the changelog as a MessagePack map with
+ * the same fields as the JSON changelog ("offset_type" and "changes").
+ * All other requests and responses only consist of the header map.
+ * <p>
+ * If a request header contains an "id", the Python process copies it into
+ * the header of the response, so that responses can be matched with requests
+ * when several requests are in flight at the same time.
+ * <p>
+ * Since the Python plugin only depends on the format-bdoc plugin at run-time,
+ * the bdoc classes are looked up once through the class loader of the bdoc
+ * API resource helper and invoked through method handles.
+ *
+ * @author Johann Petrak
+ */
+public class MsgPackCodec {
+
+  protected final MethodHandle newBuilder;
+  protected final MethodHandle builderFromGate;
+  protected final MethodHandle builderSetAnnotationSetNames;
+  protected final MethodHandle builderSetIncludePlaceholderSets;
+  protected final MethodHandle builderPythonOffsets;
+  protected final MethodHandle builderBuildBdoc;
+  protected final MethodHandle bdocToMap;
+  protected final MethodHandle bdocSetText;
+  protected final MethodHandle bdocSetFeatures;
+  protected final MethodHandle bdocGetAnnotationSets;
+  protected final MethodHandle setGetAnnotations;
+  protected final MethodHandle setSetAnnotations;
+  protected final MethodHandle annGetType;
+  protected final MethodHandle annGetFeatures;
+  protected final MethodHandle annSetFeatures;
+  protected final MethodHandle saveBdoc;
+  protected final Object msgPackFormatSupport;
+  protected DocumentCache documentCache;
+  protected DocumentProjection projection;
+
+  /**
+   * Create a codec that uses the bdoc classes known to the given API helper.
+   *
+   * @param rhBdocApi the resource helper of the format-bdoc plugin
+   */
+  public MsgPackCodec(ResourceHelper rhBdocApi) {
+    ClassLoader cl = rhBdocApi.getClass().getClassLoader();
+    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    try {
+      Class<?> builderClass = cl.loadClass("gate.lib.basicdocument.BdocDocumentBuilder");
+      Class<?> bdocClass = cl.loadClass("gate.lib.basicdocument.BdocDocument");
+      Class<?> setClass = cl.loadClass("gate.lib.basicdocument.BdocAnnotationSet");
+      Class<?> annClass = cl.loadClass("gate.lib.basicdocument.BdocAnnotation");
+      Class<?> formatClass = cl.loadClass("gate.lib.basicdocument.docformats.MsgPackFormatSupport");
+      newBuilder = lookup.findConstructor(builderClass, MethodType.methodType(void.class));
+      builderFromGate = lookup.findVirtual(builderClass, "fromGate",
+              MethodType.methodType(builderClass, Document.class));
+      builderSetAnnotationSetNames = lookup.findVirtual(builderClass, "setAnnotationSetNames",
+              MethodType.methodType(builderClass, Collection.class));
+      builderSetIncludePlaceholderSets = lookup.findVirtual(builderClass, "setIncludePlaceholderSets",
+              MethodType.methodType(builderClass, boolean.class));
+      builderPythonOffsets = lookup.findVirtual(builderClass, "pythonOffsets",
+              MethodType.methodType(builderClass));
+      builderBuildBdoc = lookup.findVirtual(builderClass, "buildBdoc",
+              MethodType.methodType(bdocClass));
+      bdocToMap = lookup.findVirtual(bdocClass, "toMap", MethodType.methodType(Map.class));
+      bdocSetText = lookup.findSetter(bdocClass, "text", String.class);
+      bdocSetFeatures = lookup.findSetter(bdocClass, "features", Map.class);
+      bdocGetAnnotationSets = lookup.findGetter(bdocClass, "annotation_sets", Map.class);
+      setGetAnnotations = lookup.findGetter(setClass, "annotations", List.class);
+      setSetAnnotations = lookup.findSetter(setClass, "annotations", List.class);
+      annGetType = lookup.findGetter(annClass, "type", String.class);
+      annGetFeatures = lookup.findGetter(annClass, "features", Map.class);
+      annSetFeatures = lookup.findSetter(annClass, "features", Map.class);
+      saveBdoc = lookup.findVirtual(formatClass, "save",
+              MethodType.methodType(void.class, bdocClass, OutputStream.class));
+      msgPackFormatSupport = formatClass.getDeclaredConstructor().newInstance();
+    } catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException | IllegalAccessException
+            | InstantiationException | InvocationTargetException ex) {
+      throw new GateRuntimeException("Could not access the MsgPack support of the format-bdoc plugin", ex);
+    }
+  }
+
+  /**
+   * Set the cache for serialized documents.
+   *
+   * @param cache the cache or null to always serialize documents
+   */
+  public void setDocumentCache(DocumentCache cache) {
+    documentCache = cache;
+  }
+
+  /**
+   * Set which parts of the documents get sent.
+   *
+   * @param projection the projection or null to send everything in the
+   * selected annotation sets
+   */
+  public void setProjection(DocumentProjection projection) {
+    this.projection = projection == null || projection.isAll() ? null : projection;
+  }
+
+  /**
+   * Get which parts of the documents get sent.
+   *
+   * @return the projection or null if everything gets sent
+   */
+  public DocumentProjection getProjection() {
+    return projection;
+  }
+
+  /**
+   * A decoded response.
+   */
+  public static class Response {
+
+    public Long id;
+    public String status;
+    public String error;
+    public String info;
+    public Object stacktrace;
+    public Object data;
+    /**
+     * The whole header map, including any fields not listed above.
+     */
+    public Map<String, Object> header;
+    /**
+     * The value of System.nanoTime() when the response was received.
+     */
+    public long receivedNanos;
+    protected byte[] frame;
+    protected int payloadOffset;
+
+    /**
+     * Get the size of the frame the response was decoded from.
+     *
+     * @return number of bytes
+     */
+    public int getFrameSize() {
+      return frame == null ? 0 : frame.length;
+    }
+
+    /**
+     * Check if the response has a payload after the header.
+     *
+     * @return true if there is a payload
+     */
+    public boolean hasPayload() {
+      return frame != null && payloadOffset < frame.length;
+    }
+  }
+
+  /**
+   * Encode a request which only consists of a header map.
+   *
+   * @param request the request map
+   * @return encoded request
+   */
+  public byte[] encodeRequest(Map<String, Object> request) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (MessagePacker packer = MessagePack.newDefaultPacker(baos)) {
+      packValue(packer, request);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not encode request as MsgPack", ex);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Encode an execute request for the document.
+   *
+   * @param doc the document to send
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @param id the request id or null
+   * @return encoded request
+   */
+  public byte[] encodeExecuteRequest(Document doc, Set<String> setsToUse, Long id) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try {
+      writeExecuteRequest(doc, setsToUse, id, baos);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not encode execute request as MsgPack", ex);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Write an execute request for the document to a stream.
+   *
+   * The header and the bdoc payload are written directly to the stream, 
+   * without creating a byte array with the whole request first.
+   *
+   * @param doc the document to send
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @param id the request id or null
+   * @param out the stream to write to
+   * @throws IOException if writing to the stream fails
+   */
+  public void writeExecuteRequest(Document doc, Set<String> setsToUse, Long id, 
+          OutputStream out) throws IOException {
+    byte[] cached = getCachedBdoc(doc, setsToUse);
+    Object bdoc = cached == null ? buildBdocOrFail(doc, setsToUse) : null;
+    MessagePacker packer = MessagePack.newDefaultPacker(out);
+    packer.packMapHeader(id == null ? 1 : 2);
+    packer.packString("command");
+    packer.packString("execute");
+    packId(packer, id);
+    packer.flush();
+    if (cached != null) {
+      out.write(cached);
+    } else {
+      saveBdocTo(bdoc, out);
+    }
+  }
+
+  /**
+   * Encode an execute_batch request for several documents.
+   *
+   * The header contains the documents as a list of binary values, each
+   * containing one document in the bdoc MsgPack representation.
+   *
+   * @param docs the documents to send
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @param id the request id or null
+   * @return encoded request
+   */
+  public byte[] encodeExecuteBatchRequest(List<Document> docs, Set<String> setsToUse, Long id) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try {
+      writeExecuteBatchRequest(docs, setsToUse, id, baos);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not encode execute_batch request as MsgPack", ex);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Write an execute_batch request for several documents to a stream.
+   *
+   * Since the size of each binary value must be known before it is written,
+   * each document gets serialized into a buffer first, but the buffer is
+   * re-used for all documents of the batch, so only one serialized document
+   * is held in memory at any time.
+   *
+   * @param docs the documents to send
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @param id the request id or null
+   * @param out the stream to write to
+   * @throws IOException if writing to the stream fails
+   */
+  public void writeExecuteBatchRequest(List<Document> docs, Set<String> setsToUse, Long id, 
+          OutputStream out) throws IOException {
+    ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    MessagePacker packer = MessagePack.newDefaultPacker(out);
+    packer.packMapHeader(id == null ? 2 : 3);
+    packer.packString("command");
+    packer.packString("execute_batch");
+    packId(packer, id);
+    packer.packString("data");
+    packer.packArrayHeader(docs.size());
+    for (Document doc : docs) {
+      byte[] cached = getCachedBdoc(doc, setsToUse);
+      if (cached != null) {
+        packer.packBinaryHeader(cached.length);
+        packer.flush();
+        out.write(cached);
+        continue;
+      }
+      docBytes.reset();
+      saveBdocTo(buildBdocOrFail(doc, setsToUse), docBytes);
+      packer.packBinaryHeader(docBytes.size());
+      packer.flush();
+      docBytes.writeTo(out);
+    }
+    packer.flush();
+  }
+
+  /**
+   * Write just the document in the bdoc MsgPack representation.
+   *
+   * @param doc the document
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @param out the stream to write to
+   * @throws IOException if writing to the stream fails
+   */
+  public void writeBdoc(Document doc, Set<String> setsToUse, OutputStream out) throws IOException {
+    byte[] cached = getCachedBdoc(doc, setsToUse);
+    if (cached != null) {
+      out.write(cached);
+    } else {
+      saveBdocTo(buildBdocOrFail(doc, setsToUse), out);
+    }
+  }
+
+  // get the serialized document from the cache, serializing and caching it
+  // if necessary, or null if no cache is used
+  private byte[] getCachedBdoc(Document doc, Set<String> setsToUse) throws IOException {
+    if (documentCache == null) {
+      return null;
+    }
+    String key = DocumentCache.makeKey(setsToUse);
+    if (projection != null) {
+      key += projection.getKey();
+    }
+    byte[] ret = documentCache.get(doc, key);
+    if (ret == null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      saveBdocTo(buildBdocOrFail(doc, setsToUse), baos);
+      ret = baos.toByteArray();
+      documentCache.put(doc, key, ret);
+    }
+    return ret;
+  }
+
+  private Object buildBdocOrFail(Document doc, Set<String> setsToUse) {
+    try {
+      return buildBdoc(doc, setsToUse);
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new GateRuntimeException("Could not convert document to bdoc", ex);
+    }
+  }
+
+  /**
+   * Convert the document into the bdoc map representation, taking the
+   * projection into account.
+   *
+   * @param doc the document
+   * @param setsToUse the annotation set names to include, null or containing
+   * "*" for all sets
+   * @return bdoc map
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> buildBdocMap(Document doc, Set<String> setsToUse) {
+    Object bdoc = buildBdocOrFail(doc, setsToUse);
+    try {
+      return (Map<String, Object>) bdocToMap.invoke(bdoc);
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new GateRuntimeException("Could not convert bdoc to map", ex);
+    }
+  }
+
+  private void saveBdocTo(Object bdoc, OutputStream out) throws IOException {
+    try {
+      saveBdoc.invoke(msgPackFormatSupport, bdoc, out);
+    } catch (IOException | RuntimeException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new GateRuntimeException("Could not save bdoc as MsgPack", ex);
+    }
+  }
+
+  private static void packId(MessagePacker packer, Long id) throws IOException {
+    if (id != null) {
+      packer.packString("id");
+      packer.packLong(id);
+    }
+  }
+
+  /**
+   * Build the bdoc object for the document.
+   *
+   * @param doc document
+   * @param setsToUse the annotation set names to include
+   * @return BdocDocument instance
+   * @throws Throwable if any of the bdoc methods throws an exception
+   */
+  protected Object buildBdoc(Document doc, Set<String> setsToUse) throws Throwable {
+    Object builder = newBuilder.invoke();
+    builder = builderFromGate.invoke(builder, doc);
+    if (setsToUse != null && !setsToUse.contains("*")) {
+      builder = builderSetAnnotationSetNames.invoke(builder, setsToUse);
+      builder = builderSetIncludePlaceholderSets.invoke(builder, true);
+    }
+    if (projection == null) {
+      return builderBuildBdoc.invoke(builder);
+    }
+    if (!projection.keepText()) {
+      // without the text the Python side cannot convert the offsets
+      builder = builderPythonOffsets.invoke(builder);
+    }
+    Object bdoc = builderBuildBdoc.invoke(builder);
+    project(bdoc);
+    return bdoc;
+  }
+
+  // Remove everything from the bdoc the projection does not send. The maps
+  // and lists of the bdoc may be those of the GATE document, so they get
+  // replaced instead of modified.
+  @SuppressWarnings("unchecked")
+  private void project(Object bdoc) throws Throwable {
+    if (!projection.keepText()) {
+      bdocSetText.invoke(bdoc, (String) null);
+    }
+    if (!projection.keepDocumentFeatures()) {
+      bdocSetFeatures.invoke(bdoc, (Map<String, Object>) null);
+    }
+    Map<String, Object> sets = (Map<String, Object>) bdocGetAnnotationSets.invoke(bdoc);
+    if (sets == null) {
+      return;
+    }
+    for (Object set : sets.values()) {
+      List<Object> anns = (List<Object>) setGetAnnotations.invoke(set);
+      if (anns == null) {
+        continue;
+      }
+      List<Object> kept = new ArrayList<>(anns.size());
+      for (Object ann : anns) {
+        String type = (String) annGetType.invoke(ann);
+        if (!projection.keepType(type)) {
+          continue;
+        }
+        if (projection.restrictsFeatures()) {
+          Map<String, Object> fm = (Map<String, Object>) annGetFeatures.invoke(ann);
+          annSetFeatures.invoke(ann, projection.keepFeatures(type, fm));
+        }
+        kept.add(ann);
+      }
+      setSetAnnotations.invoke(set, kept);
+    }
+  }
+
+  /**
+   * Decode a response frame.
+   *
+   * @param frame the frame received from the Python process
+   * @return decoded response
+   */
+  @SuppressWarnings("unchecked")
+  public Response decodeResponse(byte[] frame) {
+    Response response = new Response();
+    response.receivedNanos = System.nanoTime();
+    Map<String, Object> header;
+    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(frame)) {
+      header = (Map<String, Object>) unpackValue(unpacker);
+      response.payloadOffset = (int) unpacker.getTotalReadBytes();
+    } catch (IOException | ClassCastException ex) {
+      throw new GateRuntimeException("Could not decode MsgPack response", ex);
+    }
+    response.frame = frame;
+    Object id = header.get("id");
+    if (id instanceof Number) {
+      response.id = ((Number) id).longValue();
+    }
+    response.status = (String) header.get("status");
+    response.error = (String) header.get("error");
+    response.info = (String) header.get("info");
+    response.stacktrace = header.get("stacktrace");
+    response.data = header.get("data");
+    response.header = header;
+    return response;
+  }
+
+  /**
+   * Load the changelog contained in the payload of a response.
+   *
+   * @param response execute response
+   * @return the changelog map, which can be applied with ChangeLogApplier
+   */
+  public Map<String, Object> loadChangeLog(Response response) {
+    if (!response.hasPayload()) {
+      throw new GateRuntimeException("Got no changelog back from process");
+    }
+    return loadChangeLog(new ByteArrayInputStream(response.frame, response.payloadOffset,
+            response.frame.length - response.payloadOffset));
+  }
+
+  /**
+   * Load a changelog from a stream.
+   * 
+   * The load_log method of the MsgPack format support of format-bdoc is 
+   * not implemented, so the changelog is decoded here: it is a single 
+   * MessagePack map with the same fields as the JSON changelog.
+   *
+   * @param is the stream to read from
+   * @return the changelog map, which can be applied with ChangeLogApplier
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> loadChangeLog(InputStream is) {
+    Object chlog;
+    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(is)) {
+      chlog = unpackValue(unpacker);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not decode MsgPack changelog", ex);
+    }
+    if (!(chlog instanceof Map)) {
+      throw new GateRuntimeException("Got a changelog which is not a map back from process");
+    }
+    return (Map<String, Object>) chlog;
+  }
+
+  /**
+   * Load the changelogs contained in the response to an execute_batch request.
+   *
+   * @param response execute_batch response
+   * @return list of changelog maps, one per document
+   */
+  public List<Map<String, Object>> loadChangeLogs(Response response) {
+    if (!(response.data instanceof List)) {
+      throw new GateRuntimeException("Got no list of changelogs back from process");
+    }
+    List<Map<String, Object>> ret = new ArrayList<>();
+    for (Object item : (List<?>) response.data) {
+      if (!(item instanceof byte[])) {
+        throw new GateRuntimeException("Got a changelog which is not binary data back from process");
+      }
+      ret.add(loadChangeLog(new ByteArrayInputStream((byte[]) item)));
+    }
+    return ret;
+  }
+
+  /**
+   * Pack an arbitrary JSON-like value.
+   *
+   * @param packer the packer to use
+   * @param value the value
+   * @throws IOException if packing fails
+   */
+  public static void packValue(MessagePacker packer, Object value) throws IOException {
+    if (value == null) {
+      packer.packNil();
+    } else if (value instanceof String) {
+      packer.packString((String) value);
+    } else if (value instanceof Boolean) {
+      packer.packBoolean((Boolean) value);
+    } else if (value instanceof Integer || value instanceof Long
+            || value instanceof Short || value instanceof Byte) {
+      packer.packLong(((Number) value).longValue());
+    } else if (value instanceof BigInteger) {
+      packer.packBigInteger((BigInteger) value);
+    } else if (value instanceof Float || value instanceof Double) {
+      packer.packDouble(((Number) value).doubleValue());
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      packer.packBinaryHeader(bytes.length);
+      packer.writePayload(bytes);
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      packer.packMapHeader(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        packValue(packer, entry.getKey() == null ? null : entry.getKey().toString());
+        packValue(packer, entry.getValue());
+      }
+    } else if (value instanceof Collection) {
+      Collection<?> coll = (Collection<?>) value;
+      packer.packArrayHeader(coll.size());
+      for (Object item : coll) {
+        packValue(packer, item);
+      }
+    } else if (value instanceof Object[]) {
+      Object[] arr = (Object[]) value;
+      packer.packArrayHeader(arr.length);
+      for (Object item : arr) {
+        packValue(packer, item);
+      }
+    } else {
+      packer.packString(value.toString());
+    }
+  }
+
+  /**
+   * Unpack the next JSON-like value.
+   *
+   * Integers are returned as Integer if they fit, otherwise as Long or
+   * BigInteger, floating point values as Double, maps as LinkedHashMap with
+   * String keys and arrays as ArrayList.
+   *
+   * @param unpacker the unpacker to use
+   * @return the value
+   * @throws IOException if unpacking fails
+   */
+  public static Object unpackValue(MessageUnpacker unpacker) throws IOException {
+    MessageFormat format = unpacker.getNextFormat();
+    switch (format.getValueType()) {
+      case NIL:
+        unpacker.unpackNil();
+        return null;
+      case BOOLEAN:
+        return unpacker.unpackBoolean();
+      case INTEGER:
+        if (format == MessageFormat.UINT64) {
+          BigInteger big = unpacker.unpackBigInteger();
+          return big.bitLength() < 64 ? (Object) big.longValue() : big;
+        }
+        long l = unpacker.unpackLong();
+        if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+          return (int) l;
+        }
+        return l;
+      case FLOAT:
+        return unpacker.unpackDouble();
+      case STRING:
+        return unpacker.unpackString();
+      case BINARY:
+        return unpacker.readPayload(unpacker.unpackBinaryHeader());
+      case ARRAY: {
+        int n = unpacker.unpackArrayHeader();
+        List<Object> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+          list.add(unpackValue(unpacker));
+        }
+        return list;
+      }
+      case MAP: {
+        int n = unpacker.unpackMapHeader();
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+          Object key = unpackValue(unpacker);
+          map.put(key == null ? null : key.toString(), unpackValue(unpacker));
+        }
+        return map;
+      }
+      default:
+        unpacker.skipValue();
+        return null;
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each request as MsgPack and applies the changes before the next
+ * request is sent.
+ *
+ * @author Johann Petrak
+ */
+public class MsgPackExecution implements ExecutionStrategy {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  /**
+   * When a request was started and completely sent, and its size.
+   */
+  protected static class RequestTiming {
+    protected long startNanos;
+    // read by the timeout watchdog, 0 until the request has been written
+    protected volatile long sentNanos;
+    protected long requestBytes;
+  }
+
+  protected final PythonPr pr;
+
+  /**
+   * Create the strategy for a PR.
+   *
+   * @param pr the PR
+   */
+  public MsgPackExecution(PythonPr pr) {
+    this.pr = pr;
+  }
+
+  @Override
+  public void execute(List<Document> docs, boolean batch) {
+    execute(docs, batch, 0);
+  }
+
+  /**
+   * Send the request and apply the changes immediately.
+   * 
+   * @param docs documents to process
+   * @param batch true to send an execute_batch request
+   * @param attempt the number of times the request was already sent to a
+   * process which died
+   */
+  protected void execute(List<Document> docs, boolean batch, int attempt) {
+    RequestTiming timing = new RequestTiming();
+    Process4FrameStream.FrameWriter request = makeWriter(docs, batch, null, timing);
+    pr.metrics.requestStarted();
+    byte[] frame;
+    try {
+      frame = pr.recovery.waitForResponse(() -> (byte[]) pr.process.process(request), () -> timing.sentNanos);
+    } catch (ProcessRecovery.RequestTimeoutException ex) {
+      pr.recovery.timedOut(docs);
+      return;
+    } catch (ProcessRecovery.ProcessDiedException ex) {
+      if (pr.recovery.crashed(docs, attempt)) {
+        execute(docs, batch, attempt + 1);
+      }
+      return;
+    }
+    if (frame == null) {
+      throw new GateRuntimeException("Invalid null response from Python process");
+    }
+    applyResponse(docs, batch, pr.msgPackCodec.decodeResponse(frame), timing);
+  }
+
+  /**
+   * Create the writer for an execute or execute_batch request.
+   * 
+   * The request gets written to the process while the documents are 
+   * converted, the timing is updated when the request is written.
+   * 
+   * @param docs documents to process
+   * @param batch true to write an execute_batch request
+   * @param id the request id or null
+   * @param timing receives the timing and size of the request
+   * @return the writer
+   */
+  protected Process4FrameStream.FrameWriter makeWriter(List<Document> docs, boolean batch, 
+          Long id, RequestTiming timing) {
+    return out -> {
+      timing.startNanos = System.nanoTime();
+      CountingOutputStream counting = new CountingOutputStream(out);
+      if (batch) {
+        pr.msgPackCodec.writeExecuteBatchRequest(docs, pr.getSetsToSend(), id, counting);
+      } else {
+        pr.msgPackCodec.writeExecuteRequest(docs.get(0), pr.getSetsToSend(), id, counting);
+      }
+      timing.requestBytes = counting.getByteCount();
+      timing.sentNanos = System.nanoTime();
+    };
+  }
+
+  /**
+   * Apply the changelogs from an execute or execute_batch response.
+   * 
+   * @param docs the documents which were sent
+   * @param batch true if this is the response to an execute_batch request
+   * @param response the response
+   * @param timing the timing of the request
+   */
+  protected void applyResponse(List<Document> docs, boolean batch, 
+          MsgPackCodec.Response response, RequestTiming timing) {
+    if (!"ok".equals(response.status)) {
+      logger.debug("Python exception, stacktrace we got: "+response.stacktrace);
+      throw new GateRuntimeException("Error processing document: " + response.error
+              + "\nAdditional info from Python:\n" + response.info);
+    }
+    List<Map<String, Object>> chlogs;
+    if (batch) {
+      chlogs = pr.msgPackCodec.loadChangeLogs(response);
+      if (chlogs.size() != docs.size()) {
+        throw new GateRuntimeException("Sent " + docs.size() + " documents but got " 
+                + chlogs.size() + " changelogs back");
+      }
+    } else {
+      chlogs = Collections.singletonList(pr.msgPackCodec.loadChangeLog(response));
+    }
+    for (int i = 0; i < docs.size(); i++) {
+      pr.changeLogApplier.applyChangeLog(chlogs.get(i), docs.get(i));
+    }
+    pr.recordPhases(docs.size(), timing.startNanos, timing.sentNanos - timing.startNanos, 
+            response.receivedNanos - timing.sentNanos, System.nanoTime() - response.receivedNanos,
+            timing.requestBytes, response.getFrameSize(), response.header.get("timings"));
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The partial results of the duplicates of a PR which still need to be
+ * reduced.
+ *
+ * Each duplicate adds its finish result when it finishes and then takes out
+ * groups of results as long as enough are available, reduces them in its own
+ * Python process and adds the combined result again. This way the results
+ * are combined tree-style while the duplicates finish and the last duplicate
+ * only has to reduce the few results which are left.
+ * <p>
+ * If a spill threshold is set, the results are serialized to JSON when they
+ * are added and once the results kept in memory would exceed the threshold,
+ * further results are written to files in a temporary directory and read
+ * back when they are taken out.
+ * <p>
+ * Instances are thread-safe and shared between all duplicates of a PR.
+ *
+ * @author Johann Petrak
+ */
+public class PartialResults {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  // each entry is either a result map or the file it was spilled to
+  private final List<Object> entries = new ArrayList<>();
+  private final List<Long> sizes = new ArrayList<>();
+  private long spillThreshold = 0;
+  private long bytesInMemory = 0;
+  private File spillDirectory;
+  private long lastFileId = 0;
+  private long nrSpilled = 0;
+
+  /**
+   * Set the number of bytes of serialized results which may be kept in
+   * memory.
+   *
+   * @param bytes the threshold, 0 or less to keep all results in memory
+   */
+  public synchronized void setSpillThreshold(long bytes) {
+    spillThreshold = bytes;
+  }
+
+  /**
+   * Add a result.
+   *
+   * @param result the result, null is ignored
+   */
+  public void add(Map<String, Object> result) {
+    if (result == null) {
+      return;
+    }
+    long threshold;
+    synchronized (this) {
+      threshold = spillThreshold;
+    }
+    if (threshold <= 0) {
+      synchronized (this) {
+        entries.add(result);
+        sizes.add(0L);
+      }
+      return;
+    }
+    byte[] json;
+    try {
+      json = JSON.std.asBytes(result);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not convert partial result to JSON", ex);
+    }
+    File file = null;
+    synchronized (this) {
+      if (bytesInMemory + json.length <= threshold) {
+        entries.add(result);
+        sizes.add((long) json.length);
+        bytesInMemory += json.length;
+        return;
+      }
+      file = newSpillFile();
+    }
+    try {
+      Files.write(file.toPath(), json);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write partial result to " + file, ex);
+    }
+    synchronized (this) {
+      entries.add(file);
+      sizes.add(0L);
+      nrSpilled++;
+    }
+  }
+
+  /**
+   * Take out the oldest results if there are at least the given number.
+   *
+   * @param n the number of results to take
+   * @return the results or null if there are fewer than n
+   */
+  public List<Map<String, Object>> take(int n) {
+    List<Object> taken;
+    synchronized (this) {
+      if (entries.size() < n) {
+        return null;
+      }
+      taken = removeFirst(n);
+    }
+    return load(taken);
+  }
+
+  /**
+   * Take out all results.
+   *
+   * @return the results, possibly empty
+   */
+  public List<Map<String, Object>> takeAll() {
+    List<Object> taken;
+    synchronized (this) {
+      taken = removeFirst(entries.size());
+    }
+    return load(taken);
+  }
+
+  /**
+   * Get the number of results.
+   *
+   * @return number of results
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the number of results which were written to files.
+   *
+   * @return number of results spilled
+   */
+  public synchronized long getNrSpilled() {
+    return nrSpilled;
+  }
+
+  /**
+   * Remove all results and the spill directory.
+   */
+  public synchronized void cleanup() {
+    entries.clear();
+    sizes.clear();
+    bytesInMemory = 0;
+    nrSpilled = 0;
+    if (spillDirectory != null) {
+      File[] files = spillDirectory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (!file.delete()) {
+            logger.warn("Could not delete spilled result " + file);
+          }
+        }
+      }
+      if (!spillDirectory.delete()) {
+        logger.warn("Could not delete spill directory " + spillDirectory);
+      }
+      spillDirectory = null;
+    }
+  }
+
+  // must be called while holding the lock
+  private List<Object> removeFirst(int n) {
+    List<Object> ret = new ArrayList<>(entries.subList(0, n));
+    for (Long size : sizes.subList(0, n)) {
+      bytesInMemory -= size;
+    }
+    entries.subList(0, n).clear();
+    sizes.subList(0, n).clear();
+    return ret;
+  }
+
+  // must be called while holding the lock
+  private File newSpillFile() {
+    if (spillDirectory == null) {
+      try {
+        spillDirectory = Files.createTempDirectory("gate-python-reduce").toFile();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not create directory for spilled results", ex);
+      }
+    }
+    lastFileId++;
+    return new File(spillDirectory, "result-" + lastFileId + ".json");
+  }
+
+  private List<Map<String, Object>> load(List<Object> taken) {
+    List<Map<String, Object>> ret = new ArrayList<>(taken.size());
+    for (Object entry : taken) {
+      ret.add(load(entry));
+    }
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> load(Object entry) {
+    if (!(entry instanceof File)) {
+      return (Map<String, Object>) entry;
+    }
+    File file = (File) entry;
+    try {
+      return JSON.std.mapFrom(file);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read spilled result " + file, ex);
+    } finally {
+      if (!file.delete()) {
+        logger.warn("Could not delete spilled result " + file);
+      }
+    }
+  }
+}
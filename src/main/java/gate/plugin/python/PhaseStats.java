@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Distribution statistics for the phases of processing a document.
+ *
+ * For each phase (e.g. sending the request, waiting for the response,
+ * applying the changelog) the values are collected in a histogram with
+ * logarithmic buckets, so the memory needed does not depend on the number
+ * of documents and percentiles have a relative error of at most about 3
+ * percent. The count, mean and maximum are exact.
+ *
+ * Instances are not thread-safe, each duplicate of a PR uses its own.
+ *
+ * @author Johann Petrak
+ */
+public class PhaseStats {
+
+  // the phases in the order they were first recorded
+  private final Map<String, Histogram> phases = new LinkedHashMap<>();
+
+  /**
+   * Record a value for a phase.
+   *
+   * @param phase the name of the phase
+   * @param value the value, negative values are recorded as 0
+   */
+  public void record(String phase, long value) {
+    Histogram histogram = phases.get(phase);
+    if (histogram == null) {
+      histogram = new Histogram();
+      phases.put(phase, histogram);
+    }
+    histogram.record(value);
+  }
+
+  /**
+   * Get the histogram for a phase.
+   *
+   * @param phase the name of the phase
+   * @return the histogram or null if nothing was recorded for the phase
+   */
+  public Histogram get(String phase) {
+    return phases.get(phase);
+  }
+
+  /**
+   * Check if anything was recorded.
+   *
+   * @return true if nothing was recorded
+   */
+  public boolean isEmpty() {
+    return phases.isEmpty();
+  }
+
+  /**
+   * Add all values recorded in another instance.
+   *
+   * @param other the other instance
+   */
+  public void addAll(PhaseStats other) {
+    for (Map.Entry<String, Histogram> entry : other.phases.entrySet()) {
+      Histogram histogram = phases.get(entry.getKey());
+      if (histogram == null) {
+        histogram = new Histogram();
+        phases.put(entry.getKey(), histogram);
+      }
+      histogram.addAll(entry.getValue());
+    }
+  }
+
+  /**
+   * Convert to a map which can be stored as a feature.
+   *
+   * For each phase this contains a map with the keys count, mean, p50, p95,
+   * p99 and max.
+   *
+   * @return map from phase name to statistics
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> ret = new LinkedHashMap<>();
+    for (Map.Entry<String, Histogram> entry : phases.entrySet()) {
+      Histogram histogram = entry.getValue();
+      Map<String, Object> stats = new LinkedHashMap<>();
+      stats.put("count", histogram.getCount());
+      stats.put("mean", histogram.getMean());
+      stats.put("p50", histogram.getPercentile(50));
+      stats.put("p95", histogram.getPercentile(95));
+      stats.put("p99", histogram.getPercentile(99));
+      stats.put("max", histogram.getMax());
+      ret.put(entry.getKey(), stats);
+    }
+    return ret;
+  }
+
+  /**
+   * A histogram of non-negative long values with logarithmic buckets.
+   *
+   * Values below 32 get their own bucket, larger values are put into one
+   * of 32 buckets per power of two.
+   */
+  public static class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Record a value.
+     *
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      counts[index(value)]++;
+      count++;
+      sum += value;
+      if (value > max) {
+        max = value;
+      }
+    }
+
+    /**
+     * Add all values recorded in another histogram.
+     *
+     * @param other the other histogram
+     */
+    public void addAll(Histogram other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      count += other.count;
+      sum += other.sum;
+      max = Math.max(max, other.max);
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return count
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return maximum or 0 if nothing was recorded
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Get the mean of all values recorded.
+     *
+     * @return mean or 0 if nothing was recorded
+     */
+    public double getMean() {
+      return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Get the approximate value below or at which the given percentage of
+     * values lie.
+     *
+     * @param percent the percentage, between 0 and 100
+     * @return the approximate percentile or 0 if nothing was recorded
+     */
+    public long getPercentile(double percent) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percent / 100.0 * count);
+      if (rank < 1) {
+        rank = 1;
+      }
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(value(i), max);
+        }
+      }
+      return max;
+    }
+
+    private static int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exp = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the middle of the range of values which go into the bucket
+    private static long value(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = index % SUB_BUCKETS;
+      long width = 1L << (exp - SUB_BITS);
+      return ((SUB_BUCKETS + sub) << (exp - SUB_BITS)) + width / 2;
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.lib.interaction.process.ProcessBase;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Run a process and exchange binary frames with it over stdin/stdout.
+ *
+ * This is the binary counterpart of Process4StringStream from
+ * gatelib-interaction: instead of one line of text per message, each
+ * message is sent as a frame. A frame consists of one or more chunks,
+ * where each chunk is a 4 byte big-endian length followed by that many bytes,
+ * and the frame is terminated by a chunk of length 0. This way the content
+ * never needs to get escaped and a writer does not need to know the total
+ * size of a message before it starts writing.
+ * <p>
+ * Standard error of the process gets copied to standard output, just like
+ * for Process4StringStream.
+ *
+ * @author Johann Petrak
+ */
+public class Process4FrameStream extends ProcessBase {
+
+  /**
+   * The maximum size of a single chunk we write.
+   */
+  public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+  /**
+   * The size of the chunks written when a frame is streamed with a 
+   * FrameWriter.
+   */
+  public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Something that writes the content of a frame to an output stream.
+   */
+  @FunctionalInterface
+  public interface FrameWriter {
+
+    /**
+     * Write the content of the frame.
+     *
+     * @param out the stream to write to, must not be closed by the writer
+     * @throws IOException if writing fails
+     */
+    void write(OutputStream out) throws IOException;
+  }
+
+  private final Object synchronizer = new Object();
+  private LoopbackEndpoint endpoint;
+  private Socket socket;
+  private DataInputStream dis;
+  private DataOutputStream dos;
+  private FrameOutputStream fos;
+
+  private Process4FrameStream() {
+  }
+
+  /**
+   * Create and start the process.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments
+   * @return the process instance
+   */
+  public static Process4FrameStream create(File workingDirectory,
+          Map<String, String> environment, String... command) {
+    return create(workingDirectory, environment, Arrays.asList(command));
+  }
+
+  /**
+   * Create and start the process.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments
+   * @return the process instance
+   */
+  public static Process4FrameStream create(File workingDirectory,
+          Map<String, String> environment, List<String> command) {
+    return create(workingDirectory, environment, command, null);
+  }
+
+  /**
+   * Create and start a process which connects back to the given endpoint.
+   *
+   * All messages are then exchanged over the socket connection instead of
+   * standard input and output, and both standard output and standard error
+   * of the process get copied to standard output.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments, which must already contain
+   * whatever the process needs to know to connect to the endpoint
+   * @param endpoint the endpoint to wait for the connection on, or null to
+   * use standard input and output
+   * @return the process instance
+   */
+  public static Process4FrameStream create(File workingDirectory,
+          Map<String, String> environment, List<String> command, LoopbackEndpoint endpoint) {
+    Process4FrameStream ret = new Process4FrameStream();
+    ret.endpoint = endpoint;
+    if (workingDirectory != null) {
+      ret.workingDir = workingDirectory;
+    }
+    if (environment != null) {
+      ret.envvars.putAll(environment);
+    }
+    ret.command.addAll(command);
+    ret.updateCommand4OS(ret.command);
+    ret.ensureProcess();
+    return ret;
+  }
+
+  /**
+   * Attach to a process which was not started by us and which connects back
+   * to the given endpoint, e.g. a child forked by a ForkServer.
+   *
+   * @param process the already running process
+   * @param endpoint the endpoint to wait for the connection on
+   * @return the process instance
+   */
+  public static Process4FrameStream attach(Process process, LoopbackEndpoint endpoint) {
+    Process4FrameStream ret = new Process4FrameStream();
+    ret.endpoint = endpoint;
+    ret.process = process;
+    // the builder is only checked for being set to decide if the process
+    // is running, it never gets used to start anything
+    ret.builder = new ProcessBuilder(ret.command);
+    ret.setupInteraction();
+    return ret;
+  }
+
+  /**
+   * Send a frame and wait for the response frame.
+   *
+   * @param data a byte array with the content of the frame to send or a 
+   * FrameWriter which writes the content
+   * @return a byte array with the content of the response frame or null if
+   * the process closed its output
+   */
+  @Override
+  public Object process(Object data) {
+    synchronized (synchronizer) {
+      try {
+        if (data instanceof FrameWriter) {
+          writeFrame((FrameWriter) data);
+        } else {
+          writeFrame((byte[]) data);
+        }
+        return readFrame();
+      } catch (EOFException ex) {
+        return null;
+      } catch (IOException ex) {
+        throw new RuntimeException("Problem when communicating with the process", ex);
+      }
+    }
+  }
+
+  /**
+   * Write one frame to the process.
+   *
+   * @param data content of the frame
+   * @throws IOException if writing fails
+   */
+  public void writeFrame(byte[] data) throws IOException {
+    int offset = 0;
+    while (offset < data.length) {
+      int len = Math.min(MAX_CHUNK_SIZE, data.length - offset);
+      dos.writeInt(len);
+      dos.write(data, offset, len);
+      offset += len;
+    }
+    dos.writeInt(0);
+    dos.flush();
+  }
+
+  /**
+   * Write one frame to the process while its content is getting created.
+   * 
+   * The content is passed on to the process in chunks of at most 
+   * STREAM_CHUNK_SIZE bytes, using the same chunk buffer for all frames, so
+   * the content of the frame never needs to be held in memory as a whole.
+   * If the writer fails, part of the frame may already have been sent and
+   * the process cannot be used any more.
+   * 
+   * @param writer writes the content of the frame
+   * @throws IOException if writing fails
+   */
+  public void writeFrame(FrameWriter writer) throws IOException {
+    try {
+      writer.write(fos);
+    } catch (IOException | RuntimeException ex) {
+      fos.discard();
+      throw ex;
+    }
+    fos.finishFrame();
+  }
+
+  /**
+   * Read one frame from the process.
+   *
+   * @return the content of the frame
+   * @throws IOException if reading fails, EOFException if the process
+   * closed its output
+   */
+  public byte[] readFrame() throws IOException {
+    byte[] buf = new byte[0];
+    int size = 0;
+    int len;
+    while ((len = dis.readInt()) != 0) {
+      if (len < 0) {
+        throw new IOException("Invalid chunk length in frame: " + len);
+      }
+      if (size + len > buf.length) {
+        // the first chunk gets allocated exactly, after that we double
+        buf = Arrays.copyOf(buf, Math.max(size + len, 2 * buf.length));
+      }
+      dis.readFully(buf, size, len);
+      size += len;
+    }
+    return size == buf.length ? buf : Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * Get the underlying process.
+   *
+   * @return the process
+   */
+  public Process getProcess() {
+    return process;
+  }
+
+  /**
+   * Check if the process is running.
+   *
+   * @return true if the process is running
+   */
+  @Override
+  public boolean isAlive() {
+    return !need2start();
+  }
+
+  @Override
+  protected void setupInteraction() {
+    InputStream in;
+    OutputStream out;
+    if (endpoint == null) {
+      in = process.getInputStream();
+      out = process.getOutputStream();
+    } else {
+      try {
+        socket = endpoint.accept(process);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+      } catch (IOException ex) {
+        throw new RuntimeException("Could not get connection from process", ex);
+      }
+      copyStream(process.getInputStream(), System.out);
+    }
+    dos = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+    dis = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    fos = new FrameOutputStream();
+    copyStream(process.getErrorStream(), System.out);
+  }
+
+  @Override
+  protected void stopInteraction() {
+    stopRequested = true;
+    try {
+      dis.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+    try {
+      dos.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+    if (socket != null) {
+      try {
+        socket.close();
+        process.getOutputStream().close();
+      } catch (IOException ex) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Output stream which writes everything as chunks of a frame.
+   */
+  private class FrameOutputStream extends OutputStream {
+
+    private final byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+    private int count = 0;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == chunk.length) {
+        writeChunk();
+      }
+      chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == chunk.length) {
+          writeChunk();
+        }
+        int n = Math.min(len, chunk.length - count);
+        System.arraycopy(b, off, chunk, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    // flush and close get called by the writers for the frame content and
+    // must not end the frame or force a small chunk
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void writeChunk() throws IOException {
+      if (count > 0) {
+        dos.writeInt(count);
+        dos.write(chunk, 0, count);
+        count = 0;
+      }
+    }
+
+    void discard() {
+      count = 0;
+    }
+
+    void finishFrame() throws IOException {
+      writeChunk();
+      dos.writeInt(0);
+      dos.flush();
+    }
+  }
+
+}
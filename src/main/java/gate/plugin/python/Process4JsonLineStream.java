@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.lib.interaction.process.ProcessBase;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Run a process and exchange JSON messages, one per line, over stdin/stdout.
+ *
+ * This uses the same protocol as Process4StringStream from
+ * gatelib-interaction, but a request can also be passed as an object (e.g. a
+ * map) which then gets serialized directly onto the standard input of the
+ * process through a fixed size buffer, instead of first creating a String
+ * with the whole JSON representation.
+ * <p>
+ * Standard error of the process gets copied to standard output, just like
+ * for Process4StringStream.
+ *
+ * @author Johann Petrak
+ */
+public class Process4JsonLineStream extends ProcessBase {
+
+  /**
+   * The size of the buffer used for writing to the process.
+   */
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Something that writes the JSON of a message to an output stream.
+   */
+  @FunctionalInterface
+  public interface JsonWriter {
+
+    /**
+     * Write the JSON of the message, without the terminating newline.
+     *
+     * @param out the stream to write to, must not be closed by the writer
+     * @throws IOException if writing fails
+     */
+    void write(OutputStream out) throws IOException;
+  }
+
+  private final Object synchronizer = new Object();
+  private LoopbackEndpoint endpoint;
+  private Socket socket;
+  private BufferedReader ir;
+  private OutputStream os;
+  // used to write the JSON, does not flush or close the process stream 
+  // when the JSON writer is done, we do this after the terminating newline
+  private OutputStream nonClosingOs;
+  private CountingInputStream countingIn;
+  private CountingOutputStream countingOut;
+  private long lastWriteNanos;
+  // read by the timeout watchdog while waiting for the response
+  private volatile long writtenNanos;
+
+  private Process4JsonLineStream() {
+  }
+
+  /**
+   * Create and start the process.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments
+   * @return the process instance
+   */
+  public static Process4JsonLineStream create(File workingDirectory,
+          Map<String, String> environment, String... command) {
+    return create(workingDirectory, environment, Arrays.asList(command));
+  }
+
+  /**
+   * Create and start the process.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments
+   * @return the process instance
+   */
+  public static Process4JsonLineStream create(File workingDirectory,
+          Map<String, String> environment, List<String> command) {
+    return create(workingDirectory, environment, command, null);
+  }
+
+  /**
+   * Create and start a process which connects back to the given endpoint.
+   *
+   * All messages are then exchanged over the socket connection instead of
+   * standard input and output, and both standard output and standard error
+   * of the process get copied to standard output.
+   *
+   * @param workingDirectory working directory for the process
+   * @param environment additional environment variables to set, or null
+   * @param command the command and its arguments, which must already contain
+   * whatever the process needs to know to connect to the endpoint
+   * @param endpoint the endpoint to wait for the connection on, or null to
+   * use standard input and output
+   * @return the process instance
+   */
+  public static Process4JsonLineStream create(File workingDirectory,
+          Map<String, String> environment, List<String> command, LoopbackEndpoint endpoint) {
+    Process4JsonLineStream ret = new Process4JsonLineStream();
+    ret.endpoint = endpoint;
+    if (workingDirectory != null) {
+      ret.workingDir = workingDirectory;
+    }
+    if (environment != null) {
+      ret.envvars.putAll(environment);
+    }
+    ret.command.addAll(command);
+    ret.updateCommand4OS(ret.command);
+    ret.ensureProcess();
+    return ret;
+  }
+
+  /**
+   * Attach to a process which was not started by us and which connects back
+   * to the given endpoint, e.g. a child forked by a ForkServer.
+   *
+   * @param process the already running process
+   * @param endpoint the endpoint to wait for the connection on
+   * @return the process instance
+   */
+  public static Process4JsonLineStream attach(Process process, LoopbackEndpoint endpoint) {
+    Process4JsonLineStream ret = new Process4JsonLineStream();
+    ret.endpoint = endpoint;
+    ret.process = process;
+    // the builder is only checked for being set to decide if the process
+    // is running, it never gets used to start anything
+    ret.builder = new ProcessBuilder(ret.command);
+    ret.setupInteraction();
+    return ret;
+  }
+
+  /**
+   * Send a message and wait for the response line.
+   *
+   * @param data either a String which already contains the JSON for the
+   * message, a JsonWriter which writes the JSON, or an object (map, list, 
+   * bean) which gets serialized as JSON while it is written to the process.
+   * @return the response line or null if the process closed its output
+   */
+  @Override
+  public Object process(Object data) {
+    synchronized (synchronizer) {
+      try {
+        writtenNanos = 0;
+        long startNanos = System.nanoTime();
+        if (data instanceof String) {
+          os.write(((String) data).getBytes(StandardCharsets.UTF_8));
+        } else if (data instanceof JsonWriter) {
+          ((JsonWriter) data).write(nonClosingOs);
+        } else {
+          JSON.std.write(data, nonClosingOs);
+        }
+        os.write('\n');
+        os.flush();
+        writtenNanos = System.nanoTime();
+        lastWriteNanos = writtenNanos - startNanos;
+        return ir.readLine();
+      } catch (EOFException ex) {
+        return null;
+      } catch (IOException ex) {
+        throw new RuntimeException("Problem when communicating with the process", ex);
+      }
+    }
+  }
+
+  /**
+   * Get the number of bytes written to the process so far.
+   *
+   * @return number of bytes
+   */
+  public long getBytesWritten() {
+    return countingOut == null ? 0 : countingOut.getByteCount();
+  }
+
+  /**
+   * Get the number of bytes read from the process so far.
+   *
+   * @return number of bytes
+   */
+  public long getBytesRead() {
+    return countingIn == null ? 0 : countingIn.getByteCount();
+  }
+
+  /**
+   * Get the time it took to write the last message, including the time 
+   * needed to serialize it.
+   *
+   * @return time in nanoseconds
+   */
+  public long getLastWriteNanos() {
+    return lastWriteNanos;
+  }
+
+  /**
+   * Get the System.nanoTime when the last message was completely written.
+   * 
+   * This can be called from another thread while a message is exchanged.
+   *
+   * @return time in nanoseconds or 0 while a message is being written
+   */
+  public long getWrittenNanos() {
+    return writtenNanos;
+  }
+
+  /**
+   * Get the underlying process.
+   *
+   * @return the process
+   */
+  public Process getProcess() {
+    return process;
+  }
+
+  /**
+   * Check if the process is running.
+   *
+   * @return true if the process is running
+   */
+  @Override
+  public boolean isAlive() {
+    return !need2start();
+  }
+
+  @Override
+  protected void setupInteraction() {
+    InputStream in;
+    OutputStream out;
+    if (endpoint == null) {
+      in = process.getInputStream();
+      out = process.getOutputStream();
+    } else {
+      try {
+        socket = endpoint.accept(process);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+      } catch (IOException ex) {
+        throw new RuntimeException("Could not get connection from process", ex);
+      }
+      copyStream(process.getInputStream(), System.out);
+    }
+    countingOut = new CountingOutputStream(out);
+    countingIn = new CountingInputStream(in);
+    os = new BufferedOutputStream(countingOut, BUFFER_SIZE);
+    nonClosingOs = new FilterOutputStream(os) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    ir = new BufferedReader(
+            new InputStreamReader(countingIn, StandardCharsets.UTF_8), BUFFER_SIZE);
+    copyStream(process.getErrorStream(), System.out);
+  }
+
+  @Override
+  protected void stopInteraction() {
+    stopRequested = true;
+    try {
+      ir.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+    try {
+      os.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+    if (socket != null) {
+      try {
+        socket.close();
+        process.getOutputStream().close();
+      } catch (IOException ex) {
+        // ignore
+      }
+    }
+  }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles timeouts, crashes and recycling of the Python process of one 
+ * duplicate of a PythonPr, and counts them for the current run over a 
+ * corpus.
+ *
+ * The execution strategies wait for responses through this class, which 
+ * turns a timeout or a dying process into an exception they can react to
+ * by calling timedOut or crashed.
+ *
+ * @author Johann Petrak
+ */
+public class ProcessRecovery {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  /**
+   * Thrown when the python process was killed because it did not respond
+   * within the document timeout.
+   */
+  protected static class RequestTimeoutException extends GateRuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected RequestTimeoutException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+  
+  /**
+   * Thrown when the python process ended while we were waiting for a 
+   * response, e.g. because it crashed or was killed by the OOM killer.
+   */
+  protected static class ProcessDiedException extends GateRuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected ProcessDiedException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  // kills processes which did not respond in time, shared by all PRs
+  private static final ScheduledThreadPoolExecutor TIMEOUT_WATCHDOG = createWatchdog();
+  
+  private static ScheduledThreadPoolExecutor createWatchdog() {
+    ScheduledThreadPoolExecutor ret = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "PythonPr-timeout-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ret.setRemoveOnCancelPolicy(true);
+    return ret;
+  }
+
+  private final PythonPr pr;
+  private long nrTimeouts;
+  private long nrCrashes;
+  private long nrRetries;
+  private long nrRestarts;
+  private long nrSkipped;
+  private long nrRecycles;
+
+  /**
+   * Create the recovery handling for a PR.
+   *
+   * @param pr the PR
+   */
+  public ProcessRecovery(PythonPr pr) {
+    this.pr = pr;
+  }
+
+  /**
+   * Wait for a response from the python process, but at most for the 
+   * document timeout, counted from when the call starts.
+   * 
+   * This is for calls which only send a small request, see the other
+   * waitForResponse method for the details.
+   * 
+   * @param <T> the type of the response
+   * @param call sends the request if necessary and waits for the response
+   * @return the response
+   */
+  public <T> T waitForResponse(Supplier<T> call) {
+    long startNanos = System.nanoTime();
+    return waitForResponse(call, () -> startNanos);
+  }
+
+  /**
+   * Wait for a response from the python process, but at most for the 
+   * document timeout.
+   * 
+   * The timeout counts from when the request has been written, so the time
+   * needed to convert and send large documents is not included, or from 
+   * when the call starts if the request was written before. If writing 
+   * the request takes longer than the timeout, e.g. because the process 
+   * stopped reading, this counts as a timeout as well.
+   * <p>
+   * If the timeout is reached, the python process gets killed, which makes 
+   * the call return or fail, and a RequestTimeoutException is thrown. If
+   * retries are enabled and the call returns nothing or fails because the 
+   * process has ended, a ProcessDiedException is thrown.
+   * 
+   * @param <T> the type of the response
+   * @param call sends the request if necessary and waits for the response
+   * @param sentNanos returns the System.nanoTime when the request was 
+   * written, 0 while it is being written, may get called from another thread
+   * @return the response
+   */
+  public <T> T waitForResponse(Supplier<T> call, LongSupplier sentNanos) {
+    int timeout = pr.getDocumentTimeout();
+    boolean recover = pr.getMaxRetries() > 0;
+    Process python = pr.getPythonProcess();
+    if (python == null || (timeout <= 0 && !recover)) {
+      return call.get();
+    }
+    // 0: waiting, 1: got the response, 2: killed
+    AtomicInteger state = new AtomicInteger(0);
+    AtomicReference<ScheduledFuture<?>> kill = new AtomicReference<>();
+    if (timeout > 0) {
+      long timeoutNanos = TimeUnit.SECONDS.toNanos(timeout);
+      long waitNanos = System.nanoTime();
+      Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+          if (state.get() != 0) {
+            return;
+          }
+          long sent = sentNanos.getAsLong();
+          long remaining = sent == 0 ? 0 : Math.max(sent, waitNanos) + timeoutNanos - System.nanoTime();
+          if (remaining > 0) {
+            kill.set(TIMEOUT_WATCHDOG.schedule(this, remaining, TimeUnit.NANOSECONDS));
+          } else if (state.compareAndSet(0, 2)) {
+            python.destroyForcibly();
+          }
+        }
+      };
+      kill.set(TIMEOUT_WATCHDOG.schedule(watchdog, timeoutNanos, TimeUnit.NANOSECONDS));
+    }
+    T ret;
+    try {
+      ret = call.get();
+    } catch (RuntimeException ex) {
+      if (!state.compareAndSet(0, 1)) {
+        throw new RequestTimeoutException("Python process did not respond within " + timeout + " seconds", ex);
+      }
+      if (recover && hasEnded(python)) {
+        throw new ProcessDiedException("Python process ended unexpectedly", ex);
+      }
+      throw ex;
+    } finally {
+      // a check which is running right now may still reschedule itself, 
+      // it then finds the state changed and does nothing
+      ScheduledFuture<?> scheduled = kill.get();
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+    }
+    if (!state.compareAndSet(0, 1)) {
+      throw new RequestTimeoutException("Python process did not respond within " + timeout + " seconds", null);
+    }
+    if (ret == null && recover && hasEnded(python)) {
+      throw new ProcessDiedException("Python process ended unexpectedly", null);
+    }
+    return ret;
+  }
+  
+  // check if a process has ended, giving it a little time to do so after
+  // it closed its output
+  private static boolean hasEnded(Process python) {
+    try {
+      return python.waitFor(2, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return !python.isAlive();
+    }
+  }
+  
+  /**
+   * Skip the documents of a request which timed out and replace the python
+   * process, which was killed.
+   * 
+   * @param docs the documents of the request and of all other requests which
+   * will not complete because the process was killed
+   */
+  public void timedOut(List<Document> docs) {
+    nrTimeouts++;
+    pr.metrics.timeout();
+    logger.warn("Python process of duplicate " + pr.duplicateId + " did not respond within " 
+            + pr.getDocumentTimeout() + " seconds, restarting it and skipping documents " + getNames(docs));
+    skipDocuments(docs, PythonPr.TIMEOUT_FEATURE);
+    replaceProcess();
+  }
+  
+  /**
+   * Replace the python process which died while processing a request.
+   * 
+   * @param docs the documents of the request
+   * @param attempt the number of times the request was already sent to a 
+   * process which died
+   * @return true if the request should be sent again, false if the documents
+   * were skipped
+   */
+  public boolean crashed(List<Document> docs, int attempt) {
+    nrCrashes++;
+    pr.metrics.error();
+    boolean retry = attempt < pr.getMaxRetries();
+    if (retry) {
+      nrRetries++;
+      logger.warn("Python process of duplicate " + pr.duplicateId + " died, restarting it and retrying documents " 
+              + getNames(docs) + " (retry " + (attempt + 1) + " of " + pr.getMaxRetries() + ")");
+    } else {
+      logger.warn("Python process of duplicate " + pr.duplicateId + " died, restarting it and skipping documents " 
+              + getNames(docs) + " after " + attempt + " retries");
+      skipDocuments(docs, PythonPr.CRASH_FEATURE);
+    }
+    replaceProcess();
+    return retry;
+  }
+  
+  /**
+   * Replace the python process which died while requests were in flight.
+   * 
+   * Each of the requests must then be passed to retryInFlight.
+   * 
+   * @param docs the documents of all requests in flight
+   * @param nrRequests the number of requests in flight
+   */
+  public void crashedInFlight(List<Document> docs, int nrRequests) {
+    nrCrashes++;
+    pr.metrics.error();
+    logger.warn("Python process of duplicate " + pr.duplicateId + " died with " + nrRequests 
+            + " requests in flight, restarting it, documents " + getNames(docs));
+    replaceProcess();
+  }
+  
+  /**
+   * Check if a request which was in flight when the process died should be 
+   * sent again, otherwise skip its documents.
+   * 
+   * @param docs the documents of the request
+   * @param attempt the number of times the request was already sent to a 
+   * process which died
+   * @return true if the request should be sent again
+   */
+  public boolean retryInFlight(List<Document> docs, int attempt) {
+    if (attempt < pr.getMaxRetries()) {
+      nrRetries++;
+      return true;
+    }
+    logger.warn("Skipping documents " + getNames(docs) + " after " + attempt + " retries");
+    skipDocuments(docs, PythonPr.CRASH_FEATURE);
+    return false;
+  }
+  
+  /**
+   * Replace the python process which was found dead between documents.
+   */
+  public void died() {
+    nrCrashes++;
+    pr.metrics.error();
+    logger.warn("Python process of duplicate " + pr.duplicateId + " died, restarting it");
+    replaceProcess();
+  }
+  
+  /**
+   * Leave documents unchanged and mark them with a feature.
+   * 
+   * @param docs the documents
+   * @param feature the name of the feature to set to true
+   */
+  protected void skipDocuments(List<Document> docs, String feature) {
+    nrSkipped += docs.size();
+    for (Document doc : docs) {
+      doc.getFeatures().put(feature, true);
+    }
+  }
+  
+  private static List<String> getNames(List<Document> docs) {
+    List<String> names = new ArrayList<>();
+    for (Document doc : docs) {
+      names.add(doc.getName());
+    }
+    return names;
+  }
+  
+  /**
+   * Replace the python process after it was killed or died.
+   * 
+   * If a standby process is available, it is used and a new standby process 
+   * gets started in the background, otherwise a new process is started with 
+   * the same start parameters.
+   */
+  protected void replaceProcess() {
+    long startNanos = System.nanoTime();
+    boolean usedStandby = pr.switchProcess();
+    nrRestarts++;
+    if (pr.trace != null) {
+      pr.trace.span("restart", startNanos, System.nanoTime(), 
+              Collections.singletonMap("standby", usedStandby));
+    }
+  }
+  
+  /**
+   * Check if the python process should be recycled.
+   * 
+   * @return the reason for recycling or null if the process should be kept
+   */
+  public String getRecycleReason() {
+    long docs = pr.nrDocumentsProcessed - pr.processStartDocuments;
+    if (pr.getRecycleAfterDocuments() > 0 && docs >= pr.getRecycleAfterDocuments()) {
+      return docs + " documents";
+    }
+    long secs = (System.nanoTime() - pr.processStartNanos) / 1000000000L;
+    if (pr.getRecycleAfterSeconds() > 0 && secs >= pr.getRecycleAfterSeconds()) {
+      return secs + " seconds";
+    }
+    if (pr.getRecycleMaxRss() > 0) {
+      long rssKb = ProcessingMetrics.getRssKb(ProcessingMetrics.getPid(pr.getPythonProcess()));
+      if (rssKb >= pr.getRecycleMaxRss() * 1024L) {
+        return "resident memory of " + (rssKb / 1024) + " MB";
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Gracefully replace the python process if one of the recycling limits 
+   * has been reached.
+   * 
+   * All requests in flight are completed, then the process gets the finish
+   * request and its result is kept, so that it is included in the results
+   * passed to reduce when processing of the corpus finishes. The process is
+   * then stopped and replaced by the standby process or a new process.
+   */
+  public void recycleIfNeeded() {
+    if (pr.process == null || !pr.process.isAlive()) {
+      return;
+    }
+    String reason = getRecycleReason();
+    if (reason == null) {
+      return;
+    }
+    long startNanos = System.nanoTime();
+    pr.executionStrategy.completeAll();
+    logger.info("Recycling python process of duplicate " + pr.duplicateId + " after " + reason);
+    Map<String, Object> data = pr.finishProcess();
+    if (pr.getReduceFanIn() > 1) {
+      pr.keepResult(data);
+    } else if (data != null) {
+      pr.recycledResults.add(data);
+    }
+    boolean usedStandby = pr.switchProcess();
+    nrRecycles++;
+    if (pr.trace != null) {
+      pr.trace.span("recycle", startNanos, System.nanoTime(), 
+              Collections.singletonMap("standby", usedStandby));
+    }
+  }
+
+  /**
+   * Get the number of requests which timed out.
+   *
+   * @return number of timeouts
+   */
+  public long getNrTimeouts() {
+    return nrTimeouts;
+  }
+
+  /**
+   * Get the number of times the process died.
+   *
+   * @return number of crashes
+   */
+  public long getNrCrashes() {
+    return nrCrashes;
+  }
+
+  /**
+   * Get the number of requests which were sent again after a crash.
+   *
+   * @return number of retries
+   */
+  public long getNrRetries() {
+    return nrRetries;
+  }
+
+  /**
+   * Get the number of times the process was replaced after a timeout or
+   * crash.
+   *
+   * @return number of restarts
+   */
+  public long getNrRestarts() {
+    return nrRestarts;
+  }
+
+  /**
+   * Get the number of documents which were left unchanged.
+   *
+   * @return number of skipped documents
+   */
+  public long getNrSkipped() {
+    return nrSkipped;
+  }
+
+  /**
+   * Get the number of times the process was recycled.
+   *
+   * @return number of recycles
+   */
+  public long getNrRecycles() {
+    return nrRecycles;
+  }
+}
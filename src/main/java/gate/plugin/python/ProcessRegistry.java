@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JVM-wide registry of model servers which can be shared by PythonPrs in
+ * different controllers.
+ *
+ * PythonPrs which would start an identical python process, i.e. with the
+ * same interpreter, program, python path and program parameters, get the
+ * same model server from the registry, so the program and its models are
+ * only loaded once in the JVM. Each PR holds a reference from the time it
+ * first runs until it gets cleaned up, and the process is stopped when the
+ * last reference is released.
+ *
+ * @author Johann Petrak
+ */
+public class ProcessRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProcessRegistry.class);
+
+  private static final Map<String, Entry> SERVERS = new HashMap<>();
+
+  private static class Entry {
+
+    private final ModelServer server = new ModelServer();
+    private int nrReferences = 0;
+  }
+
+  private ProcessRegistry() {
+  }
+
+  /**
+   * Get the model server for a process key and add a reference to it.
+   *
+   * @param key the key describing the process
+   * @return the model server
+   */
+  public static synchronized ModelServer acquire(String key) {
+    Entry entry = SERVERS.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      SERVERS.put(key, entry);
+    }
+    entry.nrReferences++;
+    LOGGER.debug("Model server has " + entry.nrReferences + " references");
+    return entry.server;
+  }
+
+  /**
+   * Release a reference to the model server for a process key, stopping
+   * its process if this was the last reference.
+   *
+   * @param key the key the model server was acquired with
+   */
+  public static synchronized void release(String key) {
+    Entry entry = SERVERS.get(key);
+    if (entry == null) {
+      return;
+    }
+    entry.nrReferences--;
+    if (entry.nrReferences <= 0) {
+      SERVERS.remove(key);
+      entry.server.stop();
+      LOGGER.debug("Stopped model server after the last reference was released");
+    }
+  }
+
+  /**
+   * Get the number of model servers in the registry.
+   *
+   * @return number of model servers
+   */
+  public static synchronized int size() {
+    return SERVERS.size();
+  }
+}
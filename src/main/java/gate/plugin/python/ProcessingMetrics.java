@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Live throughput metrics which get published as a JMX MBean.
+ *
+ * This keeps counters for documents, requests, bytes and errors, and the
+ * latencies of the most recent requests, from which percentiles get
+ * calculated whenever they are read. Counters are updated by the thread
+ * doing the processing and may get read by JMX clients at any time.
+ *
+ * @author Johann Petrak
+ */
+public class ProcessingMetrics {
+
+  /**
+   * The JMX domain used for all MBeans of the plugin.
+   */
+  public static final String JMX_DOMAIN = "gate.plugin.python";
+
+  /**
+   * How many of the most recent request latencies are used for the
+   * percentiles.
+   */
+  public static final int LATENCY_WINDOW = 1024;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProcessingMetrics.class);
+
+  protected final AtomicLong documentsProcessed = new AtomicLong();
+  protected final AtomicLong requestsCompleted = new AtomicLong();
+  protected final AtomicLong inFlightRequests = new AtomicLong();
+  protected final AtomicLong bytesSent = new AtomicLong();
+  protected final AtomicLong bytesReceived = new AtomicLong();
+  protected final AtomicLong errors = new AtomicLong();
+
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int nrLatencies = 0;
+  private int nextLatency = 0;
+
+  private ObjectName objectName;
+
+  /**
+   * Record that a request was started.
+   */
+  public void requestStarted() {
+    inFlightRequests.incrementAndGet();
+  }
+
+  /**
+   * Record that a request was completed.
+   *
+   * @param nrDocs number of documents processed with the request
+   * @param micros latency of the request in microseconds
+   * @param sent bytes sent for the request
+   * @param received bytes received for the request
+   */
+  public void requestCompleted(int nrDocs, long micros, long sent, long received) {
+    if (inFlightRequests.decrementAndGet() < 0) {
+      inFlightRequests.set(0);
+    }
+    requestsCompleted.incrementAndGet();
+    documentsProcessed.addAndGet(nrDocs);
+    bytesSent.addAndGet(sent);
+    bytesReceived.addAndGet(received);
+    synchronized (latencies) {
+      latencies[nextLatency] = micros;
+      nextLatency = (nextLatency + 1) % LATENCY_WINDOW;
+      if (nrLatencies < LATENCY_WINDOW) {
+        nrLatencies++;
+      }
+    }
+  }
+
+  /**
+   * Record an error. This also forgets about any requests in flight, since
+   * they will not get completed.
+   */
+  public void error() {
+    errors.incrementAndGet();
+    inFlightRequests.set(0);
+  }
+
+  /**
+   * Forget about any requests in flight.
+   */
+  public void resetInFlight() {
+    inFlightRequests.set(0);
+  }
+
+  /**
+   * Get the number of documents processed.
+   *
+   * @return number of documents
+   */
+  public long getDocumentsProcessed() {
+    return documentsProcessed.get();
+  }
+
+  /**
+   * Get the number of requests completed.
+   *
+   * @return number of requests
+   */
+  public long getRequestsCompleted() {
+    return requestsCompleted.get();
+  }
+
+  /**
+   * Get the number of requests which have been started but not completed.
+   *
+   * @return number of requests
+   */
+  public long getInFlightRequests() {
+    return inFlightRequests.get();
+  }
+
+  /**
+   * Get the number of bytes sent.
+   *
+   * @return number of bytes
+   */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * Get the number of bytes received.
+   *
+   * @return number of bytes
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Get the number of errors.
+   *
+   * @return number of errors
+   */
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * Get the median latency of the recent requests.
+   *
+   * @return latency in microseconds
+   */
+  public long getLatencyP50Micros() {
+    return getLatencyPercentile(50);
+  }
+
+  /**
+   * Get the 95th percentile latency of the recent requests.
+   *
+   * @return latency in microseconds
+   */
+  public long getLatencyP95Micros() {
+    return getLatencyPercentile(95);
+  }
+
+  /**
+   * Get the 99th percentile latency of the recent requests.
+   *
+   * @return latency in microseconds
+   */
+  public long getLatencyP99Micros() {
+    return getLatencyPercentile(99);
+  }
+
+  /**
+   * Get the maximum latency of the recent requests.
+   *
+   * @return latency in microseconds
+   */
+  public long getLatencyMaxMicros() {
+    return getLatencyPercentile(100);
+  }
+
+  /**
+   * Get a percentile of the latencies of the recent requests.
+   *
+   * @param percent the percentage, between 0 and 100
+   * @return latency in microseconds, 0 if there were no requests
+   */
+  public long getLatencyPercentile(double percent) {
+    long[] values;
+    synchronized (latencies) {
+      values = Arrays.copyOf(latencies, nrLatencies);
+    }
+    if (values.length == 0) {
+      return 0;
+    }
+    Arrays.sort(values);
+    int rank = (int) Math.ceil(percent / 100.0 * values.length);
+    return values[Math.max(0, Math.min(values.length, rank) - 1)];
+  }
+
+  /**
+   * Register this instance with the platform MBean server.
+   *
+   * Failures are logged but otherwise ignored, as monitoring should never
+   * prevent processing. Nothing is done if the instance is already
+   * registered.
+   *
+   * @param properties the key properties of the object name, e.g.
+   * "type=PythonPr,duplicate=0"
+   */
+  public synchronized void register(String properties) {
+    if (objectName != null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException | RuntimeException ex) {
+      LOGGER.warn("Could not register MBean " + properties, ex);
+    }
+  }
+
+  /**
+   * Get the value for the group key property of the MBeans of a group of
+   * duplicates, made from the name of the resource.
+   *
+   * If another group with the same name is registered, a counter gets
+   * appended to the name, e.g. "PythonPr 00042 (2)". The value is quoted
+   * if the name contains characters which are not allowed in object names.
+   *
+   * @param type the value of the type key property, e.g. "PythonPr"
+   * @param name the name of the resource
+   * @return the value for the group key property
+   */
+  public static String makeGroup(String type, String name) {
+    if (name == null || name.isEmpty()) {
+      name = type;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    String group = name;
+    for (int counter = 2; ; counter++) {
+      String value = quoteIfNeeded(group);
+      try {
+        ObjectName pattern = new ObjectName(JMX_DOMAIN + ":type=" + type + ",group=" + value + ",*");
+        if (server.queryNames(pattern, null).isEmpty()) {
+          return value;
+        }
+      } catch (JMException | RuntimeException ex) {
+        return ObjectName.quote(group);
+      }
+      group = name + " (" + counter + ")";
+    }
+  }
+
+  private static String quoteIfNeeded(String value) {
+    for (char c : value.toCharArray()) {
+      if (",=:\"*?\n".indexOf(c) >= 0) {
+        return ObjectName.quote(value);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Unregister this instance from the platform MBean server, if it is
+   * registered.
+   */
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException | RuntimeException ex) {
+      LOGGER.debug("Could not unregister MBean " + objectName, ex);
+    }
+    objectName = null;
+  }
+
+  /**
+   * Get the process id of a process.
+   *
+   * @param process the process
+   * @return the process id or -1 if it cannot be determined
+   */
+  public static long getPid(Process process) {
+    if (process == null) {
+      return -1;
+    }
+    try {
+      // Java 9 and later, looked up in the public class so we can call it
+      return ((Number) Process.class.getMethod("pid").invoke(process)).longValue();
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      // try the alternatives below
+    }
+    try {
+      // our forked processes on Java 8
+      return ((Number) process.getClass().getMethod("pid").invoke(process)).longValue();
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      // try the field of the Java 8 implementation below
+    }
+    try {
+      Field field = process.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+      return ((Number) field.get(process)).longValue();
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Get the resident set size of a process.
+   *
+   * This is read from /proc/&lt;pid&gt;/status and therefore only
+   * available on Linux.
+   *
+   * @param pid the process id
+   * @return the resident set size in kB or -1 if not available
+   */
+  public static long getRssKb(long pid) {
+    if (pid < 0) {
+      return -1;
+    }
+    return readStatusValue(new File("/proc/" + pid + "/status"), "VmRSS:");
+  }
+
+  /**
+   * Read the first number of a line from a /proc status file.
+   *
+   * @param status the status file
+   * @param key the start of the line, e.g. "VmRSS:"
+   * @return the number or -1 if not available
+   */
+  protected static long readStatusValue(File status, String key) {
+    if (!status.exists()) {
+      return -1;
+    }
+    try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(key)) {
+          String[] fields = line.substring(key.length()).trim().split("\\s+");
+          return Long.parseLong(fields[0]);
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      // not available
+    }
+    return -1;
+  }
+}
@@ -26,9 +26,12 @@ import java.net.URL;
 
 import gate.Resource;
 import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.ProcessingResource;
 import gate.Gate;
 
 import gate.creole.AbstractLanguageAnalyser;
@@ -43,9 +46,10 @@ import gate.creole.metadata.Sharable;
 import gate.creole.ExecutionException;
 import gate.creole.metadata.HiddenCreoleParameter;
 import gate.gui.ResourceHelper;
-import gate.lib.interaction.process.pipes.Process4StringStream;
+import gate.lib.interaction.process.ProcessBase;
 import gate.util.GateRuntimeException;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -54,7 +58,10 @@ import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -63,11 +70,17 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import org.apache.commons.exec.CommandLine;
@@ -391,13 +404,1062 @@ public class PythonPr
   public Set<String> getSetsToUse() { return setsToUse; }
   protected Set<String> setsToUse = new HashSet<>();
 
+  /**
+   * Set the annotation types to send.
+   * 
+   * Only annotations of these types are sent from the annotation sets 
+   * selected with setsToUse. If empty, annotations of all types are sent.
+   *
+   * @param val list of annotation types
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Annotation types to send from the sets to use, empty=all")
+  public void setAnnotationTypes(List<String> val) {
+    annotationTypes = val;
+  }
+
+  /**
+   * Get the annotation types to send.
+   *
+   * @return list of annotation types
+   */
+  public List<String> getAnnotationTypes() {
+    return annotationTypes;
+  }
+  protected List<String> annotationTypes;
+
+  /**
+   * Set the annotation features to send.
+   * 
+   * Each entry is either a feature name, which is sent for annotations of 
+   * all types, or "Type:name", which is sent only for annotations of that
+   * type. If empty, all features are sent.
+   *
+   * @param val list of feature names
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Annotation features to send, name or Type:name, empty=all")
+  public void setAnnotationFeatures(List<String> val) {
+    annotationFeatures = val;
+  }
+
+  /**
+   * Get the annotation features to send.
+   *
+   * @return list of feature names
+   */
+  public List<String> getAnnotationFeatures() {
+    return annotationFeatures;
+  }
+  protected List<String> annotationFeatures;
+
+  /**
+   * Set if the document features should be sent.
+   *
+   * @param value if false, the document features are not sent
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "If the document features should be sent",
+          defaultValue = "true")
+  public void setSendDocumentFeatures(Boolean value) {
+    sendDocumentFeatures = value;
+  }
+
+  /**
+   * Get if the document features should be sent.
+   *
+   * @return flag
+   */
+  public Boolean getSendDocumentFeatures() {
+    return sendDocumentFeatures == null || sendDocumentFeatures;
+  }
+  protected Boolean sendDocumentFeatures = true;
+
+  /**
+   * Set if the document text should be sent.
+   * 
+   * If false, the document arrives in Python without text and the offsets
+   * of annotations are already converted to Python offsets.
+   *
+   * @param value if false, the document text is not sent
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "If the document text should be sent",
+          defaultValue = "true")
+  public void setSendText(Boolean value) {
+    sendText = value;
+  }
+
+  /**
+   * Get if the document text should be sent.
+   *
+   * @return flag
+   */
+  public Boolean getSendText() {
+    return sendText == null || sendText;
+  }
+  protected Boolean sendText = true;
+  
+  // the projection the program declared in its start response
+  protected DocumentProjection declaredProjection = DocumentProjection.ALL;
+
+  /**
+   * Possible formats for exchanging data with the python process.
+   */
+  public static enum ExchangeFormat {
+    /**
+     * One JSON message per line.
+     */
+    JSON,
+    /**
+     * Length-prefixed binary frames containing MessagePack, using the bdoc
+     * MsgPack representation for documents and changelogs.
+     */
+    MSGPACK
+  }
+
+  /**
+   * Set the format used for exchanging data with the python process.
+   *
+   * @param value one of the ExchangeFormat enum values
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Format for exchanging data with Python: JSON lines or MSGPACK frames",
+          defaultValue = "JSON")
+  public void setExchangeFormat(ExchangeFormat value) {
+    exchangeFormat = value;
+  }
+
+  /**
+   * Get the format used for exchanging data with the python process.
+   *
+   * @return exchange format
+   */
+  public ExchangeFormat getExchangeFormat() {
+    if (exchangeFormat == null) {
+      return ExchangeFormat.JSON;
+    }
+    return exchangeFormat;
+  }
+  protected ExchangeFormat exchangeFormat;
+
+  /**
+   * Possible ways of connecting to the python process.
+   */
+  public static enum Transport {
+    /**
+     * Exchange messages over standard input and output of the process.
+     */
+    PIPE,
+    /**
+     * The process connects back to a socket on the loopback interface and
+     * messages are exchanged over that connection.
+     */
+    SOCKET
+  }
+
+  /**
+   * Set how messages are exchanged with the python process.
+   * 
+   * With the SOCKET transport, the python process connects back to a 
+   * socket on the loopback interface and all messages are exchanged over 
+   * that connection. Anything the python program writes to standard 
+   * output then only ends up in the log and cannot break the communication.
+   *
+   * @param value one of the Transport enum values
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "How to exchange messages with Python: standard input/output PIPE or loopback SOCKET",
+          defaultValue = "PIPE")
+  public void setTransport(Transport value) {
+    transport = value;
+  }
+
+  /**
+   * Get how messages are exchanged with the python process.
+   *
+   * @return transport
+   */
+  public Transport getTransport() {
+    if (transport == null) {
+      return Transport.PIPE;
+    }
+    return transport;
+  }
+  protected Transport transport;
+
+  /**
+   * Set the number of documents to send to the python process in one request.
+   * 
+   * If this is larger than 1, documents are collected and sent together
+   * in one execute_batch request once the batch is full or the corpus
+   * has been processed. This means that the changes from python are only
+   * applied to each document once the whole batch has been processed, so
+   * this should only be used if the PR is the last one in the pipeline and
+   * the documents stay loaded until the corpus has been processed.
+   *
+   * @param value batch size
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Number of documents to send to Python in one request, 1 to process each document on its own",
+          defaultValue = "1")
+  public void setBatchSize(Integer value) {
+    batchSize = value;
+  }
+
+  /**
+   * Get the batch size.
+   *
+   * @return batch size
+   */
+  public Integer getBatchSize() {
+    if (batchSize == null || batchSize < 1) {
+      return 1;
+    }
+    return batchSize;
+  }
+  protected Integer batchSize;
+  
+  /**
+   * Set if the python process should be kept alive between runs.
+   * 
+   * If true, the python process is not stopped when processing of a corpus
+   * finishes. When the next corpus gets processed, the same process is 
+   * re-used and gets a reset command instead of the start command, so the
+   * python program does not need to get loaded and initialized again.
+   * A new process is started if the program, the python interpreter or any 
+   * of the parameters which influence the process have changed. The process
+   * gets stopped when the PR is deleted or the run was aborted.
+   *
+   * @param value if true keep the process alive
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Keep the Python process alive between runs and send a reset command instead of restarting",
+          defaultValue = "false")
+  public void setKeepAlive(Boolean value) {
+    keepAlive = value;
+  }
+
+  /**
+   * Get if the python process should be kept alive between runs.
+   *
+   * @return keep alive flag
+   */
+  public Boolean getKeepAlive() {
+    return keepAlive != null && keepAlive;
+  }
+  protected Boolean keepAlive;
+  
+  // identifies everything the running process depends on, a kept alive
+  // process is only re-used if this is the same for the next run
+  protected transient String processKey;
+  
+  /**
+   * Set the maximum number of requests which can be in flight at the same time.
+   * 
+   * If this is larger than 1, each batch of documents is split into up to 
+   * this many requests, each request gets an id, a separate reader 
+   * thread receives the responses, and the next part of the batch is sent
+   * to the python process before the response for the previous one has been 
+   * received. This allows the conversion of documents in Java to overlap 
+   * with the processing in Python. All changes are applied before the 
+   * PR returns, so this only has an effect if batchSize is larger than 1.
+   * This requires the MSGPACK exchange format.
+   *
+   * @param value maximum number of requests in flight
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum number of requests in flight to Python at the same time, needs MSGPACK",
+          defaultValue = "1")
+  public void setMaxInFlight(Integer value) {
+    maxInFlight = value;
+  }
+
+  /**
+   * Get the maximum number of requests in flight.
+   *
+   * @return maximum number of requests
+   */
+  public Integer getMaxInFlight() {
+    if (maxInFlight == null || maxInFlight < 1) {
+      return 1;
+    }
+    return maxInFlight;
+  }
+  protected Integer maxInFlight;
+  
+  /**
+   * A python process which has been started and has responded to the start
+   * request.
+   */
+  protected static class StartedProcess {
+    protected ProcessBase process;
+    protected FrameMultiplexer multiplexer;
+    protected DocumentProjection declaredProjection = DocumentProjection.ALL;
+
+    protected boolean isAlive() {
+      return process != null && process.isAlive();
+    }
+
+    protected void stop() {
+      if (process != null) {
+        process.stop();
+      }
+    }
+  }
+  
+  /**
+   * Set the document size from which on documents are handed over in files.
+   * 
+   * Documents with at least this many characters are written to a file
+   * in a scratch directory, and only the location of the file is sent to
+   * the python process, which writes the changelog to a file in the same
+   * directory. This avoids pushing very large messages through the 
+   * connection with the process. If this is 0, all documents are sent as
+   * part of the message.
+   *
+   * @param value minimum number of characters, or 0 to disable
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Hand over documents with at least this many characters in a shared file, 0 to disable",
+          defaultValue = "0")
+  public void setSharedFileThreshold(Integer value) {
+    sharedFileThreshold = value;
+  }
+
+  /**
+   * Get the document size from which on documents are handed over in files.
+   *
+   * @return minimum number of characters or 0 if disabled
+   */
+  public Integer getSharedFileThreshold() {
+    if (sharedFileThreshold == null || sharedFileThreshold < 0) {
+      return 0;
+    }
+    return sharedFileThreshold;
+  }
+  protected Integer sharedFileThreshold;
+  
+  
+  /**
+   * Set if the python processes should be forked from a fork server.
+   * 
+   * If true, the first duplicate which starts a process starts a fork server
+   * instead, which imports the python program and runs its model loading 
+   * hook once. The processes for all duplicates are then forked from that
+   * fork server, so models loaded by the hook are shared between the
+   * duplicates copy-on-write instead of being loaded by each duplicate.
+   * The forked processes always communicate over a socket, irrespective 
+   * of the transport parameter. This is not supported on Windows.
+   *
+   * @param value if true fork processes from a fork server
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Fork the python processes of all duplicates from a process which has loaded the model once",
+          defaultValue = "false")
+  public void setForkServer(Boolean value) {
+    forkServer = value;
+  }
+
+  /**
+   * Get if the python processes should be forked from a fork server.
+   *
+   * @return fork server flag
+   */
+  public Boolean getForkServer() {
+    return forkServer != null && forkServer;
+  }
+  protected Boolean forkServer;
+  
+  /**
+   * Set if all duplicates should use a single shared python process.
+   * 
+   * If true, the first duplicate starts one python process which is used by
+   * all duplicates, so the model is only loaded once. Documents submitted 
+   * concurrently by the duplicates are sent to the process together in one
+   * execute_batch request, so the program gets larger batches. The program
+   * only gets one start and one finish call and reduce is not called. This
+   * cannot be combined with maxInFlight, forkServer, sharedFileThreshold, 
+   * documentTimeout, maxRetries, standbyProcess, cpuAffinity or recycling.
+   *
+   * @param value if true use a shared model server process
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Use one python process for all duplicates and batch their documents together",
+          defaultValue = "false")
+  public void setModelServer(Boolean value) {
+    modelServer = value;
+  }
+
+  /**
+   * Get if all duplicates should use a single shared python process.
+   *
+   * @return model server flag
+   */
+  public Boolean getModelServer() {
+    return (modelServer != null && modelServer) || getShareProcess();
+  }
+  protected Boolean modelServer;
+  
+  /**
+   * Set if the model server process should be shared with PythonPrs in 
+   * other controllers.
+   * 
+   * If true, PythonPrs anywhere in the JVM which would start an identical 
+   * process, i.e. with the same interpreter, program, python path, program 
+   * parameters and annotation sets, use one model server process, which is
+   * kept running until the last of these PRs gets deleted. This implies
+   * modelServer. Since all PRs share the state of the program, the results
+   * of finish contain what was accumulated for all of them since the process 
+   * was last reset, so this is meant for programs which only annotate 
+   * documents.
+   *
+   * @param value if true share the process across controllers
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Share one model server process with identical PythonPrs in other controllers",
+          defaultValue = "false")
+  public void setShareProcess(Boolean value) {
+    shareProcess = value;
+  }
+
+  /**
+   * Get if the model server process should be shared with PythonPrs in 
+   * other controllers.
+   *
+   * @return share flag
+   */
+  public Boolean getShareProcess() {
+    return shareProcess != null && shareProcess;
+  }
+  protected Boolean shareProcess;
+  
+  // the model server from the process registry and the key it was 
+  // acquired with, if the process is shared across controllers
+  protected transient ModelServer registeredServer;
+  protected transient String registeredKey;
+  // if we hold a reference to the shared document cache for this run
+  protected transient boolean documentCacheAcquired;
+  
+  /**
+   * Set the maximum number of documents the model server processes in one
+   * batch.
+   * 
+   * If 0, this is the number of duplicates times batchSize.
+   *
+   * @param value maximum batch size
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum number of documents in a model server batch, 0: duplicates times batchSize",
+          defaultValue = "0")
+  public void setModelServerBatchSize(Integer value) {
+    modelServerBatchSize = value;
+  }
+
+  /**
+   * Get the maximum number of documents the model server processes in one
+   * batch.
+   *
+   * @return maximum batch size
+   */
+  public Integer getModelServerBatchSize() {
+    if (modelServerBatchSize == null || modelServerBatchSize <= 0) {
+      return Math.max(1, (nrDuplicates == null ? 1 : nrDuplicates.get()) * getBatchSize());
+    }
+    return modelServerBatchSize;
+  }
+  protected Integer modelServerBatchSize;
+  
+  /**
+   * Set how many milliseconds the model server waits for documents from 
+   * other duplicates before sending a batch which is not full.
+   *
+   * @param value maximum wait in milliseconds
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Milliseconds to wait for documents of other duplicates before sending a model server batch",
+          defaultValue = "10")
+  public void setModelServerMaxWait(Integer value) {
+    modelServerMaxWait = value;
+  }
+
+  /**
+   * Get how many milliseconds the model server waits for documents from 
+   * other duplicates before sending a batch which is not full.
+   *
+   * @return maximum wait in milliseconds
+   */
+  public Integer getModelServerMaxWait() {
+    if (modelServerMaxWait == null || modelServerMaxWait < 0) {
+      return 10;
+    }
+    return modelServerMaxWait;
+  }
+  protected Integer modelServerMaxWait;
+  
+  /**
+   * Set the name of the group of python PRs to run in one python process.
+   * 
+   * Consecutive PythonPrs in the same controller with the same non-empty
+   * fusion group, which use the same python interpreter, gatenlp package 
+   * and exchange format, are run in the python process of the first PR of 
+   * the group. The document is sent once, the programs of all PRs of the 
+   * group are run on it one after the other and the combined changes are 
+   * sent back. The other PRs of the group do not start a process and only 
+   * check that the document was processed. Their parameters for the python
+   * process, e.g. batchSize or maxInFlight, are ignored, the ones of the 
+   * first PR are used.
+   *
+   * @param value the fusion group name or empty
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Run consecutive PythonPrs with the same group name in one python process",
+          defaultValue = "")
+  public void setFusionGroup(String value) {
+    fusionGroup = value;
+  }
+
+  /**
+   * Get the name of the group of python PRs to run in one python process.
+   *
+   * @return the fusion group name, empty if not fused
+   */
+  public String getFusionGroup() {
+    return fusionGroup == null ? "" : fusionGroup.trim();
+  }
+  protected String fusionGroup;
+  
+  /**
+   * Set if serialized documents should be cached.
+   * 
+   * If true and the MSGPACK exchange format is used, the serialized form of
+   * each document sent is kept in a cache shared by all PythonPrs in the 
+   * JVM, and re-used by the next PythonPr with the same annotation sets if
+   * nothing changed the document in between. Changes are detected with 
+   * listeners on the document, its annotation sets and annotations. This
+   * helps in pipelines with several PythonPrs which do not all change the 
+   * document.
+   *
+   * @param value if true cache serialized documents
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Re-use the serialized document for later PythonPrs if it did not change (MSGPACK only)",
+          defaultValue = "false")
+  public void setCacheDocuments(Boolean value) {
+    cacheDocuments = value;
+  }
+
+  /**
+   * Get if serialized documents should be cached.
+   *
+   * @return cache flag
+   */
+  public Boolean getCacheDocuments() {
+    return cacheDocuments != null && cacheDocuments;
+  }
+  protected Boolean cacheDocuments;
+  
+  // the PRs whose programs run in our process, if we are the first of a
+  // fusion group
+  protected transient List<PythonPr> fusedMembers = new ArrayList<>();
+  
+  /**
+   * True if the changes to documents may be applied after execute() has
+   * returned, see canDeferChanges().
+   */
+  protected transient boolean deferredChangesSafe = false;
+  // the first PR of the fusion group, if our program runs in its process
+  protected transient PythonPr fusedInto;
+  // the last document handed to our process, so fused PRs can check it
+  protected transient Document lastFusedDocument;
+  // the annotation sets to send, including those of the fused PRs
+  protected transient Set<String> setsToSend;
+  
+  /**
+   * The name of the key in the finish and reduce results of a fused 
+   * process which holds the list of results of the fused programs.
+   */
+  public static final String FUSED_RESULTS_KEY = "_fused";
+  // the scratch directory for shared files, if enabled
+  protected transient SharedFiles sharedFiles;
+  
+  /**
+   * Set the file to write a timeline of the processing to.
+   * 
+   * If this is set, each duplicate records how long the start handshake,
+   * each phase of processing each document, finish and reduce take, and 
+   * the last duplicate to finish writes all of this to the file in the 
+   * Chrome trace event format, with one thread per duplicate. The file can
+   * be viewed with chrome://tracing or https://ui.perfetto.dev
+   *
+   * @param value the file URL or null to not record a trace
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "If set, write a Chrome trace timeline of all duplicates to this file")
+  public void setTraceFile(URL value) {
+    traceFile = value;
+  }
+
+  /**
+   * Get the file to write a timeline of the processing to.
+   *
+   * @return file URL or null
+   */
+  public URL getTraceFile() {
+    return traceFile;
+  }
+  protected URL traceFile;
+  
+  /**
+   * Set the maximum time to wait for the python process to process a document.
+   * 
+   * If the python process does not respond to a request within this time,
+   * counted from when the request has been written, it gets killed and a new process is started with the same start 
+   * parameters. The documents of the request are left unchanged, get the
+   * feature "_pythonTimeout" set to true, and processing continues with the
+   * next document. With a batchSize larger than 1 this applies to the whole 
+   * batch, and with a maxInFlight larger than 1 all requests in flight 
+   * are affected. Note that any state the python program had accumulated 
+   * since the start of the corpus is lost when the process is restarted.
+   *
+   * @param value timeout in seconds, or 0 to wait indefinitely
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Kill and restart the python process if a document takes longer than this many seconds, 0 to disable",
+          defaultValue = "0")
+  public void setDocumentTimeout(Integer value) {
+    documentTimeout = value;
+  }
+
+  /**
+   * Get the maximum time to wait for the python process to process a document.
+   *
+   * @return timeout in seconds or 0 if disabled
+   */
+  public Integer getDocumentTimeout() {
+    if (documentTimeout == null || documentTimeout < 0) {
+      return 0;
+    }
+    return documentTimeout;
+  }
+  protected Integer documentTimeout;
+  
+  /**
+   * Set how often to retry a request if the python process died.
+   * 
+   * If this is larger than 0 and the python process ends unexpectedly, e.g.
+   * because of a crash in a C extension or the OOM killer, a new process is
+   * started with the same start parameters and the request is sent again,
+   * up to this many times. If the process still dies, the documents of 
+   * the request are left unchanged, get the feature "_pythonCrashed" set to
+   * true, and processing continues with the next document. If this is 0, 
+   * processing of the corpus is aborted when the process dies.
+   *
+   * @param value number of retries
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Restart the python process and retry the request this many times if the process dies",
+          defaultValue = "0")
+  public void setMaxRetries(Integer value) {
+    maxRetries = value;
+  }
+
+  /**
+   * Get how often to retry a request if the python process died.
+   *
+   * @return number of retries
+   */
+  public Integer getMaxRetries() {
+    if (maxRetries == null || maxRetries < 0) {
+      return 0;
+    }
+    return maxRetries;
+  }
+  protected Integer maxRetries;
+  
+  /**
+   * Set if a started standby process should be kept to replace the python
+   * process.
+   * 
+   * If true, each duplicate starts a second python process in the background
+   * which is used instead of starting a new process when the python process
+   * has to be replaced after a timeout or crash, so the program does not 
+   * need to load its models while processing is waiting. A new standby 
+   * process is then started in the background. This needs the memory for
+   * a second process per duplicate.
+   *
+   * @param value if true keep a standby process
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Keep a started standby process for replacing the python process after a timeout or crash",
+          defaultValue = "false")
+  public void setStandbyProcess(Boolean value) {
+    standbyProcess = value;
+  }
+
+  /**
+   * Get if a started standby process should be kept to replace the python
+   * process.
+   *
+   * @return standby flag
+   */
+  public Boolean getStandbyProcess() {
+    return standbyProcess != null && standbyProcess;
+  }
+  protected Boolean standbyProcess;
+  
+  /**
+   * Set after how many documents the python process gets recycled.
+   * 
+   * If larger than 0, the python process is asked for its finish result 
+   * and replaced by a new process after it has been sent this many 
+   * documents. This limits the effect of memory leaks in the libraries 
+   * used by the python program. The finish results of all recycled 
+   * processes are passed to reduce together with the results of the 
+   * processes still running when processing finishes.
+   *
+   * @param value number of documents
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Replace the python process after this many documents, 0 for never",
+          defaultValue = "0")
+  public void setRecycleAfterDocuments(Integer value) {
+    recycleAfterDocuments = value;
+  }
+
+  /**
+   * Get after how many documents the python process gets recycled.
+   *
+   * @return number of documents
+   */
+  public Integer getRecycleAfterDocuments() {
+    if (recycleAfterDocuments == null || recycleAfterDocuments < 0) {
+      return 0;
+    }
+    return recycleAfterDocuments;
+  }
+  protected Integer recycleAfterDocuments;
+  
+  /**
+   * Set the resident memory size of the python process in MB from which on
+   * it gets recycled.
+   * 
+   * If larger than 0, the resident set size of the process is read from 
+   * /proc before each document and once it has reached the limit, the
+   * process gets recycled as for recycleAfterDocuments. This is only 
+   * available on Linux.
+   *
+   * @param value resident memory in MB
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Replace the python process once its resident memory reaches this many MB, 0 for never",
+          defaultValue = "0")
+  public void setRecycleMaxRss(Integer value) {
+    recycleMaxRss = value;
+  }
+
+  /**
+   * Get the resident memory size of the python process in MB from which on
+   * it gets recycled.
+   *
+   * @return resident memory in MB
+   */
+  public Integer getRecycleMaxRss() {
+    if (recycleMaxRss == null || recycleMaxRss < 0) {
+      return 0;
+    }
+    return recycleMaxRss;
+  }
+  protected Integer recycleMaxRss;
+  
+  /**
+   * Set after how many seconds the python process gets recycled.
+   * 
+   * If larger than 0, the process gets recycled as for 
+   * recycleAfterDocuments before the first document after it has been 
+   * running for this many seconds.
+   *
+   * @param value number of seconds
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Replace the python process after it ran this many seconds, 0 for never",
+          defaultValue = "0")
+  public void setRecycleAfterSeconds(Integer value) {
+    recycleAfterSeconds = value;
+  }
+
+  /**
+   * Get after how many seconds the python process gets recycled.
+   *
+   * @return number of seconds
+   */
+  public Integer getRecycleAfterSeconds() {
+    if (recycleAfterSeconds == null || recycleAfterSeconds < 0) {
+      return 0;
+    }
+    return recycleAfterSeconds;
+  }
+  protected Integer recycleAfterSeconds;
+  
+  /**
+   * Set how many partial results get reduced at a time while duplicates
+   * finish.
+   * 
+   * If larger than 1, each duplicate adds its finish result to the partial
+   * results when it finishes and then reduces groups of this many partial
+   * results with its own python process, adding the combined result back,
+   * as long as there are enough. The last duplicate then only reduces the
+   * remaining partial results. This requires that the reduce function of
+   * the program can also combine its own results. If this is 0 or 1, the 
+   * last duplicate reduces all finish results in one request.
+   *
+   * @param value the number of results to reduce at a time
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Reduce this many results at a time while duplicates finish, 0 for one final reduce",
+          defaultValue = "0")
+  public void setReduceFanIn(Integer value) {
+    reduceFanIn = value;
+  }
+
+  /**
+   * Get how many partial results get reduced at a time while duplicates
+   * finish.
+   *
+   * @return the number of results to reduce at a time
+   */
+  public Integer getReduceFanIn() {
+    if (reduceFanIn == null || reduceFanIn < 0) {
+      return 0;
+    }
+    return reduceFanIn;
+  }
+  protected Integer reduceFanIn;
+  
+  /**
+   * Set the size in MB of the partial results which may be kept in memory.
+   * 
+   * If larger than 0 and reduceFanIn is larger than 1, partial results 
+   * which would make the JSON size of all partial results kept in memory
+   * exceed this many MB are written to temporary files and read back when
+   * they get reduced.
+   *
+   * @param value size in MB
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Write partial results to disk once they exceed this many MB in memory, 0 for never",
+          defaultValue = "0")
+  public void setReduceSpillThreshold(Integer value) {
+    reduceSpillThreshold = value;
+  }
+
+  /**
+   * Get the size in MB of the partial results which may be kept in memory.
+   *
+   * @return size in MB
+   */
+  public Integer getReduceSpillThreshold() {
+    if (reduceSpillThreshold == null || reduceSpillThreshold < 0) {
+      return 0;
+    }
+    return reduceSpillThreshold;
+  }
+  protected Integer reduceSpillThreshold;
+  
+  /**
+   * Set the number of threads each python process should use.
+   * 
+   * This sets the environment variables OMP_NUM_THREADS, MKL_NUM_THREADS 
+   * and OPENBLAS_NUM_THREADS for the python process, so that the thread 
+   * pools of numerical libraries do not oversubscribe the CPUs when several
+   * duplicates run. If 0, the available CPUs are divided by the number of
+   * duplicates and variables already set for the JVM are kept, if larger
+   * than 0 this number is used, if negative, nothing is set.
+   *
+   * @param value number of threads
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Threads per python process, 0: CPUs divided by duplicates, negative: do not limit",
+          defaultValue = "0")
+  public void setThreadsPerProcess(Integer value) {
+    threadsPerProcess = value;
+  }
+
+  /**
+   * Get the number of threads each python process should use.
+   *
+   * @return number of threads
+   */
+  public Integer getThreadsPerProcess() {
+    if (threadsPerProcess == null) {
+      return 0;
+    }
+    return threadsPerProcess;
+  }
+  protected Integer threadsPerProcess;
+  
+  /**
+   * Set if the python process of each duplicate should be bound to its own
+   * CPUs.
+   * 
+   * If true, the CPUs available to the JVM are divided into slices of equal
+   * size, one per duplicate, and all threads of the python process are 
+   * bound to the slice of its duplicate using taskset. This is only 
+   * available on Linux.
+   *
+   * @param value if true set the CPU affinity
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment = "Bind the python process of each duplicate to its own CPUs (Linux only)",
+          defaultValue = "false")
+  public void setCpuAffinity(Boolean value) {
+    cpuAffinity = value;
+  }
+
+  /**
+   * Get if the python process of each duplicate should be bound to its own
+   * CPUs.
+   *
+   * @return affinity flag
+   */
+  public Boolean getCpuAffinity() {
+    return cpuAffinity != null && cpuAffinity;
+  }
+  protected Boolean cpuAffinity;
+  
+  // when the current process was started and how many documents had been 
+  // processed by then
+  protected transient long processStartNanos;
+  protected transient long processStartDocuments;
+  
+  // the finish results of the processes recycled during the current run
+  protected transient List<Map<String, Object>> recycledResults = new ArrayList<>();
+  
+  // the standby process while it is being started or ready
+  protected transient CompletableFuture<StartedProcess> standby;
+  
+  // handles timeouts, crashes and recycling for the current run over a corpus
+  protected transient ProcessRecovery recovery;
+  
+  // starts standby processes in the background, shared by all PRs
+  private static final ExecutorService STANDBY_STARTER = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "PythonPr-standby-starter");
+    thread.setDaemon(true);
+    return thread;
+  });
+  
+  // the spans recorded for the current run, if a trace file is set
+  protected transient TraceRecorder trace;
+  
+  // if more than one request can be in flight, this handles the responses
+  protected transient FrameMultiplexer multiplexer;
+  // how documents get processed, from the parameters for the current run
+  protected transient ExecutionMode executionMode;
+  protected transient ExecutionStrategy executionStrategy;
+  // used for documents handed over in shared files, if enabled
+  protected transient SharedFileExecution sharedFileExecution;
+  
+  // documents collected for the next execute_batch request
+  protected transient List<Document> batchDocuments;
+  // throughput statistics for the current run over a corpus, only documents
+  // whose changes got applied count as processed, skipped ones are counted
+  // by the recovery
+  protected transient long nrDocumentsProcessed;
+  protected transient long nrRequestsSent;
+  protected transient long executeNanos;
+  // per document statistics of the processing phases for the current run
+  protected transient PhaseStats phaseStats;
+  // live metrics of this duplicate, published as an MBean
+  protected transient PythonPrMetrics metrics;
+  
+  /**
+   * The name of the feature which receives the phase statistics of all
+   * duplicates.
+   */
+  public static final String PHASE_STATS_FEATURE = "_phaseStats";
+  
+  /**
+   * The name of the document feature which is set to true if processing
+   * the document timed out.
+   */
+  public static final String TIMEOUT_FEATURE = "_pythonTimeout";
+  
+  /**
+   * The name of the document feature which is set to true if the python 
+   * process died each time the document was sent.
+   */
+  public static final String CRASH_FEATURE = "_pythonCrashed";
+  
+  /**
+   * The name of the feature which receives the timeout, crash, retry, 
+   * restart, skipped document and recycle counts of all duplicates.
+   */
+  public static final String RECOVERY_COUNTS_FEATURE = "_recovery";
+
 
   /**
    * This field contains the currently active process for the python program.
-   * Otherwise, the field should be null.
+   * Otherwise, the field should be null. Depending on the exchange format
+   * this is a Process4JsonLineStream (JSON) or a Process4FrameStream (MSGPACK).
    *
    */
-  protected transient Process4StringStream process = null;
+  protected transient ProcessBase process = null;
 
   /**
    * Our logger instance.
@@ -428,50 +1490,198 @@ public class PythonPr
   public AtomicInteger getNrDuplicates() {
     return nrDuplicates;
   }
-  protected AtomicInteger nrDuplicates;
+  protected AtomicInteger nrDuplicates;
+
+  /**
+   * Result list setter.
+   *
+   * @param value should be a synchronized list
+   */
+  @Sharable
+  public void setResultList(List<Object> value) {
+    resultList = value;
+  }
+
+  /**
+   * Result list getter.
+   *
+   * @return the list
+   */
+  public List<Object> getResultList() {
+    return resultList;
+  }
+  protected List<Object> resultList;
+
+  /**
+   * Number of duplicates running on a corpus. This gets incremented for each
+   * duplicate that receives a controllerExecutionStarted callback and
+   * decremented for each duplicate that receives a controllerExecutionFinished
+   * or controllerExecutionAborted callback.
+   *
+   * @param value the value
+   */
+  @Sharable
+  public void setRunningDuplicates(AtomicInteger value) {
+    runningDuplicates = value;
+  }
+
+  /**
+   * Return the value of the currently running duplicates counter.
+   *
+   * @return number of running duplicates.
+   */
+  public AtomicInteger getRunningDuplicates() {
+    return runningDuplicates;
+  }
+  protected AtomicInteger runningDuplicates;
+
+  /**
+   * Set the fork server shared between the duplicates.
+   *
+   * @param value the fork server
+   */
+  @Sharable
+  public void setSharedForkServer(ForkServer value) {
+    sharedForkServer = value;
+  }
+
+  /**
+   * Get the fork server shared between the duplicates. The fork server
+   * process only runs if the forkServer parameter is true.
+   *
+   * @return the fork server
+   */
+  public ForkServer getSharedForkServer() {
+    return sharedForkServer;
+  }
+  protected ForkServer sharedForkServer;
+
+  /**
+   * Set the group under which the duplicates register their MBeans.
+   *
+   * @param value the value of the group key property
+   */
+  @Sharable
+  public void setSharedMetricsGroup(String value) {
+    sharedMetricsGroup = value;
+  }
+
+  /**
+   * Get the group under which the duplicates register their MBeans, this 
+   * is the name of the PR the duplicates were created from.
+   *
+   * @return the value of the group key property
+   */
+  public String getSharedMetricsGroup() {
+    return sharedMetricsGroup;
+  }
+  protected String sharedMetricsGroup;
+
+  /**
+   * Set the model server shared by all duplicates.
+   *
+   * @param value the model server
+   */
+  @Sharable
+  public void setSharedModelServer(ModelServer value) {
+    sharedModelServer = value;
+  }
+
+  /**
+   * Get the model server shared by all duplicates.
+   *
+   * @return the model server
+   */
+  public ModelServer getSharedModelServer() {
+    return sharedModelServer;
+  }
+  protected ModelServer sharedModelServer;
+
+  /**
+   * Set the map where each duplicate stores its phase statistics when it
+   * finishes.
+   *
+   * @param value should be a concurrent map
+   */
+  @Sharable
+  public void setSharedPhaseStats(Map<Integer, PhaseStats> value) {
+    sharedPhaseStats = value;
+  }
+
+  /**
+   * Get the map where each duplicate stores its phase statistics when it
+   * finishes, the key is the duplicate id.
+   *
+   * @return the map
+   */
+  public Map<Integer, PhaseStats> getSharedPhaseStats() {
+    return sharedPhaseStats;
+  }
+  protected Map<Integer, PhaseStats> sharedPhaseStats;
+
+  /**
+   * Set the map where each duplicate stores its trace when it finishes.
+   *
+   * @param value should be a concurrent map
+   */
+  @Sharable
+  public void setSharedTraces(Map<Integer, TraceRecorder> value) {
+    sharedTraces = value;
+  }
+
+  /**
+   * Get the map where each duplicate stores its trace when it finishes, the
+   * key is the duplicate id.
+   *
+   * @return the map
+   */
+  public Map<Integer, TraceRecorder> getSharedTraces() {
+    return sharedTraces;
+  }
+  protected Map<Integer, TraceRecorder> sharedTraces;
 
   /**
-   * Result list setter.
+   * Set the map where each duplicate adds its recovery counts when it 
+   * finishes.
    *
-   * @param value should be a synchronized list
+   * @param value should be a concurrent map
    */
   @Sharable
-  public void setResultList(List<Object> value) {
-    resultList = value;
+  public void setSharedRecoveryCounts(Map<String, Long> value) {
+    sharedRecoveryCounts = value;
   }
 
   /**
-   * Result list getter.
+   * Get the map where each duplicate adds its recovery counts when it 
+   * finishes, the keys are "timeouts", "crashes", "retries", "restarts", 
+   * "skipped" and "recycles".
    *
-   * @return the list
+   * @return the map
    */
-  public List<Object> getResultList() {
-    return resultList;
+  public Map<String, Long> getSharedRecoveryCounts() {
+    return sharedRecoveryCounts;
   }
-  protected List<Object> resultList;
+  protected Map<String, Long> sharedRecoveryCounts;
 
   /**
-   * Number of duplicates running on a corpus. This gets incremented for each
-   * duplicate that receives a controllerExecutionStarted callback and
-   * decremented for each duplicate that receives a controllerExecutionFinished
-   * or controllerExecutionAborted callback.
+   * Set the partial results which still need to be reduced.
    *
-   * @param value the value
+   * @param value the partial results
    */
   @Sharable
-  public void setRunningDuplicates(AtomicInteger value) {
-    runningDuplicates = value;
+  public void setSharedPartialResults(PartialResults value) {
+    sharedPartialResults = value;
   }
 
   /**
-   * Return the value of the currently running duplicates counter.
+   * Get the partial results which still need to be reduced.
    *
-   * @return number of running duplicates.
+   * @return the partial results
    */
-  public AtomicInteger getRunningDuplicates() {
-    return runningDuplicates;
+  public PartialResults getSharedPartialResults() {
+    return sharedPartialResults;
   }
-  protected AtomicInteger runningDuplicates;
+  protected PartialResults sharedPartialResults;
   
   protected int duplicateId = 0;
 
@@ -595,12 +1805,12 @@ public class PythonPr
   /**
    * Rough check if the program can be compiled.
    *
-   * This invokes the program with the --mode check parameters to check for
+   * This runs the program with the --mode check parameters to check for
    * syntax errors, import erros and anything that will be detected without
    * actually running the class and interchaning data.
    * <p>
-   * The python program is run as a normal program if it is a normal file, if it
-   * is in the jar, it gets invoked by loading it as a library.
+   * The python program is run by the same module as for processing, either 
+   * from its file or, if it is in the jar, by loading it as a library.
    *
    * @return true if compilation went ok, false otherwise
    */
@@ -614,6 +1824,8 @@ public class PythonPr
     if (getUsePluginGatenlpPackage()) {
       pythonPath = usePythonPackagePath;
     }
+    cmdLine.addArgument("-m");
+    cmdLine.addArgument(INTERACT_MODULE);
     if (!pythonProgramIsJar) {
       // System.err.println("!!!!!!!!!!!!! ######### DEBUG: adding file name: >"+pythonProgramFile.getAbsolutePath()+"<");      
       cmdLine.addArgument(pythonProgramFile.getAbsolutePath(), doQuoting);
@@ -621,16 +1833,11 @@ public class PythonPr
       // to load as library, we need the RELATIVE path in the jar, relative
       // to what we have set as PYTHONPATH (which is the /resources dir).
       // AND we need to remove the .py extension.
-      if (pythonPath.isEmpty()) {
-        pythonPath = pythonProgramPathInJar;
-      } else {
-        pythonPath = pythonPath
-                + (PythonPr.isOsWindows() ? ";" : ":")
-                + pythonProgramPathInJar;
-      }
-      cmdLine.addArgument("-m");
+      pythonPath = appendPythonPath(pythonPath, pythonProgramPathInJar);
+      cmdLine.addArgument("--module");
       cmdLine.addArgument(pythonProgramModuleInJar, doQuoting);
     }
+    pythonPath = appendPythonPath(pythonPath, getInteractPathInZip());
     cmdLine.addArgument("--mode");
     cmdLine.addArgument("check");
     DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
@@ -688,6 +1895,11 @@ public class PythonPr
    */
   public boolean isCompileOk;
   
+  // programs which passed the checks of the process when starting, 
+  // identified by the hash of the program, the python interpreter and the 
+  // PYTHONPATH
+  private static final Set<String> compileChecksPassed = ConcurrentHashMap.newKeySet();
+  
   private PythonEditorVr registeredEditorVR = null;
 
   /**
@@ -796,6 +2008,22 @@ public class PythonPr
    * @return location of containing folder
    */
   public static String getPythonpathInZip() {
+    return getResourcePathInZip("pythonpath");
+  }
+
+  /**
+   * Return the path of the plugin directory which contains the Python module
+   * which runs the Python program, in the same form as getPythonpathInZip().
+   *
+   * @return location of the directory
+   */
+  public static String getInteractPathInZip() {
+    return getResourcePathInZip("interact");
+  }
+
+  // location of a directory in the resources directory of the plugin, 
+  // which can be put on the python path
+  private static String getResourcePathInZip(String name) {
     URL artifactURL = PythonPr.class.getResource("/creole.xml");
     try {
       artifactURL = new URL(artifactURL, ".");
@@ -809,10 +2037,30 @@ public class PythonPr
     } else if (urlString.endsWith("/")) {
       urlString = urlString.substring(0, urlString.length() - 1);
     }
-    urlString = urlString + "/resources/pythonpath";
+    urlString = urlString + "/resources/" + name;
     return urlString;
   }
 
+  /**
+   * Append a directory to a python path.
+   *
+   * @param pythonPath the python path, may be empty
+   * @param dir the directory to append
+   * @return the new python path
+   */
+  protected static String appendPythonPath(String pythonPath, String dir) {
+    if (pythonPath.isEmpty()) {
+      return dir;
+    }
+    return pythonPath + (PythonPr.isOsWindows() ? ";" : ":") + dir;
+  }
+
+  /**
+   * The Python module which runs the Python program and handles the messages
+   * sent to the process, found in the directory getInteractPathInZip().
+   */
+  public static final String INTERACT_MODULE = "gateplugin_interact";
+
   /**
    * The python package path to use when running Python. So that the gatenlp
    * package is properly found.
@@ -823,6 +2071,12 @@ public class PythonPr
 
   protected ResourceHelper rhBdocApi;
   
+  protected transient MsgPackCodec msgPackCodec;
+  
+  protected transient BdocJsonWriter bdocJsonWriter = new BdocJsonWriter();
+  
+  protected transient ChangeLogApplier changeLogApplier;
+  
   @SuppressWarnings("unchecked")
   private Map<String,String> getParms(File parmFile) {
     ObjectMapper om = new ObjectMapper();
@@ -875,12 +2129,25 @@ public class PythonPr
       duplicateId = 0;
       List<Object> wrappedList = new ArrayList<>();
       setResultList(Collections.synchronizedList(wrappedList));
+      setSharedForkServer(new ForkServer());
+      setSharedModelServer(new ModelServer());
+      setSharedPhaseStats(new ConcurrentHashMap<>());
+      setSharedTraces(new ConcurrentHashMap<>());
+      setSharedRecoveryCounts(new ConcurrentHashMap<>());
+      setSharedPartialResults(new PartialResults());
+      setSharedMetricsGroup(ProcessingMetrics.makeGroup("PythonPr", getName()));
     } else {
       duplicateId = nrDuplicates.getAndAdd(1);
     }
     rhBdocApi = (ResourceHelper)Gate.getCreoleRegister()
                      .get("gate.plugin.format.bdoc.API")
                      .getInstantiations().iterator().next();     
+    msgPackCodec = new MsgPackCodec(rhBdocApi);
+    if (metrics == null) {
+      metrics = new PythonPrMetrics(this);
+    }
+    metrics.register("type=PythonPr,group=" + getSharedMetricsGroup() + ",duplicate=" + duplicateId);
+    changeLogApplier = new ChangeLogApplier(rhBdocApi.getClass().getClassLoader());
     if(getIsConfigured() == null || !getIsConfigured()) {
       if(getProgramParams() == null) {
         if(pythonProgramIsJar) {
@@ -916,133 +2183,1074 @@ public class PythonPr
    */
   protected void whenStarting() {
     runningDuplicates.getAndIncrement();
+    // the parameters may have changed since a kept alive process was started
+    msgPackCodec.setProjection(getProjectionToSend());
+    releaseDocumentCache();
+    if (getCacheDocuments()) {
+      // each duplicate may have a batch of documents in flight
+      DocumentCache.SHARED.acquire(nrDuplicates.get() * (getBatchSize() + 1));
+      documentCacheAcquired = true;
+      msgPackCodec.setDocumentCache(DocumentCache.SHARED);
+    } else {
+      msgPackCodec.setDocumentCache(null);
+    }
+    sharedPartialResults.setSpillThreshold(getReduceSpillThreshold() * 1024L * 1024L);
+    recovery = new ProcessRecovery(this);
+    executionMode = ExecutionMode.of(this);
+    executionMode.check();
+    executionStrategy = executionMode.createStrategy(this);
+    batchDocuments = new ArrayList<>();
+    if (getSharedFileThreshold() > 0) {
+      sharedFiles = new SharedFiles("gate-python-" + duplicateId + "-");
+      sharedFileExecution = new SharedFileExecution(this);
+    }
+    nrDocumentsProcessed = 0;
+    nrRequestsSent = 0;
+    executeNanos = 0;
+    phaseStats = new PhaseStats();
+    recycledResults = new ArrayList<>();
+    processStartDocuments = 0;
+    trace = getTraceFile() == null ? null 
+            : new TraceRecorder(duplicateId, "duplicate " + duplicateId);
     ensurePythonProgramCommand();
-    // Make sure we have a Python program that at least looks like we could run it    
-    // Get the effective path to the python binary: either use the pythonbinary name
-    // or the corresponding path for the pythonbinaryurl, which must be a file url    
-    isCompileOk = tryCompileProgram();
-    if (!isCompileOk) {
-      throw new GateRuntimeException(
-              "Cannot run the python program, may have a syntax error or other compile-time problem.");
-    }
-    // ok, actually run the python program so we can communicate with it. 
-    // for now we use Process4StringStream from gatelib-interaction for this.
+    String key = makeProcessKey();
+    if (getModelServer()) {
+      if (process != null && process.isAlive()) {
+        stopProcess();
+      }
+      stopStandby();
+      attachModelServer(key);
+      return;
+    }
+    if (process != null && process.isAlive()) {
+      if (getKeepAlive() && key.equals(processKey)) {
+        logger.debug("Re-using python process for duplicate " + duplicateId);
+        resetProcess();
+        startStandby();
+        return;
+      }
+      stopProcess();
+    }
+    stopStandby();
+    startProcess(key);
+    startStandby();
+  }
+  
+  /**
+   * Start the python process and send the start request.
+   * 
+   * @param key the key which identifies everything the process depends on
+   */
+  protected void startProcess(String key) {
+    processKey = key;
+    useProcess(launchProcess());
+  }
+  
+  /**
+   * Use the process of the model server shared by all duplicates, starting
+   * it if we are the first duplicate.
+   * 
+   * @param key the process key
+   */
+  protected void attachModelServer(String key) {
+    StartedProcess started = new StartedProcess();
+    if (!getShareProcess()) {
+      releaseRegisteredServer();
+    } else if (!key.equals(registeredKey)) {
+      releaseRegisteredServer();
+      registeredServer = ProcessRegistry.acquire(key);
+      registeredKey = key;
+    }
+    ModelServer server = getModelServerInstance();
+    started.process = server.acquire(key, () -> {
+      StartedProcess launched = launchProcess();
+      server.setDeclaredProjection(launched.declaredProjection);
+      return launched.process;
+    }, proc -> {
+      process = proc;
+      resetProcess();
+    });
+    started.declaredProjection = server.getDeclaredProjection();
+    processKey = key;
+    useProcess(started);
+  }
+  
+  /**
+   * Get the model server used, either the one shared by our duplicates or
+   * the one from the process registry.
+   * 
+   * @return the model server
+   */
+  protected ModelServer getModelServerInstance() {
+    return getShareProcess() && registeredServer != null ? registeredServer : sharedModelServer;
+  }
+  
+  /**
+   * Release our reference to the model server from the process registry,
+   * if we have one.
+   */
+  protected void releaseRegisteredServer() {
+    if (registeredKey != null) {
+      ProcessRegistry.release(registeredKey);
+      registeredServer = null;
+      registeredKey = null;
+    }
+  }
+  
+  /**
+   * Release the shared document cache, if we acquired it for the current
+   * run.
+   */
+  protected void releaseDocumentCache() {
+    if (documentCacheAcquired) {
+      DocumentCache.SHARED.release();
+      documentCacheAcquired = false;
+    }
+  }
+  
+  /**
+   * Make a started process the process used for processing documents.
+   * 
+   * @param started the started process
+   */
+  protected void useProcess(StartedProcess started) {
+    process = started.process;
+    multiplexer = started.multiplexer;
+    declaredProjection = started.declaredProjection;
+    msgPackCodec.setProjection(getProjectionToSend());
+    processStartNanos = System.nanoTime();
+    processStartDocuments = nrDocumentsProcessed;
+    metrics.processStarted(getPythonProcess());
+  }
+  
+  /**
+   * Start a new python process and send the start request.
+   * 
+   * This does not change the process used for processing documents, so it
+   * can also be used to start a standby process in the background.
+   * 
+   * @return the started process
+   */
+  protected StartedProcess launchProcess() {
+    // We do not run a separate check of the program here: if the program
+    // cannot be compiled or imported, the process terminates before it 
+    // answers the start request, which we report as a compile problem.
+    // Run the python program so we can communicate with it. 
+    // we use Process4JsonLineStream or Process4FrameStream for this.
     Map<String, String> env = new HashMap<>();
     env.put("FROMGATEPLUGIN", "1");
     String pythonPath = "";
     if (getUsePluginGatenlpPackage()) {
       pythonPath = usePythonPackagePath;
     }
-    if (pythonProgramIsJar) {
-      if (pythonPath.isEmpty()) {
-        pythonPath = pythonProgramPathInJar;
-      } else {
-        pythonPath = pythonPath
-                + (PythonPr.isOsWindows() ? ";" : ":")
-                + pythonProgramPathInJar;
-      }
-      env.put("PYTHONPATH", pythonPath);      
-      process = Process4StringStream.create(
-              new File("."),
-              env,
-              pythonBinaryCommand,
-              "-m",
-              pythonProgramModuleInJar,
-              "--mode",
-              "pipe",
-              "--log_lvl",
-              loggingLevel.toString()
-      );
-    } else {
-      env.put("PYTHONPATH", pythonPath);
-      process = Process4StringStream.create(
-              new File("."),
-              env,
-              pythonBinaryCommand,
-              pythonProgramFile.getAbsolutePath(),
-              "--mode",
-              "pipe",
-              "--log_lvl",
-              loggingLevel.toString()
-      );
-    }
-    String responseJson = (String) process.process(makeStartRequest());
-    if (responseJson == null) {
-      throw new GateRuntimeException("Invalid null response from Python process, did you run interact()?");
+    // the program is run by our own module, which runs the message loop
+    // when the program calls interact()
+    List<String> command = new ArrayList<>();
+    command.add(pythonBinaryCommand);
+    command.add("-m");
+    command.add(INTERACT_MODULE);
+    if (pythonProgramIsJar) {
+      pythonPath = appendPythonPath(pythonPath, pythonProgramPathInJar);
+      command.add("--module");
+      command.add(pythonProgramModuleInJar);
+    } else {
+      command.add(pythonProgramFile.getAbsolutePath());
+    }
+    pythonPath = appendPythonPath(pythonPath, getInteractPathInZip());
+    env.put("PYTHONPATH", pythonPath);
+    addThreadLimits(env);
+    List<String> options = new ArrayList<>();
+    options.add("--log_lvl");
+    options.add(loggingLevel.toString());
+    if (getExchangeFormat() == ExchangeFormat.MSGPACK) {
+      options.add("--format");
+      options.add("msgpack");
+    }
+    String checkKey = makeCompileCheckKey(pythonPath);
+    LoopbackEndpoint endpoint = null;
+    if (getTransport() == Transport.SOCKET || getForkServer()) {
+      try {
+        endpoint = new LoopbackEndpoint();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not create socket for the Python process", ex);
+      }
+    }
+    Process forked = null;
+    if (getForkServer()) {
+      try {
+        forked = forkProcess(command, options, env, checkKey, endpoint);
+      } catch (RuntimeException ex) {
+        endpoint.close();
+        throw ex;
+      }
+    } else if (endpoint != null) {
+      command.add("--mode");
+      command.add("socket");
+      endpoint.addTo(command, env);
+      command.addAll(options);
+    } else {
+      command.add("--mode");
+      command.add("pipe");
+      command.addAll(options);
+    }
+    Map<String, Object> startRequest = makeStartRequestMap();
+    // let the process do any additional checks of the program only if it 
+    // has not been successfully started before in this JVM
+    startRequest.put("check", !compileChecksPassed.contains(checkKey));
+    String status = null;
+    String error = null;
+    String info = null;
+    boolean responded = false;
+    boolean checked = false;
+    StartedProcess ret = new StartedProcess();
+    try {
+      if (getExchangeFormat() == ExchangeFormat.MSGPACK) {
+        Process4FrameStream frameProcess = forked != null
+                ? Process4FrameStream.attach(forked, endpoint)
+                : Process4FrameStream.create(new File("."), env, command, endpoint);
+        ret.process = frameProcess;
+        if (getMaxInFlight() > 1) {
+          ret.multiplexer = new FrameMultiplexer(frameProcess, msgPackCodec, 
+                  "PythonPr-reader-" + getName() + "-" + duplicateId);
+        }
+        MsgPackCodec.Response response = processMsgPack(ret.process, ret.multiplexer, startRequest);
+        if (response != null) {
+          responded = true;
+          status = response.status;
+          error = response.error;
+          info = response.info;
+          checked = Boolean.TRUE.equals(response.header.get("checked"));
+          ret.declaredProjection = DocumentProjection.fromDeclaration(response.header.get("projection"));
+        }
+      } else {
+        ret.process = forked != null
+                ? Process4JsonLineStream.attach(forked, endpoint)
+                : Process4JsonLineStream.create(new File("."), env, command, endpoint);
+        String responseJson = (String) ret.process.process(startRequest);
+        if (responseJson != null) {
+          responded = true;
+          Map<String, Object> response = JSON.std.mapFrom(responseJson);
+          status = (String) response.get("status");
+          error = (String) response.get("error");
+          info = (String) response.get("info");
+          checked = Boolean.TRUE.equals(response.get("checked"));
+          ret.declaredProjection = DocumentProjection.fromDeclaration(response.get("projection"));
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      if (ret.process == null && forked != null) {
+        forked.destroyForcibly();
+      }
+      ret.stop();
+      throw startFailed("Could not start the Python process", ex);
+    }
+    if (!responded) {
+      ret.stop();
+      throw startFailed("Python process ended before responding to start, did you run interact()?", null);
+    }
+    if (!"ok".equals(status)) {
+      ret.stop();
+      throw new GateRuntimeException("Something went wrong, start response is " + error
+              + "\nAdditional info from Python:\n" + info);
+    }
+    // only skip the checks next time if the process actually ran them
+    if (checked) {
+      compileChecksPassed.add(checkKey);
+    }
+    isCompileOk = true;
+    if (registeredEditorVR != null) {
+      registeredEditorVR.setCompilationOk();
+    }
+    if (getCpuAffinity()) {
+      List<Integer> cpus = CpuPolicy.getCpusForDuplicate(
+              CpuPolicy.getAllowedCpus(), duplicateId, nrDuplicates.get());
+      if (CpuPolicy.setAffinity(ProcessingMetrics.getPid(getPythonProcess(ret.process)), cpus)) {
+        logger.debug("Bound python process of duplicate " + duplicateId + " to CPUs " + cpus);
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Add the environment variables which limit the number of threads of the
+   * numerical libraries.
+   * 
+   * If threadsPerProcess is 0, the available CPUs are divided by the number
+   * of duplicates, but variables already set in the environment of the JVM
+   * are left alone. If it is larger than 0, the variables are always set to
+   * it, if it is negative, nothing is set.
+   * 
+   * @param env the environment for the python process
+   */
+  protected void addThreadLimits(Map<String, String> env) {
+    int threads = getThreadsPerProcess();
+    if (threads < 0) {
+      return;
+    }
+    boolean automatic = threads == 0;
+    if (automatic) {
+      // a model server process is the only process and may use all CPUs
+      threads = CpuPolicy.getThreadsPerProcess(CpuPolicy.getAllowedCpus().size(), 
+              getModelServer() ? 1 : nrDuplicates.get());
+    }
+    for (String name : CpuPolicy.THREAD_VARIABLES) {
+      if (!automatic || System.getenv(name) == null) {
+        env.put(name, Integer.toString(threads));
+      }
+    }
+  }
+  
+  /**
+   * Get a process forked from the shared fork server.
+   * 
+   * This starts the fork server if it is not running yet, which makes it
+   * import the program and run the model loading hook. 
+   * 
+   * @param command the interpreter and program part of the command
+   * @param options the options to pass on to the process
+   * @param env the environment for the fork server
+   * @param checkKey the key for the cache of programs which started successfully
+   * @param endpoint the endpoint the forked process should connect to
+   * @return the forked process
+   */
+  protected Process forkProcess(List<String> command, List<String> options, 
+          Map<String, String> env, String checkKey, LoopbackEndpoint endpoint) {
+    ForkServer server = getSharedForkServer();
+    Map<String, Object> preloadRequest = makeStartRequestMap();
+    preloadRequest.put("command", "preload");
+    preloadRequest.put("check", !compileChecksPassed.contains(checkKey));
+    Map<String, Object> response;
+    try {
+      response = server.ensureStarted(ForkServer.makeCommand(command, options), env, preloadRequest);
+    } catch (RuntimeException ex) {
+      throw startFailed("Could not start the Python fork server", ex);
+    }
+    if (response == null && !server.isAlive()) {
+      throw startFailed("Python fork server ended before responding to preload", null);
+    }
+    if (response != null) {
+      if (!"ok".equals(response.get("status"))) {
+        server.stop();
+        throw new GateRuntimeException("Something went wrong, preload response is " + response.get("error")
+                + "\nAdditional info from Python:\n" + response.get("info"));
+      }
+      logger.debug("Started python fork server for duplicate " + duplicateId);
+      if (Boolean.TRUE.equals(response.get("checked"))) {
+        compileChecksPassed.add(checkKey);
+      }
+    }
+    return server.fork(endpoint);
+  }
+  
+  /**
+   * Handle a python process which could not get started.
+   * 
+   * This is most likely because the program cannot be compiled or imported, 
+   * so the compile status is updated accordingly. The caller is responsible 
+   * for stopping the process.
+   * 
+   * @param message the message for the exception
+   * @param cause the cause or null
+   * @return the exception to throw
+   */
+  protected GateRuntimeException startFailed(String message, Throwable cause) {
+    isCompileOk = false;
+    if (registeredEditorVR != null) {
+      registeredEditorVR.setCompilationError();
+    }
+    return new GateRuntimeException(message 
+            + ", the program may have a syntax error or other compile-time problem.", cause);
+  }
+  
+  /**
+   * Create the key for the cache of programs which started successfully.
+   * 
+   * @param pythonPath the PYTHONPATH used for the process
+   * @return key
+   */
+  protected String makeCompileCheckKey(String pythonPath) {
+    String hash;
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(getPythonProgramString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      hash = sb.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new GateRuntimeException("Could not compute program hash", ex);
+    }
+    return hash + "\n" + pythonBinaryCommand + "\n" + pythonPath;
+  }
+  
+  /**
+   * Send a request map to the Python process using the MsgPack exchange format.
+   * 
+   * @param request the request map
+   * @return the decoded response or null if the process did not send one
+   */
+  protected MsgPackCodec.Response processMsgPack(Map<String, Object> request) {
+    return processMsgPack(process, multiplexer, request);
+  }
+  
+  /**
+   * Send a request map to a python process using the MsgPack exchange format.
+   * 
+   * @param proc the process
+   * @param mux the multiplexer for the process or null if not used
+   * @param request the request map
+   * @return the decoded response or null if the process did not send one
+   */
+  protected MsgPackCodec.Response processMsgPack(ProcessBase proc, FrameMultiplexer mux, 
+          Map<String, Object> request) {
+    if (mux != null) {
+      long id = mux.nextRequestId();
+      request.put("id", id);
+      return FrameMultiplexer.waitFor(mux.send(id, msgPackCodec.encodeRequest(request)));
+    }
+    byte[] frame = (byte[]) proc.process(msgPackCodec.encodeRequest(request));
+    if (frame == null) {
+      return null;
+    }
+    return msgPackCodec.decodeResponse(frame);
+  }
+  
+  /**
+   * Convert a MsgPack response to the finish response we get for JSON.
+   * 
+   * @param response the MsgPack response, may be null
+   * @return finish response
+   */
+  @SuppressWarnings("unchecked")
+  protected FinishResponse toFinishResponse(MsgPackCodec.Response response) {
+    if (response == null) {
+      throw new GateRuntimeException("Invalid null response from Python process");
+    }
+    FinishResponse ret = new FinishResponse();
+    ret.status = response.status;
+    ret.error = response.error;
+    ret.info = response.info;
+    ret.data = (Map<String, Object>) response.data;
+    return ret;
+  }
+  
+  protected void whenFinishing() {
+    // our documents are done, the cache is cleared when the last PR using
+    // it finishes
+    releaseDocumentCache();
+    // this must be available before the last duplicate may finish
+    if (phaseStats != null) {
+      sharedPhaseStats.put(duplicateId, phaseStats);
+    }
+    if (trace != null) {
+      sharedTraces.put(duplicateId, trace);
+    }
+    if (nrDocumentsProcessed > 0) {
+      double secs = executeNanos / 1.0e9;
+      logger.info(String.format(Locale.UK, 
+              "Duplicate %d processed %d documents in %d requests (batch size %d), %.1f documents/sec",
+              duplicateId, nrDocumentsProcessed, nrRequestsSent, getBatchSize(), 
+              secs > 0 ? nrDocumentsProcessed / secs : 0.0));
+    }
+    if (recovery.getNrRestarts() > 0) {
+      logger.warn(String.format(Locale.UK,
+              "Duplicate %d had %d timeouts, %d crashes, %d retries, %d restarts, %d documents skipped",
+              duplicateId, recovery.getNrTimeouts(), recovery.getNrCrashes(), recovery.getNrRetries(), 
+              recovery.getNrRestarts(), recovery.getNrSkipped()));
+    }
+    sharedRecoveryCounts.merge("timeouts", recovery.getNrTimeouts(), Long::sum);
+    sharedRecoveryCounts.merge("crashes", recovery.getNrCrashes(), Long::sum);
+    sharedRecoveryCounts.merge("retries", recovery.getNrRetries(), Long::sum);
+    sharedRecoveryCounts.merge("restarts", recovery.getNrRestarts(), Long::sum);
+    sharedRecoveryCounts.merge("skipped", recovery.getNrSkipped(), Long::sum);
+    if (recovery.getNrRecycles() > 0) {
+      logger.info("Duplicate " + duplicateId + " recycled its python process " 
+              + recovery.getNrRecycles() + " times");
+    }
+    sharedRecoveryCounts.merge("recycles", recovery.getNrRecycles(), Long::sum);
+    Map<String, Object> result = null;
+    // with a model server, only the last duplicate to finish sends finish
+    boolean lastServerUser = getModelServer() && getModelServerInstance().release();
+    Map<String, Object> data = getModelServer() && !lastServerUser ? null : finishProcess();
+    boolean incremental = getReduceFanIn() > 1 && !getModelServer();
+    // if the number of duplicates is 1 and the process was never recycled, 
+    // then data already is the final result
+    if (nrDuplicates.get() == 1 && recycledResults.isEmpty() && sharedPartialResults.size() == 0) {
+      result = data;
+    } else if (getModelServer()) {
+      // there is only one result, which does not need to get reduced
+      if (data != null) {
+        getResultList().add(data);
+      }
+    } else if (incremental) {
+      keepResult(data);
+    } else {
+      // add the data to the resultList, but only if we got something 
+      getResultList().addAll(recycledResults);
+      if (data != null) {
+        getResultList().add(data);
+      }
+    }
+    recycledResults.clear();
+    // only decrement once our result has been added and reduced, so the 
+    // last duplicate sees all results
+    int running = runningDuplicates.decrementAndGet();
+    logger.debug("Finishing duplicate " + duplicateId + " running: " + running);
+    // if the number of running duplicates is 0, call the reduce method
+    // but only if there is something in the list
+    if (running == 0) {
+      List<?> results = incremental ? sharedPartialResults.takeAll() : getResultList();
+      if (getModelServer()) {
+        result = results.isEmpty() ? result : toResultMap(results.get(0));
+      } else if (!results.isEmpty()) {
+        logger.debug("Calling reduce for number of results: " + results.size());
+        result = reduceResults(results);
+      } else {
+        logger.debug("Not calling reduce, result list is empty");
+      }
+      if (sharedPartialResults.getNrSpilled() > 0) {
+        logger.info("Spilled " + sharedPartialResults.getNrSpilled() + " partial results to disk");
+      }
+      sharedPartialResults.cleanup();
+      if (getCacheDocuments()) {
+        logger.info("Document cache re-used " + DocumentCache.SHARED.getNrHits() + " and created "
+                + DocumentCache.SHARED.getNrMisses() + " serialized documents");
+      }
+      if (!fusedMembers.isEmpty()) {
+        result = distributeFusedResults(result);
+      }
+      // if we have a result resource, set the result in the resource      
+      // otherwise set the features of the PR from it.
+      // Only do any of this if the result is a map
+      if (getOutputResultResource() != null) {
+        getOutputResultResource().setResultData(result);
+        getOutputResultResource().getFeatures().put(PHASE_STATS_FEATURE, makePhaseStatsMap());
+        getOutputResultResource().getFeatures().put(RECOVERY_COUNTS_FEATURE, makeRecoveryCountsMap());
+      } else {
+        if (result != null) {
+          this.getFeatures().putAll(result);
+        }
+        this.getFeatures().put(PHASE_STATS_FEATURE, makePhaseStatsMap());
+        this.getFeatures().put(RECOVERY_COUNTS_FEATURE, makeRecoveryCountsMap());
+      }
+      sharedPhaseStats.clear();
+      sharedRecoveryCounts.clear();
+      if (getTraceFile() != null && !sharedTraces.isEmpty()) {
+        writeTrace();
+      }
+      sharedTraces.clear();
+    }
+    if (sharedFiles != null) {
+      sharedFiles.cleanup();
+      sharedFiles = null;
+    }
+    if (getModelServer()) {
+      // a process from the registry is stopped when the last PR using it
+      // gets deleted
+      if (lastServerUser && !getKeepAlive() && registeredServer == null) {
+        sharedModelServer.stop();
+      }
+      // the process is owned by the model server
+      metrics.processStopped();
+      process = null;
+      processKey = null;
+    } else if (!getKeepAlive()) {
+      stopProcess();
+      stopStandby();
+    }
+  }
+  
+  /**
+   * Give each fused PR its result from the result of our process.
+   * 
+   * @param result the result of our process, containing the results of
+   * the fused programs as a list under the key "_fused"
+   * @return our own result without the results of the fused programs
+   */
+  protected Map<String, Object> distributeFusedResults(Map<String, Object> result) {
+    if (result == null) {
+      return null;
+    }
+    Map<String, Object> ret = new LinkedHashMap<>(result);
+    Object fused = ret.remove(FUSED_RESULTS_KEY);
+    if (!(fused instanceof List)) {
+      return ret;
+    }
+    List<?> results = (List<?>) fused;
+    for (int i = 0; i < fusedMembers.size() && i < results.size(); i++) {
+      if (results.get(i) instanceof Map) {
+        fusedMembers.get(i).storeFusedResult(toResultMap(results.get(i)));
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Store the result of our program when it ran in the process of another
+   * PR.
+   * 
+   * @param result the result
+   */
+  protected void storeFusedResult(Map<String, Object> result) {
+    if (getOutputResultResource() != null) {
+      getOutputResultResource().setResultData(result);
+    } else {
+      getFeatures().putAll(result);
+    }
+  }
+  
+  /**
+   * Set up the fusion group for the current run.
+   * 
+   * If we are not part of a group started by an earlier PR in the 
+   * controller, collect the directly following PRs of the same fusion group
+   * which can run in our process.
+   * 
+   * @param controller the controller
+   */
+  protected void setupFusion(Controller controller) {
+    fusedMembers.clear();
+    setsToSend = null;
+    if (fusedInto != null || getFusionGroup().isEmpty() || controller == null) {
+      return;
+    }
+    List<ProcessingResource> prs = new ArrayList<>(controller.getPRs());
+    int index = prs.indexOf(this);
+    if (index < 0) {
+      return;
+    }
+    Set<String> sets = setsToUse == null ? null : new HashSet<>(setsToUse);
+    for (ProcessingResource pr : prs.subList(index + 1, prs.size())) {
+      if (!(pr instanceof PythonPr) || !getFusionGroup().equals(((PythonPr) pr).getFusionGroup())) {
+        break;
+      }
+      PythonPr member = (PythonPr) pr;
+      String problem = getFusionProblem(member);
+      if (problem != null) {
+        logger.warn("Not fusing PythonPr " + member.getName() + " with " + getName() + ": " + problem);
+        break;
+      }
+      member.fusedInto = this;
+      fusedMembers.add(member);
+      if (sets != null) {
+        if (member.setsToUse == null) {
+          sets = null;
+        } else {
+          sets.addAll(member.setsToUse);
+        }
+      }
+    }
+    if (!fusedMembers.isEmpty()) {
+      setsToSend = sets;
+      logger.info("Running " + fusedMembers.size() + " fused PythonPrs in the python process of " + getName());
+    }
+  }
+  
+  /**
+   * Check if the changes to a document can be applied after execute() has
+   * returned, as happens with a batchSize larger than 1.
+   * 
+   * This is only the case if no PR after this one and the programs fused
+   * with it needs the changes, and the corpus is a transient corpus which 
+   * already contains all documents, so no document gets saved or unloaded 
+   * before processing finishes. It is not the case for a corpus in a 
+   * datastore, or when the controller gets run for one document at a time,
+   * e.g. by GCP.
+   * 
+   * @param controller the controller which runs this PR
+   * @return true if the changes can be applied later
+   */
+  protected boolean canDeferChanges(Controller controller) {
+    if (!(controller instanceof CorpusController)) {
+      return false;
+    }
+    Corpus corpus = ((CorpusController) controller).getCorpus();
+    if (corpus == null || corpus.getDataStore() != null || corpus.isEmpty()) {
+      return false;
+    }
+    List<ProcessingResource> prs = new ArrayList<>(controller.getPRs());
+    int index = prs.indexOf(this);
+    return index >= 0 && prs.size() - index - 1 == fusedMembers.size();
+  }
+  
+  /**
+   * Check if the program of another PR can run in our process.
+   * 
+   * @param member the other PR
+   * @return a description of the problem or null if it can
+   */
+  protected String getFusionProblem(PythonPr member) {
+    if (!pythonBinaryCommand.equals(member.pythonBinaryCommand)) {
+      return "different python interpreter";
+    }
+    if (!getUsePluginGatenlpPackage().equals(member.getUsePluginGatenlpPackage())) {
+      return "different gatenlp package";
     }
-    try {
-      Map<String, Object> response = JSON.std.mapFrom(responseJson);
-      if (!response.containsKey("status") || !"ok".equals(response.get("status"))) {
-        throw new GateRuntimeException("Something went wrong, start response is " + responseJson);
-      }
-    } catch (IOException ex) {
-      throw new GateRuntimeException("Could not convert start response", ex);
+    if (getExchangeFormat() != member.getExchangeFormat()) {
+      return "different exchange format";
+    }
+    if (member.pythonProgramIsJar 
+            && !(pythonProgramIsJar && pythonProgramPathInJar.equals(member.pythonProgramPathInJar))) {
+      return "program in a different jar";
     }
+    return null;
+  }
+  
+  /**
+   * Get the annotation sets to send to the python process.
+   * 
+   * This includes the sets used by the PRs fused with us.
+   * 
+   * @return set names, null or containing "*" for all sets
+   */
+  protected Set<String> getSetsToSend() {
+    return setsToSend != null || !fusedMembers.isEmpty() ? setsToSend : setsToUse;
   }
   
+  /**
+   * Get the projection of documents specified by our parameters.
+   * 
+   * @return projection
+   */
+  protected DocumentProjection getParameterProjection() {
+    return new DocumentProjection(getAnnotationTypes(), getAnnotationFeatures(),
+            getSendDocumentFeatures(), getSendText());
+  }
+  
+  /**
+   * Get the projection of the documents sent to the python process.
+   * 
+   * This combines the projections of the PRs fused with us and completes
+   * them with what the program declared in its start response.
+   * 
+   * @return projection
+   */
+  protected DocumentProjection getProjectionToSend() {
+    DocumentProjection ret = getParameterProjection();
+    for (PythonPr member : fusedMembers) {
+      ret = ret.union(member.getParameterProjection());
+    }
+    return ret.restrictBy(declaredProjection);
+  }
   
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> toResultMap(Object result) {
+    return (Map<String, Object>) result;
+  }
   
-  protected void whenFinishing() {
-    runningDuplicates.getAndDecrement();
-    logger.debug("Finishing duplicate " + duplicateId + " running: " + runningDuplicates.get());
-    String responseJson = (String) process.process(makeFinishRequest());
-    Map<String, Object> result = null;
+  /**
+   * Send the finish request to the python process.
+   * 
+   * @return the finish result of the process, may be null
+   */
+  protected Map<String, Object> finishProcess() {
+    String responseJson = null;
     try {
-      FinishResponse response = JSON.std.beanFrom(FinishResponse.class, responseJson);
+      FinishResponse response;
+      long finishStartNanos = System.nanoTime();
+      if (getExchangeFormat() == ExchangeFormat.MSGPACK) {
+        response = toFinishResponse(processMsgPack(makeFinishRequestMap()));
+      } else {
+        responseJson = (String) process.process(makeFinishRequest());
+        response = JSON.std.beanFrom(FinishResponse.class, responseJson);
+      }
+      if (trace != null) {
+        trace.span("finish", finishStartNanos, System.nanoTime());
+      }
       if (!"ok".equals(response.status)) {
         throw new GateRuntimeException("Error Finishing Processing: " + response.error
                 + "\nAdditional info from Python:\n" + response.info);
       }
-      Map<String, Object> data = response.data;
-      // if the number of duplicates is 1, then data already is the final result
-      if (nrDuplicates.get() == 1) {
-        result = data;
+      return response.data;
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not convert execute response JSON: " + responseJson, ex);
+    }
+  }
+  
+  /**
+   * Send the reduce request to the python process.
+   * 
+   * @param results the results to combine
+   * @return the combined result, may be null
+   */
+  protected Map<String, Object> reduceResults(List<?> results) {
+    String responseJson = null;
+    try {
+      FinishResponse response;
+      long reduceStartNanos = System.nanoTime();
+      if (getExchangeFormat() == ExchangeFormat.MSGPACK) {
+        response = toFinishResponse(processMsgPack(makeReduceRequestMap(results)));
       } else {
-        // add the data to the resultList, but only if we got something 
-        if (data != null) {
-          getResultList().add(data);
-        }
+        responseJson = (String) process.process(makeReduceRequest(results));
+        response = JSON.std.beanFrom(FinishResponse.class, responseJson);
+      }
+      if (trace != null) {
+        trace.span("reduce", reduceStartNanos, System.nanoTime(), 
+                Collections.singletonMap("results", results.size()));
       }
+      if (!"ok".equals(response.status)) {
+        throw new GateRuntimeException("Error calling Reduce: " + response.error
+                + "\nAdditional info from Python:\n" + response.info);
+      }
+      return response.data;
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not convert execute response JSON: " + responseJson, ex);
     }
-    // if the number of running duplicates is 0, call the reduce method
-    // but only if there is something in the list
-    if (runningDuplicates.get() == 0) {
-      if (!getResultList().isEmpty()) {
-        logger.debug("Calling reduce for number of results: " + getResultList().size());
-        // Call the reduce method
-        responseJson = (String) process.process(makeReduceRequest());
-        try {
-          FinishResponse response = JSON.std.beanFrom(FinishResponse.class, responseJson);
-          if (!"ok".equals(response.status)) {
-            throw new GateRuntimeException("Error calling Reduce: " + response.error
-                    + "\nAdditional info from Python:\n" + response.info);
-          }
-          result = response.data;
-        } catch (IOException ex) {
-          throw new GateRuntimeException("Could not convert execute response JSON: " + responseJson, ex);
-        }        
-        
-      } else {
-        logger.debug("Not calling reduce, result list is empty");
+  }
+  
+  /**
+   * Add a finish result to the partial results and reduce groups of 
+   * reduceFanIn partial results with our process as long as there are
+   * enough.
+   * 
+   * @param data the finish result, may be null
+   */
+  protected void keepResult(Map<String, Object> data) {
+    sharedPartialResults.add(data);
+    List<Map<String, Object>> group;
+    while ((group = sharedPartialResults.take(getReduceFanIn())) != null) {
+      logger.debug("Duplicate " + duplicateId + " reducing " + group.size() + " partial results");
+      sharedPartialResults.add(reduceResults(group));
+    }
+  }
+  
+  /**
+   * Create the map with the phase statistics of all duplicates.
+   * 
+   * This contains the statistics for each duplicate under the key 
+   * "duplicate" plus the duplicate id, and the statistics over all
+   * duplicates under the key "all".
+   * 
+   * @return map
+   */
+  protected Map<String, Object> makePhaseStatsMap() {
+    Map<String, Object> ret = new LinkedHashMap<>();
+    PhaseStats all = new PhaseStats();
+    for (Map.Entry<Integer, PhaseStats> entry : new TreeMap<>(sharedPhaseStats).entrySet()) {
+      all.addAll(entry.getValue());
+      ret.put("duplicate" + entry.getKey(), entry.getValue().toMap());
+    }
+    ret.put("all", all.toMap());
+    return ret;
+  }
+  
+  /**
+   * Create the map with the recovery counts summed over all duplicates.
+   * 
+   * @return map with the keys "timeouts", "crashes", "retries", "restarts",
+   * "skipped" and "recycles"
+   */
+  protected Map<String, Object> makeRecoveryCountsMap() {
+    Map<String, Object> ret = new LinkedHashMap<>();
+    for (String key : new String[]{"timeouts", "crashes", "retries", "restarts", "skipped", "recycles"}) {
+      ret.put(key, sharedRecoveryCounts.getOrDefault(key, 0L));
+    }
+    return ret;
+  }
+  
+  /**
+   * Write the traces of all duplicates to the trace file.
+   */
+  protected void writeTrace() {
+    File file = gate.util.Files.fileFromURL(getTraceFile());
+    List<TraceRecorder> traces = new ArrayList<>(new TreeMap<>(sharedTraces).values());
+    TraceRecorder.write(file, traces);
+    long dropped = 0;
+    for (TraceRecorder recorder : traces) {
+      dropped += recorder.getDropped();
+    }
+    if (dropped > 0) {
+      logger.warn("Trace limit reached, " + dropped + " spans were not written to " + file);
+    }
+    logger.info("Trace for " + traces.size() + " duplicates written to " + file);
+  }
+
+  /**
+   * Record the phases of a request in the statistics of this duplicate.
+   * 
+   * Times are recorded in microseconds. For a batch, each document is
+   * recorded with an equal share of the times and sizes of the request.
+   * This is only called once the changes have been applied, so this is 
+   * also where the documents are counted as processed.
+   * 
+   * @param nrDocs number of documents in the request
+   * @param startNanos when the request was started, from System.nanoTime()
+   * @param sendNanos time for converting and sending the request
+   * @param waitNanos time from the request being sent until the response
+   * was received
+   * @param applyNanos time for reading and applying the changelogs
+   * @param requestBytes size of the request
+   * @param responseBytes size of the response
+   * @param pythonTimings the timings the python process sent in the 
+   * response, a map from phase name to seconds, may be null
+   */
+  protected void recordPhases(int nrDocs, long startNanos, long sendNanos, long waitNanos, long applyNanos,
+          long requestBytes, long responseBytes, Object pythonTimings) {
+    if (nrDocs < 1) {
+      return;
+    }
+    if (!getModelServer()) {
+      nrDocumentsProcessed += nrDocs;
+    }
+    if (trace != null) {
+      Map<String, Object> args = new LinkedHashMap<>();
+      args.put("documents", nrDocs);
+      args.put("request_bytes", requestBytes);
+      trace.span("send", startNanos, startNanos + sendNanos, args);
+      args = new LinkedHashMap<>();
+      if (pythonTimings instanceof Map) {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) pythonTimings).entrySet()) {
+          args.put("python_" + entry.getKey(), entry.getValue());
+        }
       }
-      // if we have a result resource, set the result in the resource      
-      // otherwise set the features of the PR from it.
-      // Only do any of this if the result is a map
-      if (getOutputResultResource() != null) {
-        getOutputResultResource().setResultData(result);
-      } else {
-        if (result != null) {
-          this.getFeatures().putAll(result);
+      trace.span("wait", startNanos + sendNanos, startNanos + sendNanos + waitNanos, args);
+      args = new LinkedHashMap<>();
+      args.put("response_bytes", responseBytes);
+      trace.span("apply", startNanos + sendNanos + waitNanos, 
+              startNanos + sendNanos + waitNanos + applyNanos, args);
+    }
+    Map<String, Long> python = new LinkedHashMap<>();
+    if (pythonTimings instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) pythonTimings).entrySet()) {
+        if (entry.getValue() instanceof Number) {
+          python.put("python_" + entry.getKey() + "_us", 
+                  (long) (((Number) entry.getValue()).doubleValue() * 1.0e6 / nrDocs));
         }
       }
     }
+    metrics.requestCompleted(nrDocs, (sendNanos + waitNanos + applyNanos) / 1000, requestBytes, responseBytes);
+    for (int i = 0; i < nrDocs; i++) {
+      phaseStats.record("send_us", sendNanos / 1000 / nrDocs);
+      phaseStats.record("wait_us", waitNanos / 1000 / nrDocs);
+      phaseStats.record("apply_us", applyNanos / 1000 / nrDocs);
+      phaseStats.record("total_us", (sendNanos + waitNanos + applyNanos) / 1000 / nrDocs);
+      phaseStats.record("request_bytes", requestBytes / nrDocs);
+      phaseStats.record("response_bytes", responseBytes / nrDocs);
+      for (Map.Entry<String, Long> entry : python.entrySet()) {
+        phaseStats.record(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+  
+  /**
+   * Get the process of the python program.
+   * 
+   * @return the process or null if there is none
+   */
+  protected Process getPythonProcess() {
+    return getPythonProcess(process);
+  }
+  
+  /**
+   * Get the process of a python program.
+   * 
+   * @param proc the process wrapper, may be null
+   * @return the process or null if there is none
+   */
+  protected static Process getPythonProcess(ProcessBase proc) {
+    if (proc instanceof Process4FrameStream) {
+      return ((Process4FrameStream) proc).getProcess();
+    } else if (proc instanceof Process4JsonLineStream) {
+      return ((Process4JsonLineStream) proc).getProcess();
+    }
+    return null;
+  }
+  
+  /**
+   * Stop the python process.
+   */
+  protected void stopProcess() {
+    metrics.processStopped();
     int exitValue = process.stop();
+    process = null;
+    multiplexer = null;
+    processKey = null;
     if (exitValue != 0) {
       logger.info("Warning: python process ended with exit value " + exitValue);
     }    
   }
+  
+  /**
+   * Send the reset command to a python process which is kept alive.
+   * 
+   * The reset request contains the same information as the start request.
+   */
+  protected void resetProcess() {
+    Map<String, Object> request = makeStartRequestMap();
+    request.put("command", "reset");
+    String status;
+    String error;
+    String info;
+    if (getExchangeFormat() == ExchangeFormat.MSGPACK) {
+      MsgPackCodec.Response response = processMsgPack(request);
+      if (response == null) {
+        throw new GateRuntimeException("Invalid null response from Python process");
+      }
+      status = response.status;
+      error = response.error;
+      info = response.info;
+    } else {
+      String responseJson = (String) process.process(request);
+      if (responseJson == null) {
+        throw new GateRuntimeException("Invalid null response from Python process");
+      }
+      try {
+        Map<String, Object> response = JSON.std.mapFrom(responseJson);
+        status = (String) response.get("status");
+        error = (String) response.get("error");
+        info = (String) response.get("info");
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not convert reset response", ex);
+      }
+    }
+    if (!"ok".equals(status)) {
+      throw new GateRuntimeException("Something went wrong, reset response is " + error
+              + "\nAdditional info from Python:\n" + info);
+    }
+  }
+  
+  /**
+   * Create the key which identifies everything a running process depends on.
+   * 
+   * @return key
+   */
+  protected String makeProcessKey() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(pythonBinaryCommand).append('\n');
+    if (pythonProgramIsJar) {
+      sb.append(pythonProgramModuleInJar);
+    } else {
+      sb.append(pythonProgramFile.getAbsolutePath()).append(':').append(pythonProgramFile.lastModified());
+    }
+    sb.append('\n').append(getUsePluginGatenlpPackage());
+    sb.append('\n').append(loggingLevel);
+    sb.append('\n').append(getExchangeFormat());
+    sb.append('\n').append(getTransport());
+    sb.append('\n').append(getForkServer());
+    sb.append('\n').append(getModelServer());
+    sb.append('\n').append(getMaxInFlight() > 1);
+    sb.append('\n').append(getThreadsPerProcess()).append(' ').append(getCpuAffinity());
+    if (getModelServer()) {
+      // the process is used by all duplicates, so the key must not depend 
+      // on the duplicate, and the leader of a batch sends the documents of 
+      // all PRs using the process with its own annotation sets
+      Map<String, Object> request = makeStartRequestMap();
+      Map<?, ?> params = (Map<?, ?>) request.get("data");
+      params.remove("_duplicateId");
+      params.remove("_nrDuplicates");
+      sb.append('\n').append(getSetsToSend());
+      sb.append('\n').append(getParameterProjection().getKey());
+      try {
+        sb.append('\n').append(JSON.std.asString(request));
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Error when trying to convert start request to JSON", ex);
+      }
+    } else {
+      sb.append('\n').append(makeStartRequest());
+    }
+    return sb.toString();
+  }
 
   /**
    * Re-initialize resource.
@@ -1061,13 +3269,36 @@ public class PythonPr
    */
   @Override
   public void cleanup() {
+    if (process != null && process.isAlive()) {
+      stopProcess();
+    }
+    stopStandby();
+    if (sharedForkServer != null) {
+      sharedForkServer.stopIfUnused();
+    }
+    if (sharedModelServer != null) {
+      sharedModelServer.stopIfUnused();
+    }
+    releaseRegisteredServer();
+    releaseDocumentCache();
+    if (metrics != null) {
+      metrics.unregister();
+    }
     super.cleanup();
   }
   
   private void ensureProcess() throws ExecutionException {
+    if (process != null && !process.isAlive() && getMaxRetries() > 0) {
+      // requests still in flight get retried when they are completed
+      executionStrategy.completeAll();
+      if (!process.isAlive()) {
+        recovery.died();
+      }
+    }
     if (!(process != null && process.isAlive())) {
       throw new ExecutionException("Python process not alive during execution");
     }
+    recovery.recycleIfNeeded();
   }
 
   /**
@@ -1080,30 +3311,124 @@ public class PythonPr
     if (isInterrupted()) {
       throw new ExecutionException("Processing was interrupted");
     }
+    if (fusedInto != null) {
+      if (fusedInto.lastFusedDocument != document) {
+        throw new ExecutionException("PythonPr " + getName() + " is fused with " + fusedInto.getName() 
+                + " which did not process document " + document.getName());
+      }
+      return;
+    }
+    lastFusedDocument = document;
     ensureProcess();
-    // send over the current document in an execute command
-    // get back the changelog in a result object (or some error)
-    // if we get a changelog apply the changelog to the document
-    // if we get an error, throw an error condition and abort the process
-    String responseJson = (String) process.process(makeExecuteRequest(document));
+    long startNanos = System.nanoTime();
     try {
-      ExecuteResponse response = JSON.std.beanFrom(ExecuteResponse.class, responseJson);
-      if (!"ok".equals(response.status)) {
-        logger.debug("Python exception, stacktrace we got: "+response.stacktrace);
-        throw new GateRuntimeException("Error processing document: " + response.error
-                + "\nAdditional info from Python:\n" + response.info);
-      }      
-      //ChangeLog chlog = response.data;
-      if (response.data == null) {
-        throw new GateRuntimeException("Got null changelog back from process");
+      if (executionMode.useSharedFile(document.getContent().size())) {
+        // keep the order in which documents get processed
+        flushBatch();
+        executionStrategy.completeAll();
+        sharedFileExecution.execute(Collections.singletonList(document), false);
+        nrRequestsSent += 1;
+      } else if (executionMode.isBatching()) {
+        batchDocuments.add(document);
+        if (batchDocuments.size() >= getBatchSize()) {
+          flushBatch();
+        }
+      } else {
+        executionStrategy.execute(Collections.singletonList(document), false);
+        nrRequestsSent += 1;
       }
-      rhBdocApi.call("update_document_from_logmap", document, response.data);
-    } catch (IOException | NoSuchMethodException | IllegalArgumentException | IllegalAccessException | 
-            InvocationTargetException ex) {
-      throw new GateRuntimeException("Could not convert execute response JSON: " + responseJson, ex);
+    } catch (RuntimeException ex) {
+      metrics.error();
+      throw ex;
+    } finally {
+      executeNanos += System.nanoTime() - startNanos;
+    }
+  }
+  
+  /**
+   * Send all documents collected for the current batch to the python process 
+   * in an execute_batch request and apply the changes to each document.
+   */
+  protected void flushBatch() {
+    if (batchDocuments == null || batchDocuments.isEmpty()) {
+      return;
     }
+    List<Document> docs = new ArrayList<>(batchDocuments);
+    batchDocuments.clear();
+    executionStrategy.execute(docs, true);
+    nrRequestsSent += 1;
   }
 
+  /**
+   * Stop the current python process, if any, and use the standby process or
+   * a newly started process instead.
+   * 
+   * @return true if the standby process was used
+   */
+  protected boolean switchProcess() {
+    if (process != null) {
+      stopProcess();
+    }
+    String key = makeProcessKey();
+    StartedProcess started = takeStandby();
+    if (started != null) {
+      logger.info("Using standby process for duplicate " + duplicateId);
+      processKey = key;
+      useProcess(started);
+    } else {
+      startProcess(key);
+    }
+    startStandby();
+    return started != null;
+  }
+  
+  /**
+   * Start a standby process in the background, if enabled and there is none
+   * yet.
+   */
+  protected void startStandby() {
+    if (getStandbyProcess() && standby == null) {
+      standby = CompletableFuture.supplyAsync(this::launchProcess, STANDBY_STARTER);
+    }
+  }
+  
+  /**
+   * Get the standby process, waiting for it to finish starting if necessary.
+   * 
+   * @return the standby process or null if there is none or it could not be
+   * started or is not alive anymore
+   */
+  protected StartedProcess takeStandby() {
+    if (standby == null) {
+      return null;
+    }
+    CompletableFuture<StartedProcess> future = standby;
+    standby = null;
+    try {
+      StartedProcess ret = future.get();
+      if (ret.isAlive()) {
+        return ret;
+      }
+      logger.warn("Standby process of duplicate " + duplicateId + " is not alive anymore");
+      ret.stop();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (java.util.concurrent.ExecutionException ex) {
+      logger.warn("Could not start standby process for duplicate " + duplicateId, ex.getCause());
+    }
+    return null;
+  }
+  
+  /**
+   * Stop the standby process, if there is one.
+   */
+  protected void stopStandby() {
+    StartedProcess started = takeStandby();
+    if (started != null) {
+      started.stop();
+    }
+  }
+  
   /**
    * Callback when running over a whole corpus starts.
    *
@@ -1111,7 +3436,17 @@ public class PythonPr
    */
   @Override
   public void controllerExecutionStarted(Controller controller) {
+    setupFusion(controller);
+    if (fusedInto != null) {
+      // our program runs in the process of the first PR of the group
+      return;
+    }
+    deferredChangesSafe = canDeferChanges(controller);
+    long startNanos = System.nanoTime();
     whenStarting();
+    if (trace != null) {
+      trace.span("start", startNanos, System.nanoTime());
+    }
   }
 
   /**
@@ -1121,6 +3456,14 @@ public class PythonPr
    */
   @Override
   public void controllerExecutionFinished(Controller controller) {
+    if (fusedInto != null) {
+      fusedInto = null;
+      return;
+    }
+    long startNanos = System.nanoTime();
+    flushBatch();
+    executionStrategy.completeAll();
+    executeNanos += System.nanoTime() - startNanos;
     whenFinishing();
   }
 
@@ -1132,20 +3475,34 @@ public class PythonPr
    */
   @Override
   public void controllerExecutionAborted(Controller controller, Throwable throwable) {
+    if (fusedInto != null) {
+      fusedInto = null;
+      throw new GateRuntimeException("Exception when running pipeline", throwable);
+    }
+    if (batchDocuments != null && !batchDocuments.isEmpty()) {
+      logger.warn("Processing aborted, changes not applied to " + batchDocuments.size() 
+              + " documents of the last batch");
+      batchDocuments.clear();
+    }
+    // we still need all responses before we can finish
+    try {
+      if (executionStrategy != null) {
+        executionStrategy.completeAll();
+      }
+    } catch (GateRuntimeException ex) {
+      logger.warn("Error completing requests in flight after processing was aborted", ex);
+      executionStrategy.abandonAll();
+    }
     whenFinishing();
+    // we do not know in which state a kept alive process is now
+    if (process != null && process.isAlive()) {
+      stopProcess();
+    }
+    stopStandby();
+    getModelServerInstance().stopIfUnused();
     throw new GateRuntimeException("Exception when running pipeline", throwable);
   }
   
-  static protected class ExecuteResponse {
-
-    public String status;
-    public String error;
-    public String info;
-    public List<List<String>> stacktrace;
-    // public ChangeLog data;
-    public Map<String, Object> data;
-  }
-  
   static protected class FinishResponse {
 
     public String status;
@@ -1173,41 +3530,74 @@ public class PythonPr
   }
   */
 
+  /**
+   * Create the writer for an execute or execute_batch request.
+   * 
+   * This can be passed to Process4JsonLineStream directly, which then 
+   * gets the JSON written to the process while the documents are walked.
+   * The writer can be used again if the request has to be sent again.
+   *
+   * @param docs the documents to send over
+   * @param batch true for an execute_batch request, otherwise there must
+   * be exactly one document
+   * @return request writer
+   */
+  protected Process4JsonLineStream.JsonWriter makeExecuteRequestWriter(List<Document> docs, boolean batch) {
+    Set<String> sets = getSetsToSend();
+    DocumentProjection projection = msgPackCodec.getProjection();
+    return out -> {
+      if (batch) {
+        bdocJsonWriter.writeExecuteBatchRequest(docs, sets, projection, out);
+      } else {
+        bdocJsonWriter.writeExecuteRequest(docs.get(0), sets, projection, out);
+      }
+    };
+  }
+
   /**
    * Create and return the JSON String representing an execute request.
    *
    * @param doc the document to send over
    * @return JSON string
    */
-  @SuppressWarnings("unchecked")
   protected String makeExecuteRequest(Document doc) {
-    Map<String, Object> request = new HashMap<>();
-    request.put("command", "execute");
-    // create the BdocDocument from our document   
-    Map<String,Object> mdoc;
-    try {
-      if (setsToUse == null || setsToUse.contains("*")) {
-        mdoc = (Map<String, Object>) rhBdocApi.call("bdocmap_from_doc", document);
-      } else {
-        mdoc = (Map<String, Object>) rhBdocApi.call("bdocmap_from_doc", document, setsToUse, true);
-      }
-    } catch (NoSuchMethodException | IllegalArgumentException |
-            IllegalAccessException | InvocationTargetException ex) {
-      throw new GateRuntimeException("Error when trying to convert document to map", ex);
-    }
-    //BdocDocument bdoc = new BdocDocumentBuilder().fromGate(document).buildBdoc();
-    request.put("data", mdoc);
+    return makeRequestString(makeExecuteRequestWriter(Collections.singletonList(doc), false));
+  }
+  
+  /**
+   * Create and return the JSON String representing an execute_batch request.
+   *
+   * @param docs the documents to send over
+   * @return JSON string
+   */
+  protected String makeExecuteBatchRequest(List<Document> docs) {
+    return makeRequestString(makeExecuteRequestWriter(docs, true));
+  }
+  
+  private String makeRequestString(Process4JsonLineStream.JsonWriter writer) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
     try {
-      return JSON.std.asString(request);
+      writer.write(out);
     } catch (IOException ex) {
       throw new GateRuntimeException("Error when trying to convert execute request to JSON", ex);
     }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
   }
   
-  @SuppressWarnings("unchecked")
   protected String makeStartRequest() {
+    try {
+      return JSON.std.asString(makeStartRequestMap());
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Error when trying to convert start request to JSON", ex);
+    }    
+  }
+  
+  @SuppressWarnings("unchecked")
+  protected Map<String, Object> makeStartRequestMap() {
     Map<String, Object> request = new HashMap<>();
     request.put("command", "start");
+    // ask for the time spent in each phase with every execute response
+    request.put("timings", true);
     FeatureMap programParamsToUse = programParams == null ? Factory.newFeatureMap() : programParams;
     Map<String, Object> params;
     try {      
@@ -1229,29 +3619,49 @@ public class PythonPr
       params.put("_config_file", gate.util.Files.fileFromURL(getConfigFile()).getAbsolutePath());
     }
     request.put("data", params);
-    try {
-      return JSON.std.asString(request);
-    } catch (IOException ex) {
-      throw new GateRuntimeException("Error when trying to convert start request to JSON", ex);
-    }    
+    if (!fusedMembers.isEmpty()) {
+      // the programs to run after ours, with their own start parameters
+      List<Object> fused = new ArrayList<>();
+      for (PythonPr member : fusedMembers) {
+        fused.add(member.makeStartRequestMap().get("data"));
+      }
+      request.put("fused", fused);
+    }
+    return request;
   }
   
-  protected String makeFinishRequest() {
+  protected Map<String, Object> makeFinishRequestMap() {
     Map<String, Object> request = new HashMap<>();
     request.put("command", "finish");
+    return request;
+  }
+  
+  protected String makeFinishRequest() {
     try {
-      return JSON.std.asString(request);
+      return JSON.std.asString(makeFinishRequestMap());
     } catch (IOException ex) {
       throw new GateRuntimeException("Error when trying to convert finish request to JSON", ex);
     }    
   }
   
-  protected String makeReduceRequest() {
+  protected Map<String, Object> makeReduceRequestMap() {
+    return makeReduceRequestMap(getResultList());
+  }
+  
+  protected Map<String, Object> makeReduceRequestMap(List<?> results) {
     Map<String, Object> request = new HashMap<>();
     request.put("command", "reduce");
-    request.put("data", getResultList());
+    request.put("data", results);
+    return request;
+  }
+  
+  protected String makeReduceRequest() {
+    return makeReduceRequest(getResultList());
+  }
+  
+  protected String makeReduceRequest(List<?> results) {
     try {
-      return JSON.std.asString(request);
+      return JSON.std.asString(makeReduceRequestMap(results));
     } catch (IOException ex) {
       throw new GateRuntimeException("Error when trying to convert reduce request to JSON", ex);
     }    
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a PythonPr duplicate.
+ *
+ * @author Johann Petrak
+ */
+public class PythonPrMetrics extends ProcessingMetrics implements PythonPrMetricsMBean {
+
+  private final PythonPr pr;
+  private final AtomicLong processStarts = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private volatile long pythonPid = -1;
+
+  /**
+   * Create the metrics for a PR.
+   *
+   * @param pr the PR
+   */
+  public PythonPrMetrics(PythonPr pr) {
+    this.pr = pr;
+  }
+
+  /**
+   * Record that a new python process was started.
+   *
+   * @param process the process
+   */
+  public void processStarted(Process process) {
+    processStarts.incrementAndGet();
+    pythonPid = getPid(process);
+  }
+
+  /**
+   * Record that the python process did not respond in time.
+   */
+  public void timeout() {
+    timeouts.incrementAndGet();
+  }
+
+  /**
+   * Record that the python process was stopped.
+   */
+  public void processStopped() {
+    pythonPid = -1;
+    resetInFlight();
+  }
+
+  @Override
+  public String getPrName() {
+    return pr.getName();
+  }
+
+  @Override
+  public int getDuplicateId() {
+    return pr.getDuplicateId();
+  }
+
+  @Override
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Override
+  public long getRestarts() {
+    return Math.max(0, processStarts.get() - 1);
+  }
+
+  @Override
+  public long getPythonPid() {
+    return pythonPid;
+  }
+
+  @Override
+  public long getPythonRssKb() {
+    return getRssKb(pythonPid);
+  }
+}
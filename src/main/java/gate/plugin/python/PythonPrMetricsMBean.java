@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+/**
+ * The JMX management interface for the metrics of a PythonPr duplicate.
+ *
+ * @author Johann Petrak
+ */
+public interface PythonPrMetricsMBean {
+
+  /**
+   * @return the name of the PR
+   */
+  String getPrName();
+
+  /**
+   * @return the duplicate id of the PR
+   */
+  int getDuplicateId();
+
+  /**
+   * @return number of documents processed
+   */
+  long getDocumentsProcessed();
+
+  /**
+   * @return number of execute requests completed
+   */
+  long getRequestsCompleted();
+
+  /**
+   * @return number of requests sent to python and not completed yet
+   */
+  long getInFlightRequests();
+
+  /**
+   * @return number of bytes sent to python
+   */
+  long getBytesSent();
+
+  /**
+   * @return number of bytes received from python
+   */
+  long getBytesReceived();
+
+  /**
+   * @return number of errors
+   */
+  long getErrors();
+
+  /**
+   * @return number of requests the python process did not respond to in time
+   */
+  long getTimeouts();
+
+  /**
+   * @return number of times the python process was started again
+   */
+  long getRestarts();
+
+  /**
+   * @return median latency of the recent requests in microseconds
+   */
+  long getLatencyP50Micros();
+
+  /**
+   * @return 95th percentile latency of the recent requests in microseconds
+   */
+  long getLatencyP95Micros();
+
+  /**
+   * @return 99th percentile latency of the recent requests in microseconds
+   */
+  long getLatencyP99Micros();
+
+  /**
+   * @return maximum latency of the recent requests in microseconds
+   */
+  long getLatencyMaxMicros();
+
+  /**
+   * @return process id of the python process or -1
+   */
+  long getPythonPid();
+
+  /**
+   * @return resident set size of the python process in kB, or -1
+   */
+  long getPythonRssKb();
+}
@@ -90,6 +90,12 @@ public class PythonWorker {
 
   private Corpus tmpCorpus;
 
+  /**
+   * The live metrics of this worker, published as an MBean while the server
+   * is running.
+   */
+  protected final PythonWorkerMetrics metrics = new PythonWorkerMetrics();
+
   // For using the Format_Bdoc API
   // Since the Python plugin run-time depends on the format bdoc plugin,
   // this should ALWAYS SUCCEED without a problem!
@@ -275,11 +281,23 @@ public class PythonWorker {
       ((AbstractController)pipeline).setControllerCallbacksEnabled(false);
     }
     pipeline.setCorpus(tmpCorpus);
+    runPipeline(pipeline, 1);
+  }
+
+  // run the pipeline and update the metrics
+  private void runPipeline(CorpusController pipeline, int nrDocs) {
+    metrics.requestStarted();
+    long startNanos = System.nanoTime();
     try {
       pipeline.execute();
     } catch (ExecutionException ex) {
+      metrics.error();
       throw new GateRuntimeException("Exception when running the pipeline", ex);
+    } catch (RuntimeException ex) {
+      metrics.error();
+      throw ex;
     }
+    metrics.requestCompleted(nrDocs, (System.nanoTime() - startNanos) / 1000, 0, 0);
   }
 
   /**
@@ -332,11 +350,7 @@ public class PythonWorker {
       ((AbstractController)pipeline).setControllerCallbacksEnabled(true);
     }
     pipeline.setCorpus(corpus);
-    try {
-      pipeline.execute();
-    } catch (ExecutionException ex) {
-      throw new GateRuntimeException("Exception when running the pipeline", ex);
-    }
+    runPipeline(pipeline, corpus.size());
   }
 
   /**
@@ -503,6 +517,7 @@ public class PythonWorker {
                      .getInstantiations().iterator().next();
     try {
       String json = (String)rh.call("json_from_doc", doc);
+      metrics.addBytesSent(json.length());
       return json;
     } catch (NoSuchMethodException | IllegalArgumentException |
             IllegalAccessException | InvocationTargetException ex) {
@@ -525,6 +540,7 @@ public class PythonWorker {
               .get("gate.plugin.format.bdoc.API")
               .getInstantiations().iterator().next();
       Document theDoc = (Document)rh.call("doc_from_json", null, bdocjson);
+      metrics.addBytesReceived(bdocjson.length());
       return theDoc;
     } catch (NoSuchMethodException | IllegalArgumentException | IllegalAccessException | InvocationTargetException ex) {
       throw new GateRuntimeException("Error invoking Format Bdoc API method doc_from_json", ex);
@@ -768,9 +784,29 @@ public class PythonWorker {
    *
    */
   public void kill() {
+    unregisterMetrics();
     server.shutdown();
   }
 
+  /**
+   * Start publishing the metrics of this worker as an MBean.
+   *
+   * @param port the port the server listens on
+   * @param pythonPid the process id of the python process, or -1 if not known
+   */
+  protected void registerMetrics(int port, long pythonPid) {
+    metrics.setPort(port);
+    metrics.setPythonPid(pythonPid);
+    metrics.register("type=PythonWorker,port=" + port);
+  }
+
+  /**
+   * Stop publishing the metrics of this worker.
+   */
+  protected void unregisterMetrics() {
+    metrics.unregister();
+  }
+
   /**
    * Check if the worker is closable.
    * It is closable if not started by the Lr.
@@ -220,6 +220,7 @@ public class PythonWorkerLr extends AbstractLanguageResource  {
       pworker.server = null;
       throw new GateRuntimeException("Could not start GatewayServer",ex);
     }
+    pworker.registerMetrics(port, -1);
   }
   
   /**
@@ -228,6 +229,7 @@ public class PythonWorkerLr extends AbstractLanguageResource  {
    * @param pworker the PythonWorker instance that owns the server.
    */
   public void stopServer(PythonWorker pworker) {
+    pworker.unregisterMetrics();
     if(pworker.server != null)
       pworker.server.shutdown();
   }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import java.io.File;
+
+/**
+ * The metrics of a PythonWorker.
+ *
+ * The python process is only known if the worker JVM was started by the
+ * python process through the PythonWorkerRunner, in which case it is the
+ * parent process of the JVM.
+ *
+ * @author Johann Petrak
+ */
+public class PythonWorkerMetrics extends ProcessingMetrics implements PythonWorkerMetricsMBean {
+
+  private volatile int port = -1;
+  private volatile long pythonPid = -1;
+
+  /**
+   * Set the port the worker listens on.
+   *
+   * @param port the port
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Set the process id of the python process using the worker.
+   *
+   * @param pid the process id
+   */
+  public void setPythonPid(long pid) {
+    pythonPid = pid;
+  }
+
+  /**
+   * Record data sent to python outside of a request.
+   *
+   * @param n number of characters
+   */
+  public void addBytesSent(long n) {
+    bytesSent.addAndGet(n);
+  }
+
+  /**
+   * Record data received from python outside of a request.
+   *
+   * @param n number of characters
+   */
+  public void addBytesReceived(long n) {
+    bytesReceived.addAndGet(n);
+  }
+
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public long getPythonPid() {
+    return pythonPid;
+  }
+
+  @Override
+  public long getPythonRssKb() {
+    return getRssKb(pythonPid);
+  }
+
+  /**
+   * Get the parent process id of this JVM.
+   *
+   * This is read from /proc/self/status and therefore only available on
+   * Linux.
+   *
+   * @return the parent process id or -1 if not available
+   */
+  public static long getParentPid() {
+    return readStatusValue(new File("/proc/self/status"), "PPid:");
+  }
+}
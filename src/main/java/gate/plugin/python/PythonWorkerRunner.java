@@ -226,6 +226,8 @@ public class PythonWorkerRunner extends ResourceHelper  {
     pworker.server = server;
     try {
       server.start();
+      // the python process which started us is our parent process
+      pworker.registerMetrics(port, PythonWorkerMetrics.getParentPid());
       System.err.println("PythonWorkerRunner.java: server start OK");
       System.err.flush();
     } catch(Exception ex) {
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.Document;
+import gate.plugin.python.PythonPr.ExchangeFormat;
+import gate.util.GateRuntimeException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands over a single document in a shared file and applies the changes
+ * the Python program writes to a file in the same directory.
+ *
+ * Requests are processed synchronously in either exchange format, any 
+ * requests still in flight must be completed before a document is handed
+ * over this way.
+ *
+ * @author Johann Petrak
+ */
+public class SharedFileExecution implements ExecutionStrategy {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  protected final PythonPr pr;
+
+  /**
+   * Create the strategy for a PR.
+   *
+   * @param pr the PR
+   */
+  public SharedFileExecution(PythonPr pr) {
+    this.pr = pr;
+  }
+
+  @Override
+  public void execute(List<Document> docs, boolean batch) {
+    if (batch || docs.size() != 1) {
+      throw new GateRuntimeException("Only single documents can be handed over in shared files");
+    }
+    execute(docs.get(0), 0);
+  }
+
+  /**
+   * Hand over a single document in a shared file and apply the changes.
+   * 
+   * @param doc the document to process
+   * @param attempt the number of times the document was already sent to a
+   * process which died
+   */
+  protected void execute(Document doc, int attempt) {
+    boolean msgpack = pr.getExchangeFormat() == ExchangeFormat.MSGPACK;
+    long startNanos = System.nanoTime();
+    pr.metrics.requestStarted();
+    SharedFiles.Handoff handoff = pr.sharedFiles.write(out -> {
+      if (msgpack) {
+        pr.msgPackCodec.writeBdoc(doc, pr.getSetsToSend(), out);
+      } else {
+        pr.bdocJsonWriter.writeDocument(doc, pr.getSetsToSend(), pr.msgPackCodec.getProjection(), out);
+      }
+    });
+    try {
+      Map<String, Object> request = new HashMap<>();
+      request.put("command", "execute");
+      SharedFiles.addToRequest(handoff, request);
+      String status, error, info;
+      Object stacktrace;
+      Map<String, Object> location;
+      long sentNanos = System.nanoTime();
+      if (msgpack) {
+        MsgPackCodec.Response response;
+        try {
+          response = pr.recovery.waitForResponse(() -> pr.processMsgPack(request));
+        } catch (ProcessRecovery.RequestTimeoutException ex) {
+          pr.recovery.timedOut(Collections.singletonList(doc));
+          return;
+        } catch (ProcessRecovery.ProcessDiedException ex) {
+          if (pr.recovery.crashed(Collections.singletonList(doc), attempt)) {
+            execute(doc, attempt + 1);
+          }
+          return;
+        }
+        if (response == null) {
+          throw new GateRuntimeException("Invalid null response from Python process");
+        }
+        status = response.status;
+        error = response.error;
+        info = response.info;
+        stacktrace = response.stacktrace;
+        location = response.header;
+      } else {
+        String responseJson;
+        try {
+          responseJson = pr.recovery.waitForResponse(() -> (String) pr.process.process(request));
+        } catch (ProcessRecovery.RequestTimeoutException ex) {
+          pr.recovery.timedOut(Collections.singletonList(doc));
+          return;
+        } catch (ProcessRecovery.ProcessDiedException ex) {
+          if (pr.recovery.crashed(Collections.singletonList(doc), attempt)) {
+            execute(doc, attempt + 1);
+          }
+          return;
+        }
+        if (responseJson == null) {
+          throw new GateRuntimeException("Invalid null response from Python process");
+        }
+        ChangeLogApplier.Response response = 
+                pr.changeLogApplier.applyResponse(responseJson, Collections.singletonList(doc), false);
+        status = response.status;
+        error = response.error;
+        info = response.info;
+        stacktrace = response.stacktrace;
+        location = response.other;
+      }
+      long receivedNanos = System.nanoTime();
+      if (!"ok".equals(status)) {
+        logger.debug("Python exception, stacktrace we got: "+stacktrace);
+        throw new GateRuntimeException("Error processing document: " + error
+                + "\nAdditional info from Python:\n" + info);
+      }
+      if (msgpack) {
+        pr.changeLogApplier.applyChangeLog(pr.msgPackCodec.loadChangeLog(SharedFiles.mapResponse(location)), doc);
+      } else {
+        pr.changeLogApplier.applyChangeLog(SharedFiles.mapResponse(location), doc);
+      }
+      Object responseLength = location.get("length");
+      pr.recordPhases(1, startNanos, sentNanos - startNanos, receivedNanos - sentNanos, 
+              System.nanoTime() - receivedNanos, handoff.requestLength, 
+              responseLength instanceof Number ? ((Number) responseLength).longValue() : 0,
+              location.get("timings"));
+    } finally {
+      pr.sharedFiles.release(handoff);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import gate.util.GateRuntimeException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A scratch directory for handing over large documents and changelogs in
+ * files instead of through the message stream.
+ *
+ * For each request, the serialized document gets written to a file in
+ * the scratch directory and the request only contains the path, offset and
+ * length of the data in the file, plus the path of the file the Python
+ * process should write the changelog to. The Python process can mmap the
+ * file and replies with the path, offset and length of the changelog, which
+ * we read back through a read-only memory mapping.
+ *
+ * @author Johann Petrak
+ */
+public class SharedFiles {
+
+  /**
+   * Our logger instance.
+   */
+  public transient Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  /**
+   * The buffer size used for writing a file.
+   */
+  public static final int BUFFER_SIZE = 1024 * 1024;
+
+  protected final File directory;
+  protected long lastFileId = 0;
+
+  /**
+   * The files used for one request.
+   */
+  public static class Handoff {
+
+    /**
+     * File containing the serialized document.
+     */
+    public File requestFile;
+    /**
+     * File the Python process should write the changelog to.
+     */
+    public File responseFile;
+    /**
+     * Number of bytes written to the request file.
+     */
+    public long requestLength;
+  }
+
+  /**
+   * Create a new scratch directory.
+   *
+   * @param prefix prefix for the name of the temporary directory
+   */
+  public SharedFiles(String prefix) {
+    try {
+      directory = Files.createTempDirectory(prefix).toFile();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not create scratch directory for shared files", ex);
+    }
+  }
+
+  /**
+   * Get the scratch directory.
+   *
+   * @return directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Write a request file.
+   *
+   * @param writer writes the serialized document to the stream
+   * @return handoff with the request file written and the response file
+   * allocated
+   */
+  public Handoff write(Process4FrameStream.FrameWriter writer) {
+    Handoff handoff = new Handoff();
+    lastFileId++;
+    handoff.requestFile = new File(directory, "request-" + lastFileId + ".bin");
+    handoff.responseFile = new File(directory, "response-" + lastFileId + ".bin");
+    try (OutputStream out = new BufferedOutputStream(
+            new FileOutputStream(handoff.requestFile), BUFFER_SIZE)) {
+      writer.write(out);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write shared file " + handoff.requestFile, ex);
+    }
+    handoff.requestLength = handoff.requestFile.length();
+    return handoff;
+  }
+
+  /**
+   * Add the request fields for a handoff to a request map.
+   *
+   * @param handoff the handoff
+   * @param request the request map
+   */
+  public static void addToRequest(Handoff handoff, Map<String, Object> request) {
+    request.put("file", handoff.requestFile.getAbsolutePath());
+    request.put("offset", 0L);
+    request.put("length", handoff.requestLength);
+    request.put("response_file", handoff.responseFile.getAbsolutePath());
+  }
+
+  /**
+   * Map the data the Python process refers to in its response.
+   *
+   * @param response the response header, must contain "file", "offset" and
+   * "length"
+   * @return input stream for reading the mapped data
+   */
+  public static InputStream mapResponse(Map<String, Object> response) {
+    Object file = response.get("file");
+    Object offset = response.get("offset");
+    Object length = response.get("length");
+    if (!(file instanceof String) || !(length instanceof Number)) {
+      throw new GateRuntimeException("Response does not refer to a shared file");
+    }
+    long off = offset instanceof Number ? ((Number) offset).longValue() : 0L;
+    long len = ((Number) length).longValue();
+    if (len > Integer.MAX_VALUE) {
+      throw new GateRuntimeException("Shared file data too large: " + len);
+    }
+    try (FileChannel channel = FileChannel.open(new File((String) file).toPath(), StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, off, len);
+      return new ByteBufferInputStream(buffer);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not map shared file " + file, ex);
+    }
+  }
+
+  /**
+   * Remove the files of a handoff once the response has been processed.
+   *
+   * @param handoff the handoff
+   */
+  public void release(Handoff handoff) {
+    handoff.requestFile.delete();
+    handoff.responseFile.delete();
+  }
+
+  /**
+   * Remove the scratch directory and everything in it.
+   */
+  public void cleanup() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          logger.warn("Could not delete shared file " + file);
+        }
+      }
+    }
+    if (!directory.delete()) {
+      logger.warn("Could not delete scratch directory " + directory);
+    }
+  }
+
+  /**
+   * Input stream reading from a byte buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the spans of time a duplicate of a PR spends in each phase.
+ *
+ * The spans of all duplicates can be written to a file in the Chrome trace
+ * event format, which can be viewed with chrome://tracing or the Perfetto
+ * UI. Each duplicate is shown as a separate thread with the duplicate id as
+ * the thread id.
+ *
+ * @author Johann Petrak
+ */
+public class TraceRecorder {
+
+  /**
+   * The maximum number of spans recorded per duplicate, any further spans
+   * are dropped.
+   */
+  public static final int MAX_SPANS = 1000000;
+
+  private final int threadId;
+  private final String threadName;
+  private final List<Span> spans = new ArrayList<>();
+  private long dropped = 0;
+
+  private static class Span {
+
+    private final String name;
+    private final long startNanos;
+    private final long endNanos;
+    private final Map<String, Object> args;
+
+    Span(String name, long startNanos, long endNanos, Map<String, Object> args) {
+      this.name = name;
+      this.startNanos = startNanos;
+      this.endNanos = endNanos;
+      this.args = args;
+    }
+  }
+
+  /**
+   * Create a recorder.
+   *
+   * @param threadId the thread id to use, the duplicate id
+   * @param threadName the name to show for the thread
+   */
+  public TraceRecorder(int threadId, String threadName) {
+    this.threadId = threadId;
+    this.threadName = threadName;
+  }
+
+  /**
+   * Record a span.
+   *
+   * @param name the name of the span
+   * @param startNanos start of the span, from System.nanoTime()
+   * @param endNanos end of the span, from System.nanoTime()
+   */
+  public void span(String name, long startNanos, long endNanos) {
+    span(name, startNanos, endNanos, null);
+  }
+
+  /**
+   * Record a span with arguments which are shown for the span.
+   *
+   * @param name the name of the span
+   * @param startNanos start of the span, from System.nanoTime()
+   * @param endNanos end of the span, from System.nanoTime()
+   * @param args the arguments, values should be strings, numbers or
+   * booleans, may be null
+   */
+  public synchronized void span(String name, long startNanos, long endNanos, Map<String, Object> args) {
+    if (spans.size() >= MAX_SPANS) {
+      dropped++;
+      return;
+    }
+    spans.add(new Span(name, startNanos, endNanos, args));
+  }
+
+  /**
+   * Get the number of spans which were dropped because the limit was
+   * reached.
+   *
+   * @return number of dropped spans
+   */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Write the spans of several recorders to a trace file.
+   *
+   * @param file the file to write
+   * @param recorders the recorders
+   */
+  public static void write(File file, Collection<TraceRecorder> recorders) {
+    JsonFactory factory = new JsonFactory();
+    try (JsonGenerator gen = factory.createGenerator(file, JsonEncoding.UTF8)) {
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("traceEvents");
+      for (TraceRecorder recorder : recorders) {
+        recorder.writeEvents(gen);
+      }
+      gen.writeEndArray();
+      gen.writeStringField("displayTimeUnit", "ms");
+      gen.writeEndObject();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write trace file " + file, ex);
+    }
+  }
+
+  private synchronized void writeEvents(JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    gen.writeStringField("name", "thread_name");
+    gen.writeStringField("ph", "M");
+    gen.writeNumberField("pid", 1);
+    gen.writeNumberField("tid", threadId);
+    gen.writeObjectFieldStart("args");
+    gen.writeStringField("name", threadName);
+    gen.writeEndObject();
+    gen.writeEndObject();
+    for (Span span : spans) {
+      gen.writeStartObject();
+      gen.writeStringField("name", span.name);
+      gen.writeStringField("ph", "X");
+      gen.writeNumberField("pid", 1);
+      gen.writeNumberField("tid", threadId);
+      // the trace format uses microseconds
+      gen.writeNumberField("ts", span.startNanos / 1000.0);
+      gen.writeNumberField("dur", (span.endNanos - span.startNanos) / 1000.0);
+      if (span.args != null && !span.args.isEmpty()) {
+        gen.writeObjectFieldStart("args");
+        for (Map.Entry<String, Object> arg : span.args.entrySet()) {
+          Object value = arg.getValue();
+          if (value instanceof Integer || value instanceof Long) {
+            gen.writeNumberField(arg.getKey(), ((Number) value).longValue());
+          } else if (value instanceof Number) {
+            gen.writeNumberField(arg.getKey(), ((Number) value).doubleValue());
+          } else if (value instanceof Boolean) {
+            gen.writeBooleanField(arg.getKey(), (Boolean) value);
+          } else {
+            gen.writeStringField(arg.getKey(), String.valueOf(value));
+          }
+        }
+        gen.writeEndObject();
+      }
+      gen.writeEndObject();
+    }
+  }
+}
@@ -0,0 +1,699 @@
+"""
+Run the Python program of a PythonPr and exchange messages with the plugin.
+
+The plugin does not run the Python program directly but with this module:
+
+    python -m gateplugin_interact PROGRAMFILE [OPTIONS]
+    python -m gateplugin_interact --module MODULE [OPTIONS]
+
+Before the program gets run, gatenlp.GateNlpPr and gatenlp.interact are
+replaced by the functions of this module, so that the interact() call at the
+end of the program runs the message loop implemented here. This way all the
+requests the plugin may send are supported with any version of the gatenlp
+package which provides the Document and ChangeLog classes.
+
+Messages are either exchanged as one JSON map per line or, with
+"--format msgpack", as frames: chunks which each consist of a 4-byte big
+endian length followed by that many bytes, terminated by a chunk of length 0.
+A frame contains a MsgPack map (the header), optionally followed by a payload:
+the document in the bdoc MsgPack format for an execute request, the changelog
+as a MsgPack map for the execute response.
+
+With "--mode pipe", messages are exchanged over standard input and output,
+and anything the program prints to standard output goes to standard error.
+With "--mode check", the program is only loaded and the processing resource
+it registered is checked, the process exits with a non-zero status if that
+fails. The same check is done on start if the start request contains
+"check": true, which is then confirmed by "checked": true in the response.
+With "--mode socket", the process connects to the plugin at --host and --port,
+sends the token from the environment variable GATENLP_SOCKET_TOKEN followed
+by a newline, and then exchanges the messages over that connection.
+With "--mode forkserver", the process runs the preload hook and then forks a
+child for each fork request, which connects to the plugin like a process in
+socket mode (not available on Windows).
+
+An execute request may also hand over the document in a shared file: the
+request then contains "file", "offset" and "length" instead of the document
+and "response_file", the file the changelog gets written to.
+
+The start request of a PR which other PRs are fused with lists the start
+parameters of their programs under "fused". Those programs get loaded into
+the same process and run on each document after the program of the PR, and
+their finish and reduce results are returned as a list under "_fused".
+"""
+import argparse
+import inspect
+import json
+import logging
+import mmap
+import os
+import runpy
+import signal
+import socket
+import struct
+import sys
+import time
+import traceback
+
+logger = logging.getLogger("gateplugin_interact")
+
+# maximum number of bytes in one chunk of a frame
+MAX_CHUNK_SIZE = 1024 * 1024
+
+# the environment variable with the token to send after connecting
+TOKEN_ENVVAR = "GATENLP_SOCKET_TOKEN"
+
+# the key for the results of the fused programs in the finish and reduce results
+FUSED_RESULTS_KEY = "_fused"
+
+# everything registered with GateNlpPr so far
+_registered = []
+
+# the parsed command line options
+_args = None
+
+# true once interact() has been called by the program
+_interact_called = False
+
+# true while the program of a fused PR gets loaded, so its interact() call
+# only returns
+_loading_member = False
+
+
+def GateNlpPr(what):
+    """
+    Replacement for gatenlp.GateNlpPr: register the function or class
+    to run on each document.
+
+    Args:
+        what: a function or a class with a __call__ method
+
+    Returns:
+        what, unchanged
+    """
+    _registered.append(what)
+    return what
+
+
+def interact(*args, **kwargs):
+    """
+    Replacement for gatenlp.interact(): run the message loop for the
+    processing resource registered last.
+
+    Any arguments are ignored, everything is configured through the command
+    line options of this module.
+    """
+    global _interact_called
+    if _loading_member:
+        return
+    _interact_called = True
+    if not _registered:
+        raise Exception("No processing resource defined with the @GateNlpPr decorator")
+    program = Program(_registered[-1])
+    if _args.mode == "check":
+        program.check()
+        return
+    server = Server(program, make_codec(_args.format))
+    if _args.mode == "pipe":
+        serve_pipe(server)
+    elif _args.mode == "socket":
+        sock = connect(_args.host, _args.port, os.environ.get(TOKEN_ENVVAR, ""))
+        serve_socket(server, sock)
+    elif _args.mode == "forkserver":
+        serve_forkserver(server)
+    else:
+        raise Exception("Unsupported mode: {}".format(_args.mode))
+
+
+def call_with_kwargs(func, *args, **kwargs):
+    """
+    Call a function with positional arguments and those keyword arguments
+    it accepts: all if it has **kwargs, otherwise only the named ones.
+    """
+    try:
+        parms = list(inspect.signature(func).parameters.values())
+    except (TypeError, ValueError):
+        return func(*args, **kwargs)
+    if any(p.kind == p.VAR_KEYWORD for p in parms):
+        return func(*args, **kwargs)
+    positional = [p for p in parms if p.kind in (p.POSITIONAL_ONLY, p.POSITIONAL_OR_KEYWORD)]
+    names = set(p.name for p in positional[len(args):] if p.kind != p.POSITIONAL_ONLY)
+    names.update(p.name for p in parms if p.kind == p.KEYWORD_ONLY)
+    return func(*args, **{k: v for k, v in kwargs.items() if k in names})
+
+
+class Program:
+    """
+    The processing resource registered by one Python program and the
+    parameters it got started with.
+
+    If a class got registered, it gets instantiated and the optional methods
+    start, reset, preload, finish, reduce and pipe of the instance are used 
+    as hooks.
+    A process which is kept alive for the next run gets a reset instead of a
+    start request, which calls start again if there is no reset method.
+    The projection attribute of the instance, a map or a method which 
+    returns one, declares which parts of the document the program needs.
+    """
+
+    def __init__(self, registered):
+        if inspect.isclass(registered):
+            self.pr = registered()
+        else:
+            self.pr = registered
+        self.params = {}
+
+    def hook(self, name):
+        if inspect.isfunction(self.pr):
+            return None
+        return getattr(self.pr, name, None)
+
+    def check(self):
+        """Raise an exception if the processing resource cannot be used."""
+        if not callable(self.pr):
+            raise Exception("The @GateNlpPr object is not callable: {}".format(self.pr))
+        for name in ["start", "reset", "preload", "finish", "reduce", "pipe"]:
+            hook = self.hook(name)
+            if hook is not None and not callable(hook):
+                raise Exception("The {} attribute of the @GateNlpPr object is not callable".format(name))
+
+    def start(self, params):
+        self.params = params
+        hook = self.hook("start")
+        if hook is not None:
+            call_with_kwargs(hook, **params)
+
+    def reset(self, params):
+        hook = self.hook("reset")
+        if hook is None:
+            self.start(params)
+        else:
+            self.params = params
+            call_with_kwargs(hook, **params)
+
+    def preload(self, params):
+        hook = self.hook("preload")
+        if hook is not None:
+            call_with_kwargs(hook, **params)
+
+    def execute(self, doc):
+        call_with_kwargs(self.pr, doc, **self.params)
+
+    def execute_batch(self, docs):
+        hook = self.hook("pipe")
+        if hook is None:
+            for doc in docs:
+                self.execute(doc)
+        else:
+            ret = call_with_kwargs(hook, docs, **self.params)
+            if inspect.isgenerator(ret):
+                for _ in ret:
+                    pass
+
+    def projection(self):
+        projection = self.hook("projection")
+        if callable(projection):
+            projection = call_with_kwargs(projection, **self.params)
+        return projection
+
+    def finish(self):
+        hook = self.hook("finish")
+        if hook is None:
+            return None
+        return call_with_kwargs(hook, **self.params)
+
+    def reduce(self, results):
+        hook = self.hook("reduce")
+        if hook is None:
+            return None
+        return hook(results)
+
+
+def load_program(params):
+    """
+    Load the program of a fused PR from the parameters of its start request
+    and return the processing resource it registers.
+    """
+    global _loading_member
+    nr_registered = len(_registered)
+    _loading_member = True
+    try:
+        if "_pythonFile" in params:
+            runpy.run_path(params["_pythonFile"], run_name="__main__")
+        else:
+            if params["_pythonPath"] not in sys.path:
+                sys.path.append(params["_pythonPath"])
+            runpy.run_module(params["_pythonModule"], run_name="__main__", alter_sys=True)
+    finally:
+        _loading_member = False
+    if len(_registered) == nr_registered:
+        raise Exception("No processing resource defined with the @GateNlpPr decorator in {}".format(
+            params.get("_pythonFile", params.get("_pythonModule"))))
+    return Program(_registered[-1])
+
+
+def merge_projections(projections):
+    """
+    Merge the projections declared by fused programs into one which sends
+    everything any of them needs. None means everything is needed.
+    """
+    if not projections or any(p is None for p in projections):
+        return None
+    ret = {}
+    for key in ["types", "features"]:
+        values = [p.get(key) for p in projections]
+        if all(v is not None for v in values):
+            ret[key] = sorted(set(v for vals in values for v in vals))
+    for key in ["document_features", "text"]:
+        ret[key] = any(p.get(key, True) is not False for p in projections)
+    return ret
+
+
+def ok_response(**fields):
+    response = {"status": "ok"}
+    response.update(fields)
+    return response
+
+
+def error_response(ex):
+    return {
+        "status": "error",
+        "data": None,
+        "error": repr(ex),
+        "info": "".join(traceback.format_exception(type(ex), ex, ex.__traceback__)),
+        "stacktrace": traceback.format_tb(ex.__traceback__),
+    }
+
+
+class JsonCodec:
+    """Messages as one JSON map per line."""
+
+    def read(self, instream):
+        line = instream.readline()
+        if not line:
+            return None, None
+        return json.loads(line.decode("utf-8")), None
+
+    def write(self, outstream, header, payload=None):
+        if payload is not None:
+            header["data"] = payload
+        outstream.write(json.dumps(header).encode("utf-8"))
+        outstream.write(b"\n")
+        outstream.flush()
+
+    def load_document(self, data):
+        from gatenlp import Document
+        if isinstance(data, (bytes, bytearray, memoryview)):
+            data = json.loads(bytes(data).decode("utf-8"))
+        return Document.from_dict(data)
+
+    def dump_changelog(self, chlog):
+        return chlog
+
+    def dump_changelog_file(self, chlog):
+        return json.dumps(chlog).encode("utf-8")
+
+
+class MsgPackCodec:
+    """Messages as frames containing a MsgPack header and optional payload."""
+
+    def __init__(self):
+        import msgpack
+        self.msgpack = msgpack
+
+    def read(self, instream):
+        frame = read_frame(instream)
+        if frame is None:
+            return None, None
+        unpacker = self.msgpack.Unpacker(raw=False, max_buffer_size=max(len(frame), 1))
+        unpacker.feed(frame)
+        header = unpacker.unpack()
+        offset = unpacker.tell()
+        payload = memoryview(frame)[offset:] if offset < len(frame) else None
+        return header, payload
+
+    def write(self, outstream, header, payload=None):
+        data = self.msgpack.packb(header, use_bin_type=True)
+        if payload is not None:
+            data += payload
+        write_frame(outstream, data)
+
+    def load_document(self, data):
+        from gatenlp import Document
+        return Document.load_mem(bytes(data), fmt="msgpack")
+
+    def dump_changelog(self, chlog):
+        return self.msgpack.packb(chlog, use_bin_type=True)
+
+    def dump_changelog_file(self, chlog):
+        return self.dump_changelog(chlog)
+
+
+def make_codec(fmt):
+    if fmt == "msgpack":
+        return MsgPackCodec()
+    return JsonCodec()
+
+
+def read_exactly(instream, nbytes):
+    data = instream.read(nbytes)
+    while data and len(data) < nbytes:
+        more = instream.read(nbytes - len(data))
+        if not more:
+            break
+        data += more
+    return data
+
+
+def read_frame(instream):
+    """Read one frame, return None if the stream ended before the frame."""
+    chunks = []
+    while True:
+        head = read_exactly(instream, 4)
+        if not head and not chunks:
+            return None
+        if len(head) < 4:
+            raise EOFError("Stream ended within a frame")
+        length = struct.unpack(">i", head)[0]
+        if length == 0:
+            return b"".join(chunks)
+        if length < 0:
+            raise IOError("Invalid chunk length in frame: {}".format(length))
+        chunk = read_exactly(instream, length)
+        if len(chunk) < length:
+            raise EOFError("Stream ended within a frame")
+        chunks.append(chunk)
+
+
+def write_frame(outstream, data):
+    view = memoryview(data)
+    for offset in range(0, len(view), MAX_CHUNK_SIZE):
+        chunk = view[offset:offset + MAX_CHUNK_SIZE]
+        outstream.write(struct.pack(">i", len(chunk)))
+        outstream.write(chunk)
+    outstream.write(struct.pack(">i", 0))
+    outstream.flush()
+
+
+class Server:
+    """
+    Handles the requests for the program of the PR and the programs of the
+    PRs fused with it.
+    """
+
+    def __init__(self, program, codec):
+        self.program = program
+        self.members = []
+        self.codec = codec
+        self.timings = False
+
+    def programs(self):
+        return [self.program] + self.members
+
+    def handle(self, request, payload):
+        """
+        Handle one request, return the response header and payload.
+        """
+        command = request.get("command")
+        if command in ("start", "reset", "preload"):
+            return self.setup(command, request), None
+        elif command == "execute":
+            if "file" in request:
+                return self.execute_file(request), None
+            return self.execute(request.get("data", payload))
+        elif command == "execute_batch":
+            return self.execute_batch(request.get("data"))
+        elif command == "finish":
+            return ok_response(data=self.finish()), None
+        elif command == "reduce":
+            return ok_response(data=self.reduce(request.get("data"))), None
+        else:
+            raise Exception("Unknown command: {}".format(command))
+
+    def setup(self, command, request):
+        params = request.get("data") or {}
+        fused = request.get("fused") or []
+        if len(self.members) != len(fused):
+            self.members = [load_program(p) for p in fused]
+        response = ok_response()
+        if request.get("check"):
+            for program in self.programs():
+                program.check()
+            response["checked"] = True
+        self.timings = bool(request.get("timings"))
+        for program, programparams in zip(self.programs(), [params] + fused):
+            getattr(program, command)(programparams)
+        if command == "start":
+            projection = merge_projections([p.projection() for p in self.programs()])
+            if projection is not None:
+                response["projection"] = projection
+        return response
+
+    def run_document(self, doc):
+        doc.to_offset_type("p")
+        from gatenlp.changelog import ChangeLog
+        doc.changelog = ChangeLog()
+        return doc
+
+    def execute(self, data):
+        start = time.perf_counter()
+        doc = self.run_document(self.codec.load_document(data))
+        decoded = time.perf_counter()
+        for program in self.programs():
+            program.execute(doc)
+        executed = time.perf_counter()
+        chlog = self.codec.dump_changelog(doc.changelog.to_dict())
+        response = ok_response()
+        self.add_timings(response, start, decoded, executed)
+        return response, chlog
+
+    def execute_batch(self, data):
+        start = time.perf_counter()
+        docs = [self.run_document(self.codec.load_document(d)) for d in data]
+        decoded = time.perf_counter()
+        for program in self.programs():
+            program.execute_batch(docs)
+        executed = time.perf_counter()
+        chlogs = [self.codec.dump_changelog(doc.changelog.to_dict()) for doc in docs]
+        response = ok_response(data=chlogs)
+        self.add_timings(response, start, decoded, executed)
+        return response, None
+
+    def execute_file(self, request):
+        start = time.perf_counter()
+        offset = request.get("offset", 0)
+        with open(request["file"], "rb") as infp:
+            with mmap.mmap(infp.fileno(), 0, access=mmap.ACCESS_READ) as mapped:
+                data = mapped[offset:offset + request["length"]]
+        doc = self.run_document(self.codec.load_document(data))
+        decoded = time.perf_counter()
+        for program in self.programs():
+            program.execute(doc)
+        executed = time.perf_counter()
+        chlog = self.codec.dump_changelog_file(doc.changelog.to_dict())
+        with open(request["response_file"], "wb") as outfp:
+            outfp.write(chlog)
+        response = ok_response(file=request["response_file"], offset=0, length=len(chlog))
+        self.add_timings(response, start, decoded, executed)
+        return response
+
+    def add_timings(self, response, start, decoded, executed):
+        if self.timings:
+            response["timings"] = {
+                "decode": decoded - start,
+                "execute": executed - decoded,
+                "encode": time.perf_counter() - executed,
+            }
+
+    def finish(self):
+        result = self.program.finish()
+        if self.members:
+            result = dict(result or {})
+            result[FUSED_RESULTS_KEY] = [m.finish() for m in self.members]
+        return result
+
+    def reduce(self, results):
+        results = results or []
+        if not self.members:
+            return self.program.reduce(results)
+        own = []
+        fused = [[] for _ in self.members]
+        for result in results:
+            if result is None:
+                continue
+            result = dict(result)
+            memberresults = result.pop(FUSED_RESULTS_KEY, None) or []
+            own.append(result)
+            for idx, memberresult in enumerate(memberresults[:len(fused)]):
+                if memberresult is not None:
+                    fused[idx].append(memberresult)
+        ret = dict(self.program.reduce(own) or {})
+        ret[FUSED_RESULTS_KEY] = [m.reduce(r) for m, r in zip(self.members, fused)]
+        return ret
+
+
+def serve(server, instream, outstream):
+    """Handle requests until the input ends."""
+    codec = server.codec
+    while True:
+        request, payload = codec.read(instream)
+        if request is None:
+            break
+        try:
+            response, response_payload = server.handle(request, payload)
+        except Exception as ex:
+            logger.error("Error processing request %s", request.get("command"), exc_info=True)
+            response, response_payload = error_response(ex), None
+        if "id" in request:
+            response["id"] = request["id"]
+        codec.write(outstream, response, response_payload)
+
+
+def take_stdout():
+    """
+    Return a stream for the original standard output and let everything
+    else written to standard output go to standard error.
+    """
+    sys.stdout.flush()
+    outstream = os.fdopen(os.dup(1), "wb")
+    os.dup2(2, 1)
+    return outstream
+
+
+def serve_pipe(server):
+    serve(server, sys.stdin.buffer, take_stdout())
+
+
+def connect(host, port, token):
+    """Connect to the plugin and send the token."""
+    sock = socket.create_connection((host, port))
+    sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    sock.sendall((token + "\n").encode("utf-8"))
+    return sock
+
+
+def serve_socket(server, sock):
+    with sock:
+        serve(server, sock.makefile("rb"), sock.makefile("wb"))
+
+
+def is_alive(pid):
+    try:
+        os.kill(pid, 0)
+    except ProcessLookupError:
+        return False
+    except PermissionError:
+        pass
+    return True
+
+
+def send_signal(pid, sig):
+    try:
+        os.kill(pid, sig)
+    except ProcessLookupError:
+        pass
+
+
+def serve_forkserver(server):
+    """
+    Run the fork server: handle the preload request and fork a child for
+    each fork request, which connects to the plugin like a process
+    started with "--mode socket".
+
+    The fork server always exchanges JSON lines over standard input and
+    output, the children use the format given on the command line.
+    """
+    instream = sys.stdin.buffer
+    outstream = take_stdout()
+    codec = JsonCodec()
+    # children get reaped automatically
+    signal.signal(signal.SIGCHLD, signal.SIG_IGN)
+    while True:
+        request, _ = codec.read(instream)
+        if request is None:
+            break
+        command = request.get("command")
+        try:
+            if command == "fork":
+                pid = os.fork()
+                if pid == 0:
+                    run_child(server, request, outstream)
+                response = ok_response(pid=pid)
+            elif command in ("terminate", "kill", "poll"):
+                pid = request["pid"]
+                if command == "terminate":
+                    send_signal(pid, signal.SIGTERM)
+                elif command == "kill":
+                    send_signal(pid, signal.SIGKILL)
+                response = ok_response(alive=is_alive(pid))
+            elif command == "preload":
+                response = server.setup(command, request)
+            else:
+                raise Exception("Unknown fork server command: {}".format(command))
+        except Exception as ex:
+            logger.error("Error processing fork server request %s", command, exc_info=True)
+            response = error_response(ex)
+        codec.write(outstream, response)
+
+
+def run_child(server, request, forkserver_out):
+    """Serve the plugin in a child forked by the fork server, never returns."""
+    exitcode = 0
+    try:
+        signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+        forkserver_out.close()
+        os.close(0)
+        serve_socket(server, connect(request["host"], request["port"], request["token"]))
+    except BaseException:
+        traceback.print_exc()
+        exitcode = 1
+    finally:
+        sys.stdout.flush()
+        sys.stderr.flush()
+        os._exit(exitcode)
+
+
+def install():
+    """Replace GateNlpPr and interact in all gatenlp modules which define them."""
+    import gatenlp
+    for name, module in list(sys.modules.items()):
+        if module is None or not (name == "gatenlp" or name.startswith("gatenlp.")):
+            continue
+        if hasattr(module, "GateNlpPr"):
+            module.GateNlpPr = GateNlpPr
+        if hasattr(module, "interact"):
+            module.interact = interact
+    gatenlp.GateNlpPr = GateNlpPr
+    gatenlp.interact = interact
+
+
+def main():
+    global _args
+    parser = argparse.ArgumentParser(description="Run the Python program of a GATE PythonPr")
+    parser.add_argument("program", nargs="?", help="Python program file")
+    parser.add_argument("--module", help="Python module to run instead of a program file")
+    parser.add_argument("--mode", default="pipe", help="pipe, socket, forkserver or check")
+    parser.add_argument("--format", default="json", choices=["json", "msgpack"])
+    parser.add_argument("--host", help="host to connect to in socket mode")
+    parser.add_argument("--port", type=int, help="port to connect to in socket mode")
+    parser.add_argument("--log_lvl", default="INFO", help="logging level")
+    _args, _ = parser.parse_known_args()
+    if (_args.program is None) == (_args.module is None):
+        parser.error("Exactly one of a program file or --module must be given")
+    logging.basicConfig(stream=sys.stderr, level=getattr(logging, _args.log_lvl.upper(), logging.INFO))
+    install()
+    if _args.module is not None:
+        sys.argv = [_args.module] + sys.argv[3:]
+        runpy.run_module(_args.module, run_name="__main__", alter_sys=True)
+    else:
+        program = os.path.abspath(_args.program)
+        sys.argv = [program] + sys.argv[2:]
+        sys.path.insert(0, os.path.dirname(program))
+        runpy.run_path(program, run_name="__main__")
+    if not _interact_called:
+        print("The Python program did not call interact()", file=sys.stderr)
+        sys.exit(1)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.gui.ResourceHelper;
+import gate.plugin.python.BdocJsonWriter;
+import gate.plugin.python.DocumentProjection;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class BdocJsonWriterTest extends TestCase {
+
+  private ResourceHelper bdocApi;
+  private Document doc;
+
+  @Override
+  protected void setUp() throws Exception {
+    bdocApi = BdocTestSupport.getBdocApi();
+    doc = Factory.newDocument("Some text with \"quotes\" and ümlauts");
+    doc.getFeatures().put("docfeature", "value");
+    doc.getFeatures().put(12, Arrays.asList(1, 2));
+    FeatureMap fm = Factory.newFeatureMap();
+    fm.put("string", "Some");
+    fm.put("length", 4);
+    doc.getAnnotations().add(0L, 4L, "Token", fm);
+    doc.getAnnotations().add(5L, 9L, "Token", Factory.newFeatureMap());
+    doc.getAnnotations("Other").add(0L, 9L, "Person", Factory.newFeatureMap());
+  }
+
+  @Override
+  protected void tearDown() {
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * The streamed JSON is the same as the JSON of the bdoc map.
+   */
+  public void testSameAsBdocMap() throws Exception {
+    Map<String, Object> written = writeDocument(null, null);
+    assertEquals(bdocMap(doc, null), written);
+    // the bdoc builder uses up an annotation id for the placeholder sets, 
+    // so the writer has to go first
+    Set<String> sets = new HashSet<>(Arrays.asList("Other"));
+    written = writeDocument(sets, null);
+    assertEquals(bdocMap(doc, sets), written);
+  }
+
+  /**
+   * Requests contain the command and the documents.
+   */
+  @SuppressWarnings("unchecked")
+  public void testRequests() throws Exception {
+    BdocJsonWriter writer = new BdocJsonWriter();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeExecuteRequest(doc, null, null, out);
+    Map<String, Object> request = JSON.std.mapFrom(out.toByteArray());
+    assertEquals("execute", request.get("command"));
+    assertEquals(bdocMap(doc, null), request.get("data"));
+    out.reset();
+    writer.writeExecuteBatchRequest(Arrays.asList(doc, doc), null, null, out);
+    request = JSON.std.mapFrom(out.toByteArray());
+    assertEquals("execute_batch", request.get("command"));
+    assertEquals(Arrays.asList(bdocMap(doc, null), bdocMap(doc, null)), request.get("data"));
+  }
+
+  /**
+   * The projection removes what is not sent.
+   */
+  @SuppressWarnings("unchecked")
+  public void testProjection() throws Exception {
+    DocumentProjection projection = new DocumentProjection(Arrays.asList("Token"),
+            Arrays.asList("string"), false, false);
+    Map<String, Object> bdoc = writeDocument(null, projection);
+    assertNull(bdoc.get("text"));
+    assertNull(bdoc.get("features"));
+    Map<String, Object> sets = (Map<String, Object>) bdoc.get("annotation_sets");
+    List<Object> anns = (List<Object>) ((Map<String, Object>) sets.get("")).get("annotations");
+    assertEquals(2, anns.size());
+    for (Object ann : anns) {
+      Map<String, Object> features = (Map<String, Object>) ((Map<String, Object>) ann).get("features");
+      assertFalse(features.containsKey("length"));
+    }
+    assertTrue(((List<Object>) ((Map<String, Object>) sets.get("Other")).get("annotations")).isEmpty());
+  }
+
+  private Map<String, Object> writeDocument(Set<String> sets, DocumentProjection projection)
+          throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BdocJsonWriter().writeDocument(doc, sets, projection, out);
+    return JSON.std.mapFrom(out.toByteArray());
+  }
+
+  // the map as created by the format-bdoc API, round tripped through JSON
+  private Map<String, Object> bdocMap(Document doc, Set<String> sets) throws Exception {
+    Object map = sets == null ? bdocApi.call("bdocmap_from_doc", doc)
+            : bdocApi.call("bdocmap_from_doc", doc, sets, true);
+    return JSON.std.mapFrom(JSON.std.asString(map));
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.Gate;
+import gate.creole.Plugin;
+import gate.creole.ResourceData;
+import gate.gui.ResourceHelper;
+import gate.util.GateException;
+
+/**
+ * Access to the format-bdoc plugin for tests which do not need the Python
+ * plugin itself.
+ * @author Johann Petrak
+ */
+public class BdocTestSupport {
+
+  private BdocTestSupport() {
+  }
+
+  /**
+   * Initialise GATE if necessary, load the format-bdoc plugin and return
+   * its API resource helper.
+   * @return the bdoc API
+   * @throws GateException  exception
+   */
+  public static synchronized ResourceHelper getBdocApi() throws GateException {
+    if (!Gate.isInitialised()) {
+      Gate.init();
+    }
+    ResourceData rd = Gate.getCreoleRegister().get("gate.plugin.format.bdoc.API");
+    if (rd == null) {
+      Gate.getCreoleRegister().registerPlugin(
+              new Plugin.Maven("uk.ac.gate.plugins", "format-bdoc", "1.10"));
+      rd = Gate.getCreoleRegister().get("gate.plugin.format.bdoc.API");
+    }
+    return (ResourceHelper) rd.getInstantiations().iterator().next();
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.plugin.python.ChangeLogApplier;
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+import static gate.plugin.python.tests.MsgPackCodecTest.change;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class ChangeLogApplierTest extends TestCase {
+
+  private ChangeLogApplier applier;
+  private final List<Document> docs = new ArrayList<>();
+
+  @Override
+  protected void setUp() throws Exception {
+    applier = new ChangeLogApplier(BdocTestSupport.getBdocApi().getClass().getClassLoader());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+  }
+
+  private Document newDocument(String text) throws Exception {
+    Document doc = Factory.newDocument(text);
+    docs.add(doc);
+    return doc;
+  }
+
+  private static Map<String, Object> changeLog(String offsetType, Object... changes) {
+    Map<String, Object> chlog = new LinkedHashMap<>();
+    if (offsetType != null) {
+      chlog.put("offset_type", offsetType);
+    }
+    chlog.put("changes", Arrays.asList(changes));
+    return chlog;
+  }
+
+  // apply the changelog from JSON and from the map to two documents with
+  // the same content and check both end up the same
+  private Document applyBoth(Document doc, Document doc2, Map<String, Object> chlog) throws Exception {
+    applier.applyChangeLog(new ByteArrayInputStream(JSON.std.asBytes(chlog)), doc);
+    applier.applyChangeLog(chlog, doc2);
+    assertEquals(doc.getFeatures(), doc2.getFeatures());
+    assertEquals(doc.getAnnotationSetNames(), doc2.getAnnotationSetNames());
+    assertEquals(doc.getAnnotations().size(), doc2.getAnnotations().size());
+    return doc;
+  }
+
+  /**
+   * Add and remove annotations, clear a set and remove a set.
+   * @throws Exception  exception
+   */
+  public void testAnnotations() throws Exception {
+    Document[] pair = new Document[2];
+    for (int i = 0; i < 2; i++) {
+      pair[i] = newDocument("one two three");
+      pair[i].getAnnotations().add(0L, 3L, "Existing", Factory.newFeatureMap());
+      pair[i].getAnnotations("Gone").add(0L, 3L, "X", Factory.newFeatureMap());
+      pair[i].getAnnotations("Cleared").add(0L, 3L, "X", Factory.newFeatureMap());
+    }
+    Document doc = applyBoth(pair[0], pair[1], changeLog("p",
+            change("annotation:add", "", 5, "start", 4, "end", 7, "type", "Word"),
+            // id 0 is already used, so the annotation gets a new id
+            change("annotation:add", "", 0, "start", 8, "end", 13, "type", "Word"),
+            change("annotation:remove", "", 0),
+            change("annotations:clear", "Cleared", null),
+            change("annotations:remove", "Gone", null),
+            change("annotation:add", "New", 1, "start", 0, "end", 13, "type", "Sentence")));
+    AnnotationSet defset = doc.getAnnotations();
+    assertEquals(2, defset.size());
+    assertEquals(0, defset.get("Existing").size());
+    assertEquals("two", gate.Utils.stringFor(doc, defset.get(5)));
+    Annotation other = null;
+    for (Annotation ann : defset) {
+      if (ann.getId() != 5) {
+        other = ann;
+      }
+    }
+    assertNotNull(other);
+    assertEquals("three", gate.Utils.stringFor(doc, other));
+    assertFalse(doc.getAnnotationSetNames().contains("Gone"));
+    assertTrue(doc.getAnnotationSetNames().contains("Cleared"));
+    assertEquals(0, doc.getAnnotations("Cleared").size());
+    assertEquals(1, doc.getAnnotations("New").size());
+    assertNotNull(doc.getAnnotations("New").get(1));
+  }
+
+  /**
+   * Removing the default set only clears it.
+   * @throws Exception  exception
+   */
+  public void testRemoveDefaultSet() throws Exception {
+    Document doc = newDocument("text");
+    doc.getAnnotations().add(0L, 4L, "X", Factory.newFeatureMap());
+    applier.applyChangeLog(changeLog("p", change("annotations:remove", "", null)), doc);
+    assertEquals(0, doc.getAnnotations().size());
+  }
+
+  /**
+   * Set, remove and clear document and annotation features, set the name.
+   * @throws Exception  exception
+   */
+  public void testFeatures() throws Exception {
+    Document[] pair = new Document[2];
+    for (int i = 0; i < 2; i++) {
+      pair[i] = newDocument("some text");
+      pair[i].getFeatures().put("old", 1);
+      pair[i].getFeatures().put("keep", 2);
+      gate.FeatureMap fm = Factory.newFeatureMap();
+      fm.put("a", 1);
+      fm.put("b", 2);
+      pair[i].getAnnotations().add(0, 0L, 4L, "X", fm);
+      fm = Factory.newFeatureMap();
+      fm.put("c", 3);
+      pair[i].getAnnotations().add(1, 5L, 9L, "Y", fm);
+    }
+    Map<String, Object> nested = new LinkedHashMap<>();
+    nested.put("list", Arrays.asList(1, "two", 3.5));
+    Document doc = applyBoth(pair[0], pair[1], changeLog("p",
+            change("doc-feature:remove", null, null, "feature", "old"),
+            change("doc-feature:set", null, null, "feature", "new", "value", nested),
+            change("ann-feature:set", "", 0, "feature", "a", "value", "changed"),
+            change("ann-feature:remove", "", 0, "feature", "b"),
+            change("ann-features:clear", "", 1),
+            change("name:set", null, null, "name", "renamed"),
+            // an empty name is ignored
+            change("name:set", null, null, "name", " ")));
+    assertFalse(doc.getFeatures().containsKey("old"));
+    assertEquals(2, doc.getFeatures().get("keep"));
+    assertEquals(nested, doc.getFeatures().get("new"));
+    assertEquals("changed", doc.getAnnotations().get(0).getFeatures().get("a"));
+    assertFalse(doc.getAnnotations().get(0).getFeatures().containsKey("b"));
+    assertTrue(doc.getAnnotations().get(1).getFeatures().isEmpty());
+    assertEquals("renamed", doc.getName());
+    applier.applyChangeLog(changeLog("p", change("doc-features:clear", null, null)), doc);
+    assertTrue(doc.getFeatures().isEmpty());
+  }
+
+  /**
+   * Removing a feature from an annotation which does not exist fails.
+   * @throws Exception  exception
+   */
+  public void testMissingAnnotation() throws Exception {
+    Document doc = newDocument("text");
+    try {
+      applier.applyChangeLog(changeLog("p", change("ann-feature:remove", "", 7, "feature", "x")), doc);
+      fail("Expected an exception");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Python offsets are converted for text with supplementary characters,
+   * Java offsets are used as they are.
+   * @throws Exception  exception
+   */
+  public void testOffsets() throws Exception {
+    // the emojis take two Java chars but one Python code point each
+    String text = "😀a😀bc";
+    Document doc = newDocument(text);
+    applier.applyChangeLog(changeLog("p",
+            change("annotation:add", "", 0, "start", 3, "end", 5, "type", "P")), doc);
+    assertEquals("bc", gate.Utils.stringFor(doc, doc.getAnnotations().get(0)));
+    applier.applyChangeLog(changeLog("j",
+            change("annotation:add", "", 1, "start", 5, "end", 7, "type", "J")), doc);
+    assertEquals("bc", gate.Utils.stringFor(doc, doc.getAnnotations().get(1)));
+    // without an offset type, Python offsets are assumed
+    applier.applyChangeLog(changeLog(null,
+            change("annotation:add", "", 2, "start", 1, "end", 2, "type", "N")), doc);
+    assertEquals("a", gate.Utils.stringFor(doc, doc.getAnnotations().get(2)));
+    // Java offsets given after changes which needed conversion are an error
+    String json = "{\"changes\": [{\"command\": \"annotation:add\", \"set\": \"\", \"id\": 3, "
+            + "\"start\": 1, \"end\": 2, \"type\": \"N\"}], \"offset_type\": \"j\"}";
+    try {
+      applier.applyChangeLog(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), doc);
+      fail("Expected an exception");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  private static String response(Object... kvs) throws Exception {
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < kvs.length; i += 2) {
+      map.put((String) kvs[i], kvs[i + 1]);
+    }
+    return JSON.std.asString(map);
+  }
+
+  private static Map<String, Object> setFeature(String value) {
+    return changeLog("p", change("doc-feature:set", null, null, "feature", "f", "value", value));
+  }
+
+  /**
+   * Apply the changelogs of execute and execute_batch responses.
+   * @throws Exception  exception
+   */
+  public void testResponses() throws Exception {
+    Document doc1 = newDocument("one");
+    Document doc2 = newDocument("two");
+    ChangeLogApplier.Response response = applier.applyResponse(
+            response("status", "ok", "data", setFeature("single"), "timings", Collections.singletonMap("x", 1)),
+            Collections.singletonList(doc1), false);
+    assertEquals("ok", response.status);
+    assertEquals(1, response.nrChangeLogs);
+    assertEquals("single", doc1.getFeatures().get("f"));
+    assertEquals(Collections.singletonMap("x", 1), response.other.get("timings"));
+    response = applier.applyResponse(
+            response("status", "ok", "data", Arrays.asList(setFeature("b1"), setFeature("b2"))),
+            Arrays.asList(doc1, doc2), true);
+    assertEquals(2, response.nrChangeLogs);
+    assertEquals("b1", doc1.getFeatures().get("f"));
+    assertEquals("b2", doc2.getFeatures().get("f"));
+  }
+
+  /**
+   * A failed response changes nothing if the status comes first, a batch
+   * response with too few changelogs changes the documents at the start.
+   * @throws Exception  exception
+   */
+  public void testInvalidResponses() throws Exception {
+    Document doc1 = newDocument("one");
+    Document doc2 = newDocument("two");
+    ChangeLogApplier.Response response = applier.applyResponse(
+            response("status", "error", "error", "failed", "data", setFeature("x")),
+            Collections.singletonList(doc1), false);
+    assertEquals("error", response.status);
+    assertEquals("failed", response.error);
+    assertEquals(0, response.nrChangeLogs);
+    assertFalse(doc1.getFeatures().containsKey("f"));
+    response = applier.applyResponse(
+            response("data", Arrays.asList(setFeature("b1")), "status", "ok"),
+            Arrays.asList(doc1, doc2), true);
+    assertEquals(1, response.nrChangeLogs);
+    assertEquals("b1", doc1.getFeatures().get("f"));
+    assertFalse(doc2.getFeatures().containsKey("f"));
+    try {
+      applier.applyResponse(
+              response("status", "ok", "data", Arrays.asList(setFeature("1"), setFeature("2"), setFeature("3"))),
+              Arrays.asList(doc1, doc2), true);
+      fail("Expected an exception");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+  }
+}
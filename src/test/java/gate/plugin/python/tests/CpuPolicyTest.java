@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.CpuPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class CpuPolicyTest extends TestCase {
+
+  /**
+   * Ranges and single CPUs are expanded in order, blanks and empty entries
+   * are ignored.
+   */
+  public void testParseCpuList() {
+    assertEquals(Arrays.asList(0, 1, 2, 3, 8, 10, 11), CpuPolicy.parseCpuList("0-3,8,10-11"));
+    assertEquals(Arrays.asList(5), CpuPolicy.parseCpuList("5"));
+    assertEquals(Arrays.asList(0, 1, 4), CpuPolicy.parseCpuList(" 0-1, ,4 "));
+    assertEquals(Collections.emptyList(), CpuPolicy.parseCpuList(""));
+  }
+
+  /**
+   * The threads are divided between the duplicates, but each process gets
+   * at least one.
+   */
+  public void testThreadsPerProcess() {
+    assertEquals(4, CpuPolicy.getThreadsPerProcess(8, 2));
+    assertEquals(2, CpuPolicy.getThreadsPerProcess(7, 3));
+    assertEquals(1, CpuPolicy.getThreadsPerProcess(4, 10));
+    assertEquals(8, CpuPolicy.getThreadsPerProcess(8, 0));
+  }
+
+  /**
+   * With fewer duplicates than CPUs, each duplicate gets its own slice of
+   * CPUs.
+   */
+  public void testCpusForFewerDuplicates() {
+    List<Integer> cpus = CpuPolicy.parseCpuList("0-3,8,10-11");
+    assertEquals(Arrays.asList(0, 1, 2), CpuPolicy.getCpusForDuplicate(cpus, 0, 2));
+    assertEquals(Arrays.asList(3, 8, 10), CpuPolicy.getCpusForDuplicate(cpus, 1, 2));
+  }
+
+  /**
+   * With more duplicates than CPUs, each duplicate gets one CPU and the
+   * duplicates are spread evenly over all CPUs.
+   */
+  public void testCpusForMoreDuplicates() {
+    List<Integer> cpus = CpuPolicy.parseCpuList("0-3");
+    int nrDuplicates = 10;
+    int[] used = new int[cpus.size()];
+    for (int duplicate = 0; duplicate < nrDuplicates; duplicate++) {
+      List<Integer> assigned = CpuPolicy.getCpusForDuplicate(cpus, duplicate, nrDuplicates);
+      assertEquals(1, assigned.size());
+      assertTrue(cpus.contains(assigned.get(0)));
+      used[cpus.indexOf(assigned.get(0))]++;
+    }
+    for (int count : used) {
+      assertTrue("uneven use of CPUs: " + Arrays.toString(used), count == 2 || count == 3);
+    }
+  }
+
+  /**
+   * When the CPUs divide evenly, all CPUs are used exactly once.
+   */
+  public void testCpusCoverAll() {
+    List<Integer> cpus = CpuPolicy.parseCpuList("0-7");
+    List<Integer> all = new ArrayList<>();
+    for (int duplicate = 0; duplicate < 4; duplicate++) {
+      all.addAll(CpuPolicy.getCpusForDuplicate(cpus, duplicate, 4));
+    }
+    assertEquals(8, all.size());
+    Set<Integer> distinct = new HashSet<>(all);
+    assertEquals(new HashSet<>(cpus), distinct);
+  }
+
+  /**
+   * The affinity is not set for an unknown process or no CPUs.
+   */
+  public void testSetAffinityInvalid() {
+    assertFalse(CpuPolicy.setAffinity(-1, Arrays.asList(0)));
+    assertFalse(CpuPolicy.setAffinity(1, Collections.<Integer>emptyList()));
+  }
+}
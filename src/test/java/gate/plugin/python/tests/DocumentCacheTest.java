@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.corpora.DocumentContentImpl;
+import gate.plugin.python.DocumentCache;
+import gate.util.GateException;
+import gate.util.InvalidOffsetException;
+import java.util.Arrays;
+import java.util.HashSet;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class DocumentCacheTest extends TestCase {
+
+  private static final String KEY = DocumentCache.makeKey(null);
+  private static final byte[] BYTES = new byte[] { 1, 2, 3 };
+
+  private DocumentCache cache;
+  private Document doc;
+
+  @Override
+  protected void setUp() throws GateException {
+    if (!Gate.isInitialised()) {
+      Gate.init();
+    }
+    doc = Factory.newDocument("some text to cache");
+    doc.getAnnotations().add(0L, 4L, "Token", Factory.newFeatureMap());
+    doc.getAnnotations("Other").add(5L, 9L, "Token", Factory.newFeatureMap());
+    cache = new DocumentCache();
+    cache.ensureCapacity(2);
+    cache.put(doc, KEY, BYTES);
+    assertSame(BYTES, cache.get(doc, KEY));
+  }
+
+  @Override
+  protected void tearDown() {
+    cache.clear();
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Adding an annotation drops the cached form, also for a new set.
+   */
+  public void testAnnotationAdded() throws InvalidOffsetException {
+    doc.getAnnotations("Other").add(10L, 12L, "Token", Factory.newFeatureMap());
+    assertNull(cache.get(doc, KEY));
+    cache.put(doc, KEY, BYTES);
+    doc.getAnnotations("New").add(0L, 4L, "Token", Factory.newFeatureMap());
+    assertNull(cache.get(doc, KEY));
+    // annotations added to the new set are noticed as well
+    cache.put(doc, KEY, BYTES);
+    doc.getAnnotations("New").add(5L, 9L, "Token", Factory.newFeatureMap());
+    assertNull(cache.get(doc, KEY));
+  }
+
+  /**
+   * Changing a feature of an annotation drops the cached form.
+   */
+  public void testAnnotationFeatureChanged() throws InvalidOffsetException {
+    Annotation ann = doc.getAnnotations("Other").iterator().next();
+    ann.getFeatures().put("kind", "word");
+    assertNull(cache.get(doc, KEY));
+    // also for annotations added after the document was cached
+    Integer id = doc.getAnnotations().add(10L, 12L, "Token", Factory.newFeatureMap());
+    cache.put(doc, KEY, BYTES);
+    doc.getAnnotations().get(id).getFeatures().put("kind", "word");
+    assertNull(cache.get(doc, KEY));
+  }
+
+  /**
+   * Changing a document feature drops the cached form.
+   */
+  public void testDocumentFeatureChanged() {
+    doc.getFeatures().put("lang", "en");
+    assertNull(cache.get(doc, KEY));
+  }
+
+  /**
+   * Editing the content drops the cached form.
+   */
+  public void testContentEdited() throws InvalidOffsetException {
+    doc.edit(0L, 4L, new DocumentContentImpl("more"));
+    assertEquals("more text to cache", doc.getContent().toString());
+    assertNull(cache.get(doc, KEY));
+  }
+
+  /**
+   * Removing an annotation or a set drops the cached form.
+   */
+  public void testAnnotationRemoved() {
+    Annotation ann = doc.getAnnotations().iterator().next();
+    doc.getAnnotations().remove(ann);
+    assertNull(cache.get(doc, KEY));
+    cache.put(doc, KEY, BYTES);
+    doc.removeAnnotationSet("Other");
+    assertNull(cache.get(doc, KEY));
+  }
+
+  /**
+   * The forms for different sets are kept separately, reading does not
+   * drop them.
+   */
+  public void testKeys() {
+    String other = DocumentCache.makeKey(new HashSet<>(Arrays.asList("Other", null)));
+    assertEquals(other, DocumentCache.makeKey(new HashSet<>(Arrays.asList(null, "Other"))));
+    assertFalse(other.equals(KEY));
+    assertNull(cache.get(doc, other));
+    cache.put(doc, other, new byte[0]);
+    assertSame(BYTES, cache.get(doc, KEY));
+    assertEquals(0, cache.get(doc, other).length);
+    assertEquals(3, cache.getNrHits());
+    assertEquals(1, cache.getNrMisses());
+  }
+
+  /**
+   * The least recently used document gets evicted, clearing removes all
+   * documents.
+   */
+  public void testEviction() throws GateException {
+    Document doc2 = Factory.newDocument("second");
+    Document doc3 = Factory.newDocument("third");
+    try {
+      cache.put(doc2, KEY, BYTES);
+      // doc is now the most recently used, so doc2 gets evicted
+      assertSame(BYTES, cache.get(doc, KEY));
+      cache.put(doc3, KEY, BYTES);
+      assertNull(cache.get(doc2, KEY));
+      assertSame(BYTES, cache.get(doc, KEY));
+      assertSame(BYTES, cache.get(doc3, KEY));
+      cache.clear();
+      assertNull(cache.get(doc, KEY));
+      assertNull(cache.get(doc3, KEY));
+    } finally {
+      Factory.deleteResource(doc2);
+      Factory.deleteResource(doc3);
+    }
+  }
+
+  /**
+   * Without a capacity nothing is cached.
+   */
+  public void testNoCapacity() {
+    DocumentCache empty = new DocumentCache();
+    empty.put(doc, KEY, BYTES);
+    assertNull(empty.get(doc, KEY));
+  }
+
+  /**
+   * The cache is only cleared when the last user releases it.
+   */
+  public void testReleaseByLastUser() {
+    DocumentCache shared = new DocumentCache();
+    shared.acquire(2);
+    shared.acquire(1);
+    shared.put(doc, KEY, BYTES);
+    shared.release();
+    assertEquals(1, shared.getNrUsers());
+    assertSame(BYTES, shared.get(doc, KEY));
+    shared.release();
+    assertEquals(0, shared.getNrUsers());
+    assertNull(shared.get(doc, KEY));
+    // the capacity was reset as well
+    shared.put(doc, KEY, BYTES);
+    assertNull(shared.get(doc, KEY));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.DocumentProjection;
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class DocumentProjectionTest extends TestCase {
+
+  /**
+   * Features are selected for all types or for one type only.
+   */
+  public void testKeepFeatures() {
+    DocumentProjection projection = new DocumentProjection(Arrays.asList("Token"), 
+            Arrays.asList("kind", "Token:string"), true, true);
+    assertFalse(projection.isAll());
+    assertTrue(projection.keepType("Token"));
+    assertFalse(projection.keepType("Person"));
+    Map<String, Object> fm = new LinkedHashMap<>();
+    fm.put("string", "hello");
+    fm.put("kind", "word");
+    fm.put("length", 5);
+    assertEquals(Arrays.asList("string", "kind"), 
+            Arrays.asList(projection.keepFeatures("Token", fm).keySet().toArray()));
+    assertEquals(Arrays.asList("kind"), 
+            Arrays.asList(projection.keepFeatures("Person", fm).keySet().toArray()));
+    assertEquals(3, fm.size());
+    assertNull(projection.keepFeatures("Token", null));
+    assertSame(fm, DocumentProjection.ALL.keepFeatures("Token", fm));
+  }
+
+  /**
+   * The union sends everything either projection sends.
+   */
+  public void testUnion() {
+    DocumentProjection a = new DocumentProjection(Arrays.asList("Token"), null, false, true);
+    DocumentProjection b = new DocumentProjection(Arrays.asList("Person"), Arrays.asList("kind"), 
+            true, false);
+    DocumentProjection union = a.union(b);
+    assertTrue(union.keepType("Token"));
+    assertTrue(union.keepType("Person"));
+    assertFalse(union.keepType("Lookup"));
+    assertFalse(union.restrictsFeatures());
+    assertTrue(union.keepDocumentFeatures());
+    assertTrue(union.keepText());
+    assertTrue(a.union(DocumentProjection.ALL).isAll());
+  }
+
+  /**
+   * A declaration only restricts what the parameters leave open.
+   */
+  public void testRestrictBy() {
+    Map<String, Object> declaration = new LinkedHashMap<>();
+    declaration.put("types", Arrays.asList("Token", "Sentence"));
+    declaration.put("features", Arrays.asList("string"));
+    declaration.put("text", false);
+    DocumentProjection declared = DocumentProjection.fromDeclaration(declaration);
+    assertTrue(declared.keepDocumentFeatures());
+    assertFalse(declared.keepText());
+    DocumentProjection params = new DocumentProjection(Arrays.asList("Token"), null, true, true);
+    DocumentProjection projection = params.restrictBy(declared);
+    assertTrue(projection.keepType("Token"));
+    assertFalse(projection.keepType("Sentence"));
+    assertTrue(projection.restrictsFeatures());
+    assertTrue(projection.keepDocumentFeatures());
+    assertFalse(projection.keepText());
+    assertSame(DocumentProjection.ALL, DocumentProjection.fromDeclaration(null));
+    assertTrue(DocumentProjection.ALL.restrictBy(DocumentProjection.ALL).isAll());
+  }
+
+  /**
+   * Invalid declarations are rejected.
+   */
+  public void testInvalidDeclaration() {
+    try {
+      DocumentProjection.fromDeclaration("Token");
+      fail("Expected an exception");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+    Map<String, Object> declaration = new LinkedHashMap<>();
+    declaration.put("types", "Token");
+    try {
+      DocumentProjection.fromDeclaration(declaration);
+      fail("Expected an exception");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  /**
+   * Projections which send the same have the same key.
+   */
+  public void testKey() {
+    assertEquals("", DocumentProjection.ALL.getKey());
+    DocumentProjection a = new DocumentProjection(Arrays.asList("Token", "Person"), null, true, false);
+    DocumentProjection b = new DocumentProjection(Arrays.asList("Person", "Token"), 
+            Arrays.<String>asList(), true, false);
+    assertEquals(a.getKey(), b.getKey());
+    assertFalse(a.getKey().equals(new DocumentProjection(Arrays.asList("Token"), null, true, false).getKey()));
+    assertFalse(a.getKey().equals(new DocumentProjection(Arrays.asList("Token", "Person"), null, 
+            true, true).getKey()));
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.ExecutionMode;
+import gate.plugin.python.PythonPr.ExchangeFormat;
+import gate.util.GateRuntimeException;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class ExecutionModeTest extends TestCase {
+
+  private static ExecutionMode msgPack() {
+    ExecutionMode mode = new ExecutionMode();
+    mode.setExchangeFormat(ExchangeFormat.MSGPACK);
+    mode.setWindows(false);
+    return mode;
+  }
+
+  private static void assertRejected(ExecutionMode mode, String expected) {
+    try {
+      mode.check();
+      fail("Expected an exception for " + mode);
+    } catch (GateRuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains(expected));
+    }
+  }
+
+  /**
+   * The strategy is chosen from the model server, the requests in flight
+   * and the exchange format, in that order.
+   */
+  public void testKind() {
+    ExecutionMode mode = new ExecutionMode();
+    assertEquals(ExecutionMode.Kind.JSON, mode.getKind());
+    mode = msgPack();
+    assertEquals(ExecutionMode.Kind.MSGPACK, mode.getKind());
+    mode.setBatchSize(10);
+    assertEquals(ExecutionMode.Kind.MSGPACK, mode.getKind());
+    assertTrue(mode.isBatching());
+    mode.setMaxInFlight(4);
+    assertEquals(ExecutionMode.Kind.IN_FLIGHT, mode.getKind());
+    mode.setMaxInFlight(1);
+    mode.setModelServer(true);
+    assertEquals(ExecutionMode.Kind.MODEL_SERVER, mode.getKind());
+  }
+
+  /**
+   * Only documents from the threshold on are handed over in shared files.
+   */
+  public void testSharedFile() {
+    ExecutionMode mode = new ExecutionMode();
+    assertFalse(mode.useSharedFile(0));
+    assertFalse(mode.useSharedFile(Long.MAX_VALUE));
+    mode.setSharedFileThreshold(1000);
+    assertFalse(mode.useSharedFile(999));
+    assertTrue(mode.useSharedFile(1000));
+    assertFalse(mode.isBatching());
+  }
+
+  /**
+   * Combinations which work together are accepted.
+   */
+  public void testValidCombinations() {
+    ExecutionMode mode = msgPack();
+    mode.setDeferredChangesSafe(true);
+    mode.setBatchSize(10);
+    mode.setMaxInFlight(4);
+    mode.setSharedFileThreshold(1000);
+    mode.setForkServer(true);
+    mode.setDocumentTimeout(60);
+    mode.setMaxRetries(2);
+    mode.setStandbyProcess(true);
+    mode.setCpuAffinity(true);
+    mode.setRecycling(true);
+    mode.check();
+    mode = new ExecutionMode();
+    mode.setWindows(false);
+    mode.setDeferredChangesSafe(true);
+    mode.setBatchSize(10);
+    mode.setSharedFileThreshold(1000);
+    mode.setDocumentTimeout(60);
+    mode.check();
+    mode = msgPack();
+    mode.setDeferredChangesSafe(true);
+    mode.setModelServer(true);
+    mode.setBatchSize(10);
+    mode.check();
+  }
+
+  /**
+   * Batches are only allowed if the changes can be applied after the PR
+   * returned from execute().
+   */
+  public void testBatchingNeedsDeferredChanges() {
+    ExecutionMode mode = msgPack();
+    mode.check();
+    mode.setBatchSize(10);
+    assertRejected(mode, "batchSize larger than 1 can only be used if the PythonPr is the last");
+    mode.setModelServer(true);
+    assertRejected(mode, "batchSize larger than 1 can only be used if the PythonPr is the last");
+    mode.setDeferredChangesSafe(true);
+    mode.check();
+  }
+
+  /**
+   * Requests in flight need MsgPack and the fork server is not available on
+   * Windows.
+   */
+  public void testInvalidCombinations() {
+    ExecutionMode mode = new ExecutionMode();
+    mode.setWindows(false);
+    mode.setMaxInFlight(2);
+    assertRejected(mode, "maxInFlight larger than 1 requires the MSGPACK exchangeFormat");
+    mode = msgPack();
+    mode.setForkServer(true);
+    mode.setWindows(true);
+    assertRejected(mode, "forkServer is not supported on Windows");
+  }
+
+  /**
+   * The model server cannot be used with anything that needs a process of
+   * its own.
+   */
+  public void testModelServerCombinations() {
+    String[] unsupported = { "maxInFlight", "forkServer", "sharedFileThreshold", "documentTimeout",
+      "maxRetries", "standbyProcess", "cpuAffinity", "recycling" };
+    for (String name : unsupported) {
+      ExecutionMode mode = msgPack();
+      mode.setModelServer(true);
+      switch (name) {
+        case "maxInFlight": mode.setMaxInFlight(2); break;
+        case "forkServer": mode.setForkServer(true); break;
+        case "sharedFileThreshold": mode.setSharedFileThreshold(1000); break;
+        case "documentTimeout": mode.setDocumentTimeout(60); break;
+        case "maxRetries": mode.setMaxRetries(1); break;
+        case "standbyProcess": mode.setStandbyProcess(true); break;
+        case "cpuAffinity": mode.setCpuAffinity(true); break;
+        default: mode.setRecycling(true); break;
+      }
+      assertRejected(mode, "modelServer cannot be used together with " + name);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.Document;
+import gate.Factory;
+import gate.plugin.python.ChangeLogApplier;
+import gate.plugin.python.FrameMultiplexer;
+import gate.plugin.python.MsgPackCodec;
+import gate.plugin.python.Process4FrameStream;
+import gate.plugin.python.PythonPr;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class FrameMultiplexerTest extends TestCase {
+
+  /**
+   * Keep several requests in flight with a process which sends the 
+   * responses back in reverse order, and apply the changelogs of the
+   * responses to the documents they belong to.
+   * @throws Exception  exception
+   */
+  public void testRequestsInFlight() throws Exception {
+    if (PythonPr.isOsWindows()) {
+      return;
+    }
+    // reads three frames, then writes them back last one first
+    String script = "import struct, sys\n"
+            + "inp = sys.stdin.buffer\n"
+            + "out = sys.stdout.buffer\n"
+            + "def read_frame():\n"
+            + "  data = b''\n"
+            + "  while True:\n"
+            + "    hdr = inp.read(4)\n"
+            + "    if len(hdr) < 4:\n"
+            + "      return None\n"
+            + "    n = struct.unpack('>i', hdr)[0]\n"
+            + "    if n == 0:\n"
+            + "      return data\n"
+            + "    data += inp.read(n)\n"
+            + "while True:\n"
+            + "  frames = [read_frame() for i in range(3)]\n"
+            + "  if frames[-1] is None:\n"
+            + "    break\n"
+            + "  for f in reversed(frames):\n"
+            + "    out.write(struct.pack('>i', len(f)) + f + struct.pack('>i', 0))\n"
+            + "  out.flush()\n";
+    Process4FrameStream proc;
+    try {
+      proc = Process4FrameStream.create(new File("."), null,
+              new ArrayList<>(Arrays.asList("python3", "-c", script)));
+    } catch (RuntimeException ex) {
+      // no python3 available
+      return;
+    }
+    gate.gui.ResourceHelper api = BdocTestSupport.getBdocApi();
+    MsgPackCodec codec = new MsgPackCodec(api);
+    ChangeLogApplier applier = new ChangeLogApplier(api.getClass().getClassLoader());
+    FrameMultiplexer mux = new FrameMultiplexer(proc, codec, "test-reader");
+    List<Long> ids = new ArrayList<>();
+    List<CompletableFuture<MsgPackCodec.Response>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      long id = mux.nextRequestId();
+      ids.add(id);
+      // the process only echoes, so we send what it should respond with:
+      // each changelog sets a document feature to the request id
+      Map<String, Object> header = new LinkedHashMap<>();
+      header.put("status", "ok");
+      header.put("id", id);
+      Map<String, Object> chlog = new LinkedHashMap<>();
+      chlog.put("offset_type", "p");
+      chlog.put("changes", Arrays.asList(
+              MsgPackCodecTest.change("doc-feature:set", null, null, "feature", "id", "value", id)));
+      futures.add(mux.send(id, MsgPackCodecTest.pack(header, chlog)));
+    }
+    assertEquals(3, mux.getNrPending());
+    for (int i = 0; i < 3; i++) {
+      MsgPackCodec.Response response = FrameMultiplexer.waitFor(futures.get(i));
+      assertEquals(ids.get(i), response.id);
+      Document doc = Factory.newDocument("document " + i);
+      applier.applyChangeLog(codec.loadChangeLog(response), doc);
+      assertEquals(ids.get(i).longValue(), ((Number) doc.getFeatures().get("id")).longValue());
+      Factory.deleteResource(doc);
+    }
+    assertEquals(0, mux.getNrPending());
+    proc.stop();
+  }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.plugin.python.ModelServer;
+import gate.util.GateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class ModelServerTest extends TestCase {
+
+  private List<Document> docs;
+
+  @Override
+  protected void setUp() throws GateException {
+    if (!Gate.isInitialised()) {
+      Gate.init();
+    }
+    docs = new ArrayList<>();
+    for (int i = 0; i < 24; i++) {
+      docs.add(Factory.newDocument("document " + i));
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+  }
+
+  /**
+   * More documents than fit into a batch are split over several batches.
+   */
+  public void testSplit() {
+    ModelServer server = new ModelServer();
+    List<Integer> sizes = new ArrayList<>();
+    server.execute(docs.subList(0, 5), 2, 0, batch -> sizes.add(batch.size()));
+    assertEquals(Arrays.asList(2, 2, 1), sizes);
+  }
+
+  /**
+   * Concurrently submitted documents are each sent once and no batch is
+   * larger than the maximum batch size.
+   */
+  public void testConcurrent() throws Exception {
+    ModelServer server = new ModelServer();
+    List<Document> sent = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        List<Document> part = docs.subList(i * 6, i * 6 + 6);
+        futures.add(executor.submit(() -> {
+          for (int from = 0; from < part.size(); from += 3) {
+            server.execute(part.subList(from, from + 3), 4, 20, batch -> {
+              sizes.add(batch.size());
+              sent.addAll(batch);
+            });
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(docs.size(), sent.size());
+    assertEquals(docs.size(), new HashSet<>(sent).size());
+    for (int size : sizes) {
+      assertTrue("batch of " + size, size <= 4);
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.Utils;
+import gate.plugin.python.ChangeLogApplier;
+import gate.plugin.python.DocumentProjection;
+import gate.plugin.python.MsgPackCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class MsgPackCodecTest extends TestCase {
+
+  private MsgPackCodec codec;
+  private ChangeLogApplier applier;
+
+  @Override
+  protected void setUp() throws Exception {
+    gate.gui.ResourceHelper api = BdocTestSupport.getBdocApi();
+    codec = new MsgPackCodec(api);
+    applier = new ChangeLogApplier(api.getClass().getClassLoader());
+  }
+
+  /**
+   * Create a changelog map as the Python side would send it.
+   * @return changelog map
+   */
+  static Map<String, Object> makeChangeLog() {
+    List<Object> changes = new ArrayList<>();
+    Map<String, Object> features = new LinkedHashMap<>();
+    features.put("kind", "word");
+    features.put("len", 5);
+    changes.add(change("annotation:add", "", 0, "start", 3, "end", 8, "type", "Token", "features", features));
+    changes.add(change("annotation:add", "Other", 3, "start", 0, "end", 1, "type", "X"));
+    changes.add(change("ann-feature:set", "", 0, "feature", "checked", "value", true));
+    changes.add(change("doc-feature:set", null, null, "feature", "lang", "value", "en"));
+    Map<String, Object> chlog = new LinkedHashMap<>();
+    chlog.put("offset_type", "p");
+    chlog.put("changes", changes);
+    return chlog;
+  }
+
+  static Map<String, Object> change(String command, String set, Integer id, Object... kvs) {
+    Map<String, Object> change = new LinkedHashMap<>();
+    change.put("command", command);
+    if (set != null) {
+      change.put("set", set);
+    }
+    if (id != null) {
+      change.put("id", id);
+    }
+    for (int i = 0; i < kvs.length; i += 2) {
+      change.put((String) kvs[i], kvs[i + 1]);
+    }
+    return change;
+  }
+
+  static byte[] pack(Object... values) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (MessagePacker packer = MessagePack.newDefaultPacker(baos)) {
+      for (Object value : values) {
+        MsgPackCodec.packValue(packer, value);
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Check the changes of makeChangeLog were applied to a document with the
+   * text of newDocument.
+   * @param doc document
+   */
+  static void assertChanged(Document doc) {
+    Annotation token = doc.getAnnotations().get(0);
+    assertNotNull(token);
+    assertEquals("Token", token.getType());
+    // Python offsets 3 and 8 are Java offsets 4 and 9 after the emoji
+    assertEquals(4L, (long) token.getStartNode().getOffset());
+    assertEquals(9L, (long) token.getEndNode().getOffset());
+    assertEquals("word", token.getFeatures().get("kind"));
+    assertEquals(5, ((Number) token.getFeatures().get("len")).intValue());
+    assertEquals(Boolean.TRUE, token.getFeatures().get("checked"));
+    assertEquals(1, doc.getAnnotations("Other").size());
+    assertNotNull(doc.getAnnotations("Other").get(3));
+    assertEquals("en", doc.getFeatures().get("lang"));
+  }
+
+  static Document newDocument() throws Exception {
+    return Factory.newDocument("h😀 hello world");
+  }
+
+  /**
+   * Decode the changelog from the payload of an execute response and apply
+   * it.
+   * @throws Exception  exception
+   */
+  public void testExecuteResponseRoundTrip() throws Exception {
+    Map<String, Object> header = new LinkedHashMap<>();
+    header.put("status", "ok");
+    header.put("id", 42L);
+    byte[] frame = pack(header, makeChangeLog());
+    MsgPackCodec.Response response = codec.decodeResponse(frame);
+    assertEquals("ok", response.status);
+    assertEquals(42L, (long) response.id);
+    assertTrue(response.hasPayload());
+    Document doc = newDocument();
+    applier.applyChangeLog(codec.loadChangeLog(response), doc);
+    assertChanged(doc);
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Decode the changelogs of an execute_batch response and apply them.
+   * @throws Exception  exception
+   */
+  public void testExecuteBatchResponseRoundTrip() throws Exception {
+    Map<String, Object> header = new LinkedHashMap<>();
+    header.put("status", "ok");
+    header.put("data", Arrays.asList(pack(makeChangeLog()), pack(makeChangeLog())));
+    MsgPackCodec.Response response = codec.decodeResponse(pack(header));
+    List<Map<String, Object>> chlogs = codec.loadChangeLogs(response);
+    assertEquals(2, chlogs.size());
+    for (Map<String, Object> chlog : chlogs) {
+      Document doc = newDocument();
+      applier.applyChangeLog(chlog, doc);
+      assertChanged(doc);
+      assertEquals("hello", Utils.stringFor(doc, doc.getAnnotations().get(0)));
+      Factory.deleteResource(doc);
+    }
+  }
+
+  /**
+   * A response without a changelog payload is an error.
+   * @throws Exception  exception
+   */
+  public void testMissingChangeLog() throws Exception {
+    Map<String, Object> header = new LinkedHashMap<>();
+    header.put("status", "ok");
+    MsgPackCodec.Response response = codec.decodeResponse(pack(header));
+    try {
+      codec.loadChangeLog(response);
+      fail("Expected an exception");
+    } catch (gate.util.GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  // the bdoc annotations come from the format-bdoc plugin, so their public
+  // fields are read reflectively
+  private static Object field(Object ann, String name) throws Exception {
+    return ann.getClass().getField(name).get(ann);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> annotations(Map<String, Object> bdoc, String set) {
+    Map<String, Object> sets = (Map<String, Object>) bdoc.get("annotation_sets");
+    Map<String, Object> annSet = (Map<String, Object>) sets.get(set);
+    return (List<Object>) annSet.get("annotations");
+  }
+
+  private static Document newProjectionDocument() throws Exception {
+    Document doc = newDocument();
+    doc.getFeatures().put("lang", "en");
+    doc.getAnnotations().add(4L, 9L, "Token", Utils.featureMap("string", "hello", "kind", "word"));
+    doc.getAnnotations().add(10L, 15L, "Token", Utils.featureMap("string", "world", "kind", "word"));
+    doc.getAnnotations().add(4L, 15L, "Person", Utils.featureMap("kind", "full", "gender", "x"));
+    doc.getAnnotations("Other").add(4L, 9L, "Token", Utils.featureMap("string", "hello"));
+    doc.getAnnotations("Other").add(4L, 9L, "Lookup", Utils.featureMap("string", "hello"));
+    return doc;
+  }
+
+  /**
+   * A projection only keeps annotations of the requested types and the
+   * requested features, the GATE document stays unchanged.
+   * @throws Exception  exception
+   */
+  public void testProjectionTypesAndFeatures() throws Exception {
+    Document doc = newProjectionDocument();
+    codec.setProjection(new DocumentProjection(Arrays.asList("Token", "Person"), 
+            Arrays.asList("kind", "Token:string"), true, true));
+    Map<String, Object> bdoc = codec.buildBdocMap(doc, null);
+    assertEquals("h😀 hello world", bdoc.get("text"));
+    assertEquals("j", bdoc.get("offset_type"));
+    assertEquals("en", ((Map<?, ?>) bdoc.get("features")).get("lang"));
+    List<Object> anns = annotations(bdoc, "");
+    assertEquals(3, anns.size());
+    for (Object ann : anns) {
+      Map<?, ?> fm = (Map<?, ?>) field(ann, "features");
+      if ("Token".equals(field(ann, "type"))) {
+        assertEquals(new HashSet<>(Arrays.asList("string", "kind")), fm.keySet());
+      } else {
+        assertEquals("Person", field(ann, "type"));
+        // "Token:string" does not apply to other types
+        assertEquals(Collections.singleton("kind"), fm.keySet());
+      }
+    }
+    anns = annotations(bdoc, "Other");
+    assertEquals(1, anns.size());
+    assertEquals("Token", field(anns.get(0), "type"));
+    // the projection only changed what gets sent
+    assertEquals(2, doc.getAnnotations("Other").size());
+    assertEquals(2, doc.getAnnotations().get("Person").iterator().next().getFeatures().size());
+    assertEquals(2, doc.getAnnotations().get("Token").iterator().next().getFeatures().size());
+    // without a projection everything is sent
+    codec.setProjection(null);
+    assertNull(codec.getProjection());
+    bdoc = codec.buildBdocMap(doc, null);
+    assertEquals(3, annotations(bdoc, "").size());
+    assertEquals(2, annotations(bdoc, "Other").size());
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Without the text, the offsets are sent as Python offsets and the text
+   * and document features are null.
+   * @throws Exception  exception
+   */
+  public void testProjectionWithoutText() throws Exception {
+    Document doc = newProjectionDocument();
+    codec.setProjection(new DocumentProjection(Arrays.asList("Token"), null, false, false));
+    Map<String, Object> bdoc = codec.buildBdocMap(doc, null);
+    assertNull(bdoc.get("text"));
+    assertNull(bdoc.get("features"));
+    assertEquals("p", bdoc.get("offset_type"));
+    List<Object> anns = annotations(bdoc, "");
+    assertEquals(2, anns.size());
+    for (Object ann : anns) {
+      Annotation gateAnn = doc.getAnnotations().get((Integer) field(ann, "id"));
+      // the emoji before the tokens is two Java chars but one code point
+      assertEquals(gateAnn.getStartNode().getOffset().intValue() - 1, 
+              ((Number) field(ann, "start")).intValue());
+      assertEquals(gateAnn.getEndNode().getOffset().intValue() - 1, 
+              ((Number) field(ann, "end")).intValue());
+      assertEquals(2, ((Map<?, ?>) field(ann, "features")).size());
+    }
+    assertEquals("h😀 hello world", doc.getContent().toString());
+    assertEquals("en", doc.getFeatures().get("lang"));
+    Factory.deleteResource(doc);
+  }
+}
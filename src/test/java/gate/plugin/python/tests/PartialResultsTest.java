@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.PartialResults;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class PartialResultsTest extends TestCase {
+
+  // sums the counts of all results, like a word count reduce would
+  private static Map<String, Object> reduce(List<Map<String, Object>> results) {
+    Map<String, Object> ret = new HashMap<>();
+    for (Map<String, Object> result : results) {
+      for (Map.Entry<String, Object> entry : result.entrySet()) {
+        long count = ((Number) entry.getValue()).longValue();
+        Object old = ret.get(entry.getKey());
+        ret.put(entry.getKey(), old == null ? count : ((Number) old).longValue() + count);
+      }
+    }
+    return ret;
+  }
+
+  private static Map<String, Object> toLongs(Map<String, Object> result) {
+    Map<String, Object> ret = new HashMap<>();
+    for (Map.Entry<String, Object> entry : result.entrySet()) {
+      ret.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+    }
+    return ret;
+  }
+
+  /**
+   * Reducing the partial results tree-style while some of them get spilled
+   * to disk gives the same result as reducing all of them at once.
+   */
+  public void testReduceWithSpill() {
+    Random random = new Random(42);
+    List<Map<String, Object>> all = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      Map<String, Object> result = new HashMap<>();
+      for (int j = 0; j < 10; j++) {
+        result.put("word" + random.nextInt(30), random.nextInt(1000));
+      }
+      all.add(result);
+    }
+    Map<String, Object> expected = reduce(all);
+
+    PartialResults partialResults = new PartialResults();
+    // room for a few results only, the others must go to disk
+    partialResults.setSpillThreshold(400);
+    int fanIn = 3;
+    try {
+      // each duplicate adds its result and reduces while enough are there
+      for (Map<String, Object> result : all) {
+        partialResults.add(result);
+        List<Map<String, Object>> group;
+        while ((group = partialResults.take(fanIn)) != null) {
+          assertEquals(fanIn, group.size());
+          partialResults.add(reduce(group));
+        }
+        assertTrue(partialResults.size() < fanIn);
+      }
+      assertTrue("expected spilled results", partialResults.getNrSpilled() > 0);
+      assertNull(partialResults.take(fanIn));
+      // the last duplicate reduces whatever is left
+      Map<String, Object> actual = reduce(partialResults.takeAll());
+      assertEquals(0, partialResults.size());
+      assertEquals(expected, toLongs(actual));
+    } finally {
+      partialResults.cleanup();
+    }
+    assertEquals(0, partialResults.getNrSpilled());
+  }
+
+  /**
+   * Spilled results come back unchanged and in the order they were added.
+   */
+  public void testSpilledResultsKeepOrder() {
+    PartialResults partialResults = new PartialResults();
+    partialResults.setSpillThreshold(1);
+    try {
+      for (int i = 0; i < 5; i++) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("n", i);
+        partialResults.add(result);
+      }
+      partialResults.add(null);
+      assertEquals(5, partialResults.size());
+      assertEquals(5, partialResults.getNrSpilled());
+      List<Map<String, Object>> taken = partialResults.take(2);
+      assertEquals(0, ((Number) taken.get(0).get("n")).intValue());
+      assertEquals(1, ((Number) taken.get(1).get("n")).intValue());
+      taken = partialResults.takeAll();
+      assertEquals(3, taken.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(i + 2, ((Number) taken.get(i).get("n")).intValue());
+      }
+    } finally {
+      partialResults.cleanup();
+    }
+  }
+
+  /**
+   * Without a threshold all results stay in memory.
+   */
+  public void testNoSpill() {
+    PartialResults partialResults = new PartialResults();
+    for (int i = 0; i < 10; i++) {
+      Map<String, Object> result = new HashMap<>();
+      result.put("n", i);
+      partialResults.add(result);
+    }
+    assertEquals(0, partialResults.getNrSpilled());
+    assertEquals(10, partialResults.takeAll().size());
+    partialResults.cleanup();
+  }
+}
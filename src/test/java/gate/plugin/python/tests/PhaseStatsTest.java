@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.PhaseStats;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class PhaseStatsTest extends TestCase {
+
+  private static void assertWithin(long expected, long actual, double relative) {
+    assertTrue("expected " + expected + " +/- " + (relative * 100) + "% but got " + actual,
+            Math.abs(actual - expected) <= Math.ceil(expected * relative));
+  }
+
+  /**
+   * Percentiles are within the relative error of the buckets, count, mean
+   * and maximum are exact.
+   */
+  public void testPercentiles() {
+    PhaseStats.Histogram histogram = new PhaseStats.Histogram();
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0.0, histogram.getMean());
+    for (long v = 1; v <= 100000; v++) {
+      histogram.record(v);
+    }
+    assertEquals(100000, histogram.getCount());
+    assertEquals(100000, histogram.getMax());
+    assertEquals(50000.5, histogram.getMean(), 1e-9);
+    assertWithin(50000, histogram.getPercentile(50), 0.03);
+    assertWithin(95000, histogram.getPercentile(95), 0.03);
+    assertWithin(99000, histogram.getPercentile(99), 0.03);
+    // approximate at the top as well, but never above the maximum
+    assertWithin(100000, histogram.getPercentile(100), 0.03);
+    assertTrue(histogram.getPercentile(100) <= histogram.getMax());
+    // values below 32 have their own bucket and are exact
+    PhaseStats.Histogram small = new PhaseStats.Histogram();
+    for (long v = 0; v < 32; v++) {
+      small.record(v);
+    }
+    assertEquals(15, small.getPercentile(50));
+    assertEquals(0, small.getPercentile(0));
+    assertEquals(31, small.getPercentile(100));
+    // negative values count as 0
+    small.record(-5);
+    assertEquals(33, small.getCount());
+    assertEquals(0, small.getPercentile(1));
+    // very large values
+    PhaseStats.Histogram large = new PhaseStats.Histogram();
+    large.record(Long.MAX_VALUE / 3);
+    assertWithin(Long.MAX_VALUE / 3, large.getPercentile(50), 0.03);
+  }
+
+  /**
+   * Merging the statistics of several duplicates gives the same result
+   * as recording everything in one instance.
+   */
+  public void testMerge() {
+    Random random = new Random(1);
+    PhaseStats all = new PhaseStats();
+    PhaseStats dup1 = new PhaseStats();
+    PhaseStats dup2 = new PhaseStats();
+    for (int i = 0; i < 5000; i++) {
+      long v = (long) Math.abs(random.nextGaussian() * 1000000);
+      all.record("wait_us", v);
+      (i % 3 == 0 ? dup1 : dup2).record("wait_us", v);
+      if (i % 2 == 0) {
+        all.record("send_us", i);
+        dup2.record("send_us", i);
+      }
+    }
+    assertNull(dup1.get("send_us"));
+    PhaseStats merged = new PhaseStats();
+    assertTrue(merged.isEmpty());
+    merged.addAll(dup1);
+    merged.addAll(dup2);
+    assertFalse(merged.isEmpty());
+    Map<String, Object> expected = all.toMap();
+    Map<String, Object> actual = merged.toMap();
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String phase : expected.keySet()) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> e = (Map<String, Object>) expected.get(phase);
+      @SuppressWarnings("unchecked")
+      Map<String, Object> a = (Map<String, Object>) actual.get(phase);
+      assertEquals(e.get("count"), a.get("count"));
+      assertEquals(e.get("p50"), a.get("p50"));
+      assertEquals(e.get("p95"), a.get("p95"));
+      assertEquals(e.get("p99"), a.get("p99"));
+      assertEquals(e.get("max"), a.get("max"));
+      assertEquals((Double) e.get("mean"), (Double) a.get("mean"), 1e-6);
+    }
+    assertEquals(2500L, ((Map<?, ?>) actual.get("send_us")).get("count"));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import gate.plugin.python.LoopbackEndpoint;
+import gate.plugin.python.Process4FrameStream;
+import gate.plugin.python.PythonPr;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class Process4FrameStreamTest extends TestCase {
+
+  /**
+   * Send frames to a process that echoes its input and check we get
+   * the identical frames back.
+   * @throws Exception  exception
+   */
+  public void testFrameEcho() throws Exception {
+    if (PythonPr.isOsWindows()) {
+      return;
+    }
+    Process4FrameStream proc = Process4FrameStream.create(new File("."), null, "cat");
+    byte[] small = "some small frame".getBytes();
+    assertTrue(Arrays.equals(small, (byte[])proc.process(small)));
+    byte[] empty = new byte[0];
+    assertEquals(0, ((byte[])proc.process(empty)).length);
+    // a frame which needs more than one chunk: this is larger than the 
+    // pipe buffers, so we need to write while we read the echo
+    byte[] large = new byte[Process4FrameStream.MAX_CHUNK_SIZE * 2 + 17];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte)i;
+    }
+    Thread writer = new Thread(() -> {
+      try {
+        proc.writeFrame(large);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    writer.start();
+    assertTrue(Arrays.equals(large, proc.readFrame()));
+    writer.join();
+    proc.stop();
+  }
+
+  /**
+   * Stream a frame which needs several chunks and check the echo.
+   * @throws Exception  exception
+   */
+  public void testStreamedFrame() throws Exception {
+    if (PythonPr.isOsWindows()) {
+      return;
+    }
+    Process4FrameStream proc = Process4FrameStream.create(new File("."), null, "cat");
+    byte[] large = new byte[Process4FrameStream.STREAM_CHUNK_SIZE * 3 + 5];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte)(i % 251);
+    }
+    // write in pieces which do not line up with the chunk size, in a
+    // separate thread since this is larger than the pipe buffers
+    Process4FrameStream.FrameWriter fw = out -> {
+      for (int i = 0; i < large.length; i += 1000) {
+        out.write(large, i, Math.min(1000, large.length - i));
+      }
+      out.flush();
+    };
+    Thread writer = new Thread(() -> {
+      try {
+        proc.writeFrame(fw);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    writer.start();
+    assertTrue(Arrays.equals(large, proc.readFrame()));
+    writer.join();
+    // the same chunk buffer gets used for the next frame
+    Process4FrameStream.FrameWriter fw2 = out -> out.write(7);
+    assertTrue(Arrays.equals(new byte[]{7}, (byte[])proc.process(fw2)));
+    proc.stop();
+  }
+
+  /**
+   * Exchange frames with a process which connects back to a loopback socket
+   * and echoes everything it receives there.
+   * @throws Exception  exception
+   */
+  public void testFrameEchoOverSocket() throws Exception {
+    if (PythonPr.isOsWindows()) {
+      return;
+    }
+    String script = "import os, socket, sys\n"
+            + "s = socket.create_connection((sys.argv[2], int(sys.argv[4])))\n"
+            + "s.sendall((os.environ['" + LoopbackEndpoint.TOKEN_ENVVAR + "'] + '\\n').encode())\n"
+            + "print('this only goes to the log')\n"
+            + "while True:\n"
+            + "  data = s.recv(65536)\n"
+            + "  if not data:\n"
+            + "    break\n"
+            + "  s.sendall(data)\n";
+    LoopbackEndpoint endpoint = new LoopbackEndpoint();
+    List<String> command = new ArrayList<>(Arrays.asList("python3", "-c", script));
+    Map<String, String> env = new HashMap<>();
+    endpoint.addTo(command, env);
+    Process4FrameStream proc;
+    try {
+      proc = Process4FrameStream.create(new File("."), env, command, endpoint);
+    } catch (RuntimeException ex) {
+      // no python3 available
+      return;
+    }
+    byte[] small = "some small frame".getBytes();
+    assertTrue(Arrays.equals(small, (byte[])proc.process(small)));
+    proc.stop();
+  }
+
+}
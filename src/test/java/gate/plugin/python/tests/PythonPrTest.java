@@ -33,7 +33,9 @@ import gate.plugin.python.PythonPr.LoggingLevel;
 import gate.test.GATEPluginTestCase;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.exec.CommandLine;
@@ -338,4 +340,309 @@ public class PythonPrTest extends GATEPluginTestCase {
     assert a1.getType().equals("Type5");
   }
 
+
+  /**
+   * Test exchanging documents and changelogs as MsgPack frames.
+   *
+   * @throws Exception  exception
+   */
+  public void testPythonPrMsgPack() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("exchangeFormat", PythonPr.ExchangeFormat.MSGPACK);
+    Corpus corpus = runTest2(params, 3);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+  }
+
+  /**
+   * Test sending batches of documents in execute_batch requests.
+   *
+   * @throws Exception  exception
+   */
+  public void testPythonPrBatch() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("batchSize", 2);
+    Corpus corpus = runTest2(params, 5);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+    params.put("exchangeFormat", PythonPr.ExchangeFormat.MSGPACK);
+    corpus = runTest2(params, 5);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+  }
+
+  /**
+   * Test splitting batches into several requests in flight.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrInFlight() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("exchangeFormat", PythonPr.ExchangeFormat.MSGPACK);
+    params.put("batchSize", 4);
+    params.put("maxInFlight", 3);
+    Corpus corpus = runTest2(params, 7);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+  }
+
+  /**
+   * Test that the time spent in the Python process gets recorded.
+   *
+   * @throws Exception  exception
+   */
+  @SuppressWarnings("unchecked")
+  public void testPythonPrTimings() throws Exception {
+    for (PythonPr.ExchangeFormat format : PythonPr.ExchangeFormat.values()) {
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("exchangeFormat", format);
+      SerialAnalyserController controller = makeController("test2.py", params, 3);
+      ProcessingResource pr = controller.getPRs().iterator().next();
+      controller.execute();
+      Map<String, Object> stats = (Map<String, Object>) pr.getFeatures().get(PythonPr.PHASE_STATS_FEATURE);
+      Map<String, Object> all = (Map<String, Object>) stats.get("all");
+      for (String phase : new String[]{"python_decode_us", "python_execute_us", "python_encode_us"}) {
+        assertTrue(format + " " + phase, all.containsKey(phase));
+        assertEquals(3L, ((Number) ((Map<String, Object>) all.get(phase)).get("count")).longValue());
+      }
+      Factory.deleteResource(controller);
+      Factory.deleteResource(pr);
+    }
+  }
+
+  /**
+   * Test exchanging the messages over a loopback socket.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrSocket() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("transport", PythonPr.Transport.SOCKET);
+    Corpus corpus = runTest2(params, 3);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+    params.put("exchangeFormat", PythonPr.ExchangeFormat.MSGPACK);
+    corpus = runTest2(params, 3);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+  }
+
+  /**
+   * Test handing over the documents in shared files.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrSharedFiles() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("sharedFileThreshold", 1);
+    Corpus corpus = runTest2(params, 3);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+    params.put("exchangeFormat", PythonPr.ExchangeFormat.MSGPACK);
+    corpus = runTest2(params, 3);
+    for (Document doc : corpus) {
+      assertTest2Changes(doc);
+    }
+  }
+
+  /**
+   * Test re-using the process for the next run with the reset command.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrKeepAlive() throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("keepAlive", true);
+    SerialAnalyserController controller = makeController("test_hooks.py", params, 2);
+    ProcessingResource pr = controller.getPRs().iterator().next();
+    controller.execute();
+    assertEquals(1, pr.getFeatures().get("starts"));
+    assertEquals(0, pr.getFeatures().get("resets"));
+    assertEquals(2, pr.getFeatures().get("ndocs"));
+    Object pid = pr.getFeatures().get("pid");
+    controller.execute();
+    assertEquals(1, pr.getFeatures().get("starts"));
+    assertEquals(1, pr.getFeatures().get("resets"));
+    assertEquals(2, pr.getFeatures().get("ndocs"));
+    assertEquals(pid, pr.getFeatures().get("pid"));
+    Factory.deleteResource(controller);
+    Factory.deleteResource(pr);
+  }
+
+  /**
+   * Test forking the processes from a fork server which ran the preload hook.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrForkServer() throws Exception {
+    if (PythonPr.isOsWindows()) {
+      return;
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("forkServer", true);
+    SerialAnalyserController controller = makeController("test_hooks.py", params, 2);
+    ProcessingResource pr = controller.getPRs().iterator().next();
+    controller.execute();
+    assertEquals(1, pr.getFeatures().get("preloads"));
+    assertEquals(1, pr.getFeatures().get("starts"));
+    assertEquals(2, pr.getFeatures().get("ndocs"));
+    for (Document doc : controller.getCorpus()) {
+      assertNotNull(doc.getFeatures().get("ndocs"));
+    }
+    Factory.deleteResource(controller);
+    Factory.deleteResource(pr);
+  }
+
+  /**
+   * Test running the programs of two PRs in the same fusion group in one
+   * process.
+   *
+   * @throws Exception  exception
+   */
+  public void testPythonPrFusion() throws Exception {
+    for (PythonPr.ExchangeFormat format : PythonPr.ExchangeFormat.values()) {
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("exchangeFormat", format);
+      params.put("fusionGroup", "group1");
+      SerialAnalyserController controller = makeController("test2.py", params, 3);
+      ProcessingResource first = controller.getPRs().iterator().next();
+      params.put("pythonBinary", "python");
+      params.put("pythonProgram", new File("./src/test/python/test_hooks.py").toURI().toURL());
+      ProcessingResource second = (ProcessingResource)Factory.createResource("gate.plugin.python.PythonPr", params);
+      controller.add(second);
+      controller.execute();
+      for (Document doc : controller.getCorpus()) {
+        assertTest2Changes(doc);
+        assertNotNull(doc.getFeatures().get("ndocs"));
+      }
+      // the finish result of the fused program is stored with its own PR
+      assertEquals(1, second.getFeatures().get("starts"));
+      assertEquals(3, second.getFeatures().get("ndocs"));
+      Factory.deleteResource(controller);
+      Factory.deleteResource(first);
+      Factory.deleteResource(second);
+    }
+  }
+
+  /**
+   * Test that only the parts of the document the program declares in its
+   * projection get sent.
+   *
+   * @throws Exception  exception
+   */
+  public void testPythonPrProjection() throws Exception {
+    for (PythonPr.ExchangeFormat format : PythonPr.ExchangeFormat.values()) {
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("exchangeFormat", format);
+      SerialAnalyserController controller = makeController("test_projection.py", params, 2);
+      ProcessingResource pr = controller.getPRs().iterator().next();
+      for (Document doc : controller.getCorpus()) {
+        doc.getFeatures().put("docfeature", "value");
+        doc.getAnnotations().add(0L, 4L, "Token", Utils.featureMap("string", "This", "length", 4));
+        doc.getAnnotations().add(0L, 4L, "Lookup", Utils.featureMap("majorType", "pronoun"));
+      }
+      controller.execute();
+      for (Document doc : controller.getCorpus()) {
+        assertEquals(Arrays.asList("Token"), doc.getFeatures().get("seen_types"));
+        assertEquals(Arrays.asList("string"), doc.getFeatures().get("seen_features"));
+        assertEquals(0, doc.getFeatures().get("seen_docfeatures"));
+        // what was not sent is left alone
+        assertEquals("value", doc.getFeatures().get("docfeature"));
+        assertEquals(2, doc.getAnnotations().size());
+      }
+      Factory.deleteResource(controller);
+      Factory.deleteResource(pr);
+    }
+  }
+
+  /**
+   * Test that the checks of the program are run when the process starts.
+   * 
+   * @throws Exception  exception
+   */
+  public void testPythonPrCheck() throws Exception {
+    SerialAnalyserController controller = makeController("test_check.py", Factory.newFeatureMap(), 1);
+    PythonPr pr = (PythonPr) controller.getPRs().iterator().next();
+    assertFalse(pr.tryCompileProgram());
+    try {
+      controller.execute();
+      fail("Expected an exception");
+    } catch (Exception ex) {
+      String messages = "";
+      for (Throwable t = ex; t != null; t = t.getCause()) {
+        messages += t.getMessage();
+      }
+      assertTrue(messages, messages.contains("not callable"));
+    }
+    Factory.deleteResource(controller);
+    Factory.deleteResource(pr);
+  }
+
+  /**
+   * Create a controller which runs one PythonPr on a new corpus of small 
+   * documents.
+   *
+   * @param program the name of the program in src/test/python
+   * @param params the parameters to use in addition to the program
+   * @param nrDocs the number of documents to create
+   * @return the controller
+   * @throws Exception  exception
+   */
+  protected SerialAnalyserController makeController(String program, FeatureMap params, int nrDocs) 
+          throws Exception {
+    Corpus corpus = Factory.newCorpus("test");
+    for (int i = 0; i < nrDocs; i++) {
+      corpus.add(Factory.newDocument("This is small document " + i));
+    }
+    FeatureMap prParams = Factory.newFeatureMap();
+    prParams.putAll(params);
+    prParams.put("pythonBinary", "python");
+    prParams.put("pythonProgram", new File("./src/test/python/" + program).toURI().toURL());
+    ProcessingResource pr = (ProcessingResource)Factory.createResource("gate.plugin.python.PythonPr", prParams);
+    SerialAnalyserController controller = (SerialAnalyserController) Factory.createResource(
+            "gate.creole.SerialAnalyserController");
+    controller.add(pr);
+    controller.setCorpus(corpus);
+    return controller;
+  }
+
+  /**
+   * Run the program test2.py on a new corpus of small documents.
+   *
+   * @param params the parameters to use in addition to the program
+   * @param nrDocs the number of documents to create
+   * @return the processed corpus
+   * @throws Exception  exception
+   */
+  protected Corpus runTest2(FeatureMap params, int nrDocs) throws Exception {
+    SerialAnalyserController controller = makeController("test2.py", params, nrDocs);
+    controller.execute();
+    return controller.getCorpus();
+  }
+
+  /**
+   * Check that the changes made by test2.py got applied to the document.
+   *
+   * @param doc the document
+   */
+  protected void assertTest2Changes(Document doc) {
+    AnnotationSet anns = doc.getAnnotations("Set1");
+    assertEquals(1, anns.size());
+    Annotation ann = anns.iterator().next();
+    assertEquals("Type1", ann.getType());
+    assertEquals(1L, (long)ann.getStartNode().getOffset());
+    assertEquals(4L, (long)ann.getEndNode().getOffset());
+    assertEquals(12, ann.getFeatures().get("f1"));
+    assertEquals("val2", ann.getFeatures().get("f2"));
+    assertEquals(13, doc.getFeatures().get("feat1"));
+    assertEquals("asdf", doc.getFeatures().get("feat2"));
+  }
+
 }
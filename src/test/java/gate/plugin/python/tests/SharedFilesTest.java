@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Python
+ * (see https://github.com/GateNLP/gateplugin-Python).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.python.tests;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import gate.Document;
+import gate.Factory;
+import gate.plugin.python.ChangeLogApplier;
+import gate.plugin.python.MsgPackCodec;
+import gate.plugin.python.SharedFiles;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Class for testing.
+ * @author Johann Petrak
+ */
+public class SharedFilesTest extends TestCase {
+
+  private MsgPackCodec codec;
+  private ChangeLogApplier applier;
+  private SharedFiles sharedFiles;
+
+  @Override
+  protected void setUp() throws Exception {
+    gate.gui.ResourceHelper api = BdocTestSupport.getBdocApi();
+    codec = new MsgPackCodec(api);
+    applier = new ChangeLogApplier(api.getClass().getClassLoader());
+    sharedFiles = new SharedFiles("gate-python-test");
+  }
+
+  @Override
+  protected void tearDown() {
+    sharedFiles.cleanup();
+    assertFalse(sharedFiles.getDirectory().exists());
+  }
+
+  // write the changelog to the response file after some other data, as
+  // the Python process may do, and return the response header
+  private Map<String, Object> writeResponse(SharedFiles.Handoff handoff, byte[] chlog) throws Exception {
+    byte[] prefix = new byte[]{1, 2, 3};
+    try (OutputStream out = new FileOutputStream(handoff.responseFile)) {
+      out.write(prefix);
+      out.write(chlog);
+    }
+    Map<String, Object> header = new LinkedHashMap<>();
+    header.put("status", "ok");
+    header.put("file", handoff.responseFile.getAbsolutePath());
+    header.put("offset", prefix.length);
+    header.put("length", chlog.length);
+    return header;
+  }
+
+  /**
+   * Hand over a document and read back a MsgPack changelog from a file.
+   * @throws Exception  exception
+   */
+  public void testMsgPackHandoff() throws Exception {
+    Document doc = MsgPackCodecTest.newDocument();
+    SharedFiles.Handoff handoff = sharedFiles.write(out -> codec.writeBdoc(doc, null, out));
+    assertTrue(handoff.requestFile.exists());
+    assertTrue(handoff.requestLength > 0);
+    assertEquals(handoff.requestLength, handoff.requestFile.length());
+    Map<String, Object> request = new HashMap<>();
+    SharedFiles.addToRequest(handoff, request);
+    assertEquals(handoff.requestFile.getAbsolutePath(), request.get("file"));
+    assertEquals(handoff.responseFile.getAbsolutePath(), request.get("response_file"));
+    Map<String, Object> header = writeResponse(handoff, 
+            MsgPackCodecTest.pack(MsgPackCodecTest.makeChangeLog()));
+    // the location arrives in the header of the response frame
+    MsgPackCodec.Response response = codec.decodeResponse(MsgPackCodecTest.pack(header));
+    applier.applyChangeLog(codec.loadChangeLog(SharedFiles.mapResponse(response.header)), doc);
+    MsgPackCodecTest.assertChanged(doc);
+    sharedFiles.release(handoff);
+    assertFalse(handoff.requestFile.exists());
+    assertFalse(handoff.responseFile.exists());
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Read back a JSON changelog from a file.
+   * @throws Exception  exception
+   */
+  public void testJsonHandoff() throws Exception {
+    Document doc = MsgPackCodecTest.newDocument();
+    SharedFiles.Handoff handoff = sharedFiles.write(out -> out.write('x'));
+    Map<String, Object> header = writeResponse(handoff, JSON.std.asBytes(MsgPackCodecTest.makeChangeLog()));
+    applier.applyChangeLog(SharedFiles.mapResponse(header), doc);
+    MsgPackCodecTest.assertChanged(doc);
+    Factory.deleteResource(doc);
+  }
+}
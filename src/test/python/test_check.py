@@ -0,0 +1,12 @@
+"""PR which fails the checks of the plugin: its start attribute is not callable"""
+
+from gatenlp import interact, GateNlpPr, Document
+
+@GateNlpPr
+class MyProcessor:
+  start = "not a method"
+
+  def __call__(self, doc, **kwargs):
+    doc.features["processed"] = True
+
+interact()
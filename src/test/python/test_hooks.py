@@ -0,0 +1,32 @@
+"""PR which counts the calls of its hooks and returns the counts from finish"""
+
+import os
+from gatenlp import interact, GateNlpPr, Document
+
+@GateNlpPr
+class MyProcessor:
+  def __init__(self):
+    self.preloads = 0
+    self.starts = 0
+    self.resets = 0
+    self.ndocs = 0
+
+  def preload(self, **kwargs):
+    self.preloads += 1
+
+  def start(self, **kwargs):
+    self.starts += 1
+    self.ndocs = 0
+
+  def reset(self, **kwargs):
+    self.resets += 1
+    self.ndocs = 0
+
+  def __call__(self, doc, **kwargs):
+    self.ndocs += 1
+    doc.features["ndocs"] = self.ndocs
+
+  def finish(self, **kwargs):
+    return {"preloads": self.preloads, "starts": self.starts, "resets": self.resets, "ndocs": self.ndocs, "pid": os.getpid()}
+
+interact()
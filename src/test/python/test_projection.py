@@ -0,0 +1,16 @@
+"""PR which declares a projection and records which parts of the document it got"""
+
+from gatenlp import interact, GateNlpPr, Document
+
+@GateNlpPr
+class MyProcessor:
+  projection = {"types": ["Token"], "features": ["string"], "document_features": False}
+
+  def __call__(self, doc, **kwargs):
+    anns = doc.annset()
+    nrdocfeatures = len(doc.features)
+    doc.features["seen_types"] = sorted(set(ann.type for ann in anns))
+    doc.features["seen_features"] = sorted(set(name for ann in anns for name in ann.features.keys()))
+    doc.features["seen_docfeatures"] = nrdocfeatures
+
+interact()